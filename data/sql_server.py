@@ -18,6 +18,11 @@ SERVER_NAME = "STOMP_PYTHON_SQL_SERVER"  # DO NOT CHANGE!
 DB_FILE = "stomp_server.db"              # DO NOT CHANGE!
 
 db_lock = threading.Lock()
+db_conn = None  # one long-lived connection, used under db_lock
+
+# A batch request is BATCH_HEADER followed by its statements, separated by BATCH_SEPARATOR
+BATCH_HEADER = "BATCH\n"
+BATCH_SEPARATOR = "\x1e"
 
 def recv_null_terminated(sock: socket.socket) -> str:
     data = b""
@@ -32,7 +37,10 @@ def recv_null_terminated(sock: socket.socket) -> str:
 
 
 def init_database():
-    conn = sqlite3.connect(DB_FILE)
+    global db_conn
+    conn = sqlite3.connect(DB_FILE, timeout=10, check_same_thread=False)
+    # WAL lets a commit append to the log instead of rewriting pages, and readers never block it
+    conn.execute("PRAGMA journal_mode=WAL")
     c = conn.cursor()
 
     # Users Table
@@ -68,7 +76,7 @@ def init_database():
     ''')
 
     conn.commit()
-    conn.close()
+    db_conn = conn
     print(f"[{SERVER_NAME}] Database initialized at {DB_FILE}")
 
 
@@ -78,34 +86,69 @@ def execute_sql_command(sql_command: str) -> str:
     """
     try:
         with db_lock:
-            conn = sqlite3.connect(DB_FILE)
-            c = conn.cursor()
-            c.execute(sql_command)
-            conn.commit()
-            conn.close()
+            try:
+                db_conn.execute(sql_command)
+                db_conn.commit()
+            except sqlite3.Error:
+                db_conn.rollback()
+                raise
         return "SUCCESS|()"
     except sqlite3.Error as e:
         return f"ERROR|{str(e)}"
 
 
+def execute_sql_batch(statements) -> str:
+    """
+    Executes many INSERT, UPDATE, DELETE commands as one transaction, so they share one commit.
+    A failing statement leaves no trace and does not stop the others.
+    Returns SUCCESS followed by one result per statement, OK or ERROR:<reason>, each escaped
+    as a SELECT's values are, so a '|' in a reason does not split it.
+    """
+    results = []
+    try:
+        with db_lock:
+            try:
+                for statement in statements:
+                    try:
+                        db_conn.execute(statement)
+                        results.append("OK")
+                    except sqlite3.Error as e:
+                        results.append(encode_value(f"ERROR:{str(e)}"))
+                db_conn.commit()
+            except sqlite3.Error:
+                db_conn.rollback()
+                raise
+        return "SUCCESS|" + "|".join(results)
+    except sqlite3.Error as e:
+        return f"ERROR|{str(e)}"
+
+
+def encode_value(value) -> str:
+    """
+    Encodes one column of a SELECT's result: NULL as \\N, and a backslash or '|' in a value
+    escaped by a backslash, so the columns split apart at every other '|'.
+    """
+    if value is None:
+        return "\\N"
+    return str(value).replace("\\", "\\\\").replace("|", "\\|")
+
+
 def execute_sql_query(sql_query: str) -> str:
     """
     Executes SELECT queries.
     """
     try:
         with db_lock:
-            conn = sqlite3.connect(DB_FILE)
-            c = conn.cursor()
+            c = db_conn.cursor()
             c.execute(sql_query)
             rows = c.fetchall()
-            conn.close()
         
         # Format: SUCCESS|col1|col2|col3...
-        # splits the whole string by '|' and iterates through it linearly.
+        # splits the whole string at every '|' not escaped by encode_value and iterates through it linearly.
         flat_list = []
         for row in rows:
             for col in row:
-                flat_list.append(str(col))
+                flat_list.append(encode_value(col))
         
         # If no results, just return SUCCESS| (empty list)
         return "SUCCESS|" + "|".join(flat_list)
@@ -120,8 +163,7 @@ def print_server_report():
     """
     try:
         with db_lock:
-            conn = sqlite3.connect(DB_FILE, timeout=10)
-            c = conn.cursor()
+            c = db_conn.cursor()
             
             print("\n" + "="*40)
             print("       SERVER REPORT       ")
@@ -159,7 +201,6 @@ def print_server_report():
                 print(f"    {row[1]} (by {row[0]} in {row[2]}) at {row[3]}")
             
             print("\n" + "="*40 + "\n")
-            conn.close()
             return "SUCCESS|Report printed to server console"
 
     except Exception as e:
@@ -187,6 +228,10 @@ def handle_client(client_socket: socket.socket, addr):
             if clean_msg == "REPORT":
                 response = print_server_report()
 
+            elif message.startswith(BATCH_HEADER):
+                statements = message[len(BATCH_HEADER):].split(BATCH_SEPARATOR)
+                response = execute_sql_batch(statements)
+
             elif clean_msg.startswith("SELECT"):
                 response = execute_sql_query(message)
                 
@@ -0,0 +1,100 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.srv.ActorThreadPool;
+import bgu.spl.net.srv.Histogram;
+import bgu.spl.net.srv.Mailbox;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Submit-to-completion throughput of the actor pool under contention.
+ * Four benchmark threads play the selector loops and post tasks to random actors while
+ * the pool's workers, 4, 16 or 64 of them, run the tasks and complete the actors.
+ * Compares the lock-free mailboxes, also while recording every task's wait in a histogram
+ * as the reactor does, with the former synchronized/read-write-lock pool.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class ActorThreadPoolBenchmark {
+
+    private static final int ACTORS = 1024;
+    private static final int TASKS_PER_OP = 256;
+
+    @Param({"mailbox", "mailbox-metrics", "legacy"})
+    public String pool;
+
+    @Param({"4", "16", "64"})
+    public int threads;
+
+    private ActorThreadPool mailboxPool;
+    private LegacyActorThreadPool legacyPool;
+    private Mailbox[] mailboxes;
+    private Object[] legacyActors;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        mailboxes = new Mailbox[ACTORS];
+        legacyActors = new Object[ACTORS];
+        for (int i = 0; i < ACTORS; i++) {
+            mailboxes[i] = new Mailbox();
+            legacyActors[i] = new Object();
+        }
+        if (pool.equals("mailbox")) {
+            mailboxPool = new ActorThreadPool(threads);
+        } else if (pool.equals("mailbox-metrics")) {
+            mailboxPool = new ActorThreadPool(Executors.newFixedThreadPool(threads), new Histogram());
+        } else {
+            legacyPool = new LegacyActorThreadPool(threads);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (mailboxPool != null) mailboxPool.shutdown();
+        if (legacyPool != null) legacyPool.shutdown();
+    }
+
+    /**
+     * Posts a batch of tasks and waits until all of them ran.
+     */
+    @Benchmark
+    @OperationsPerInvocation(TASKS_PER_OP)
+    public long submitAndComplete() throws InterruptedException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        AtomicLong done = new AtomicLong();
+        Runnable task = done::incrementAndGet;
+
+        for (int i = 0; i < TASKS_PER_OP; i++) {
+            int actor = random.nextInt(ACTORS);
+            if (mailboxPool != null) {
+                mailboxPool.submit(mailboxes[actor], task);
+            } else {
+                legacyPool.submit(legacyActors[actor], task);
+            }
+        }
+        while (done.get() < TASKS_PER_OP) {
+            Thread.onSpinWait();
+        }
+        return done.get();
+    }
+}
@@ -0,0 +1,91 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.api.EncodedBroadcast;
+import bgu.spl.net.impl.stomp.StompCommand;
+import bgu.spl.net.impl.stomp.StompEncoderDecoder;
+import bgu.spl.net.impl.stomp.StompFrame;
+import bgu.spl.net.srv.ConnectionHandler;
+import bgu.spl.net.srv.ConnectionsImpl;
+import bgu.spl.net.srv.SlowConsumerPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of ConnectionsImpl.send to a channel of 1, 100 or 10k subscribers, delivered on the
+ * sending thread: the subscribers are looked up, the message is encoded once and every stub
+ * handler builds its subscription header, as a connection handler queueing it would.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BroadcastBenchmark {
+
+    private static final String CHANNEL = "/germany_japan";
+
+    @Param({"1", "100", "10000"})
+    public int subscribers;
+
+    private ConnectionsImpl<StompFrame> connections;
+    private StompFrame message;
+    private long delivered;
+
+    @Setup
+    public void setup() {
+        connections = new ConnectionsImpl<>(SlowConsumerPolicy.unbounded(), new StompEncoderDecoder());
+        ConnectionHandler<StompFrame> handler = new StubHandler();
+        for (int i = 0; i < subscribers; i++) {
+            connections.addConnection(i, handler);
+            connections.subscribe(CHANNEL, i, String.valueOf(i));
+        }
+        StringBuilder body = new StringBuilder();
+        while (body.length() < 512) {
+            body.append("user: alice\nteam a: Germany\nteam b: Japan\nevent name: goal!!!!\ntime: 1980\n");
+        }
+        message = StompFrame.builder(StompCommand.MESSAGE)
+                .header("subscription", "0")
+                .header("message-id", "1700000000000")
+                .header("destination", CHANNEL)
+                .body(body.toString())
+                .build();
+    }
+
+    @Benchmark
+    public long send() {
+        connections.send(CHANNEL, message);
+        return delivered;
+    }
+
+    /**
+     * Takes a delivery the way a connection handler does, short of queueing it.
+     */
+    private final class StubHandler implements ConnectionHandler<StompFrame> {
+
+        @Override
+        public void send(StompFrame msg) {
+            delivered++;
+        }
+
+        @Override
+        public void publish(EncodedBroadcast msg, String subscriptionId) {
+            delivered += msg.header(subscriptionId).remaining() + msg.body().remaining();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package bgu.spl.net.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The String based frame handling from before StompFrame: the codec decoded every frame
+ * to a String, and the protocol split it into lines, split it again into headers and
+ * searched it once more for the body. Kept as the baseline of {@link StompParseBenchmark}.
+ */
+public final class LegacyStompParsing {
+
+    private LegacyStompParsing() {
+    }
+
+    public static String decode(byte[] frame, int length) {
+        return new String(frame, 0, length, StandardCharsets.UTF_8);
+    }
+
+    public static String command(String message) {
+        String[] lines = message.split("\n");
+        return lines.length == 0 ? null : lines[0].trim();
+    }
+
+    public static Map<String, String> parseHeaders(String message) {
+        Map<String, String> headers = new HashMap<>();
+        String[] lines = message.split("\n");
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i].trim();
+            if (line.isEmpty()) break;
+            String[] parts = line.split(":", 2);
+            if (parts.length == 2) {
+                headers.put(parts[0].trim(), parts[1].trim());
+            }
+        }
+        return headers;
+    }
+
+    public static String extractBody(String message) {
+        int splitIndex = message.indexOf("\n\n");
+        if (splitIndex == -1) return "";
+        return message.substring(splitIndex + 2);
+    }
+}
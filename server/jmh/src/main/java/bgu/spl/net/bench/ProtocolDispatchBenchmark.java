@@ -0,0 +1,154 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.impl.stomp.StompEncoderDecoder;
+import bgu.spl.net.impl.stomp.StompFrame;
+import bgu.spl.net.impl.stomp.StompMessagingProtocolImpl;
+import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.Metrics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+
+/**
+ * Cost of StompMessagingProtocolImpl.process per command, for frames already decoded, with
+ * connections that only take note of what the protocol sends. Runs with or without the
+ * metrics recording every command's latency.
+ * The database keeps users in memory and mirrors nothing to the SQL server, so CONNECT measures
+ * the protocol and the login itself; it is measured together with the DISCONNECT logging out again.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Dstomp.sql.mirror=false", "-Dstomp.users.journal=none"})
+@State(Scope.Thread)
+public class ProtocolDispatchBenchmark {
+
+    @Param({"false", "true"})
+    public boolean metrics;
+
+    private StubConnections connections;
+    private StompMessagingProtocolImpl loggedIn;
+    private StompMessagingProtocolImpl connecting;
+    private int nextConnectionId = 1_000_000;
+    private StompFrame connect;
+    private StompFrame disconnect;
+    private StompFrame send;
+    private StompFrame subscribe;
+    private StompFrame unsubscribe;
+
+    @Setup
+    public void setup() {
+        connections = new StubConnections(metrics ? new Metrics() : null);
+        connect = decode("CONNECT\naccept-version:1.2\nhost:stomp.cs.bgu.ac.il\nlogin:bench\npasscode:films\n\n");
+        disconnect = decode("DISCONNECT\nreceipt:77\n\n");
+        send = decode("SEND\ndestination:/germany_japan\n\nuser: alice\nteam a: Germany\nteam b: Japan\n"
+                + "event name: goal!!!!\ntime: 1980\ngeneral game updates:\n    active: true\n");
+        subscribe = decode("SUBSCRIBE\ndestination:/germany_japan\nid:17\nreceipt:73\n\n");
+        unsubscribe = decode("UNSUBSCRIBE\nid:17\nreceipt:82\n\n");
+
+        loggedIn = new StompMessagingProtocolImpl(connections);
+        loggedIn.start(1, connections);
+        loggedIn.process(decode("CONNECT\naccept-version:1.2\nhost:stomp.cs.bgu.ac.il\nlogin:resident\npasscode:films\n\n"));
+        connecting = new StompMessagingProtocolImpl(connections);
+    }
+
+    private static StompFrame decode(String frame) {
+        List<StompFrame> frames = new ArrayList<>();
+        new StompEncoderDecoder().decode(ByteBuffer.wrap((frame + "\u0000").getBytes(StandardCharsets.UTF_8)), frames::add);
+        return frames.get(0);
+    }
+
+    @Benchmark
+    public long send() {
+        loggedIn.process(send);
+        return connections.sent;
+    }
+
+    @Benchmark
+    public long subscribe() {
+        loggedIn.process(subscribe);
+        return connections.sent;
+    }
+
+    @Benchmark
+    public long unsubscribe() {
+        loggedIn.process(unsubscribe);
+        return connections.sent;
+    }
+
+    @Benchmark
+    public long connectAndDisconnect() {
+        connecting.start(nextConnectionId++, connections);
+        connecting.process(connect);
+        connecting.process(disconnect);
+        return connections.sent;
+    }
+
+    /**
+     * Counts the bytes of what the protocol sends, every client being subscribed to everything.
+     */
+    private static final class StubConnections implements Connections<StompFrame> {
+
+        private final Metrics metrics;
+        private final StompEncoderDecoder encoder = new StompEncoderDecoder();
+        long sent;
+
+        StubConnections(Metrics metrics) {
+            this.metrics = metrics;
+        }
+
+        @Override
+        public boolean send(int connectionId, StompFrame msg) {
+            sent += encoder.encode(msg).length;
+            return true;
+        }
+
+        @Override
+        public void send(String channel, StompFrame msg) {
+            sent += encoder.encode(msg).length;
+        }
+
+        @Override
+        public void send(String channel, LongFunction<StompFrame> message) {
+            send(channel, message.apply(-1));
+        }
+
+        @Override
+        public void disconnect(int connectionId) {
+        }
+
+        @Override
+        public void subscribe(String channel, int connectionId, String subscriptionId) {
+        }
+
+        @Override
+        public void unsubscribe(String subscriptionId, int connectionId) {
+        }
+
+        @Override
+        public boolean isSubscribed(String channel, int connectionId) {
+            return true;
+        }
+
+        @Override
+        public Metrics metrics() {
+            return metrics;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.impl.stomp.StompEncoderDecoder;
+import bgu.spl.net.impl.stomp.StompFrame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decode throughput of report-sized SEND frames, read in 8k chunks as the handlers do,
+ * byte by byte through decodeNextByte versus the bulk decode(ByteBuffer, Consumer).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class StompDecodeBenchmark {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    @Param({"512", "4096", "32768"})
+    public int bodySize;
+
+    private ByteBuffer wire;
+    private StompEncoderDecoder decoder;
+
+    @Setup
+    public void setup() {
+        StringBuilder body = new StringBuilder();
+        while (body.length() < bodySize) {
+            body.append("user: alice\nteam a: Germany\nteam b: Japan\nevent name: goal!!!!\ntime: 1980\n");
+        }
+        String frame = "SEND\ndestination:/germany_japan\nfile:events1.json\nreceipt:7\n\n" + body + "\u0000";
+        wire = ByteBuffer.wrap(frame.getBytes(StandardCharsets.UTF_8));
+        decoder = new StompEncoderDecoder();
+    }
+
+    @Benchmark
+    public void perByte(Blackhole bh) {
+        ByteBuffer buf = wire.duplicate();
+        while (buf.hasRemaining()) {
+            StompFrame msg = decoder.decodeNextByte(buf.get());
+            if (msg != null) {
+                bh.consume(msg);
+            }
+        }
+    }
+
+    @Benchmark
+    public void bulk(Blackhole bh) {
+        ByteBuffer buf = wire.duplicate();
+        while (buf.hasRemaining()) {
+            ByteBuffer chunk = buf.slice();
+            chunk.limit(Math.min(CHUNK_SIZE, chunk.remaining()));
+            buf.position(buf.position() + chunk.remaining());
+            decoder.decode(chunk, bh::consume);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.api.EncodedBroadcast;
+import bgu.spl.net.impl.stomp.StompCommand;
+import bgu.spl.net.impl.stomp.StompEncoderDecoder;
+import bgu.spl.net.impl.stomp.StompFrame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode throughput of the MESSAGE frames a SEND of a report is broadcast as: building the
+ * frame around the SEND's body, which is where its bytes are written, splitting it once for
+ * all subscribers, and the header every subscriber gets on top of the shared body.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class StompEncodeBenchmark {
+
+    @Param({"512", "4096", "32768"})
+    public int bodySize;
+
+    private ByteBuffer body;
+    private StompFrame message;
+    private EncodedBroadcast broadcast;
+    private StompEncoderDecoder encoder;
+
+    @Setup
+    public void setup() {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < bodySize) {
+            text.append("user: alice\nteam a: Germany\nteam b: Japan\nevent name: goal!!!!\ntime: 1980\n");
+        }
+        body = ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8));
+        encoder = new StompEncoderDecoder();
+        message = build();
+        broadcast = encoder.encodeBroadcast(message);
+    }
+
+    private StompFrame build() {
+        return StompFrame.builder(StompCommand.MESSAGE)
+                .header("subscription", "0")
+                .header("message-id", "1700000000000")
+                .header("destination", "/germany_japan")
+                .body(body.duplicate())
+                .body("\n")
+                .build();
+    }
+
+    @Benchmark
+    public byte[] buildAndEncode() {
+        return encoder.encode(build());
+    }
+
+    @Benchmark
+    public EncodedBroadcast encodeBroadcast() {
+        return encoder.encodeBroadcast(message);
+    }
+
+    @Benchmark
+    public void subscriberHeader(Blackhole bh) {
+        bh.consume(broadcast.header("17"));
+        bh.consume(broadcast.body());
+    }
+}
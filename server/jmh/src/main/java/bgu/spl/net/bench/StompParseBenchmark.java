@@ -0,0 +1,76 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.impl.stomp.StompEncoderDecoder;
+import bgu.spl.net.impl.stomp.StompFrame;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning the bytes of one SEND frame into what the protocol reads from it:
+ * the command and the destination, receipt and file headers, and the body.
+ * Compares the String split parsing the protocol used to do with the single-pass StompFrame.
+ * Run with the GC profiler to see the allocations per frame:
+ *     java -jar target/benchmarks.jar StompParseBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class StompParseBenchmark {
+
+    @Param({"64", "4096"})
+    public int bodySize;
+
+    private byte[] wire;
+    private StompEncoderDecoder decoder;
+
+    @Setup
+    public void setup() {
+        StringBuilder body = new StringBuilder();
+        while (body.length() < bodySize) {
+            body.append("user: alice\nteam a: Germany\nteam b: Japan\nevent name: goal!!!!\ntime: 1980\n");
+        }
+        String frame = "SEND\ndestination:/germany_japan\nfile:events1.json\nreceipt:7\n\n" + body + "\u0000";
+        wire = frame.getBytes(StandardCharsets.UTF_8);
+        decoder = new StompEncoderDecoder();
+    }
+
+    @Benchmark
+    public void legacy(Blackhole bh) {
+        String message = LegacyStompParsing.decode(wire, wire.length - 1);
+        bh.consume(LegacyStompParsing.command(message));
+        Map<String, String> headers = LegacyStompParsing.parseHeaders(message);
+        bh.consume(headers.get("destination"));
+        bh.consume(headers.get("receipt"));
+        bh.consume(headers.get("file"));
+        bh.consume(LegacyStompParsing.extractBody(message));
+    }
+
+    @Benchmark
+    public void frame(Blackhole bh) {
+        decoder.decode(ByteBuffer.wrap(wire), frame -> {
+            bh.consume(frame.command());
+            bh.consume(frame.header("destination"));
+            bh.consume(frame.header("receipt"));
+            bh.consume(frame.header("file"));
+            bh.consume(frame.bodyBuffer());
+        });
+    }
+}
@@ -0,0 +1,114 @@
+package bgu.spl.net.bench;
+
+import bgu.spl.net.api.EncodedBroadcast;
+import bgu.spl.net.impl.stomp.StompCommand;
+import bgu.spl.net.impl.stomp.StompEncoderDecoder;
+import bgu.spl.net.impl.stomp.StompFrame;
+import bgu.spl.net.srv.ConnectionHandler;
+import bgu.spl.net.srv.ConnectionsImpl;
+import bgu.spl.net.srv.SlowConsumerPolicy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Cost of one SEND to a destination while 100k wildcard subscriptions are registered.
+ * Every connection subscribes to "/league{n}/team{i}_*", a tenth of them also to
+ * "/league{n}/**". Compares the segment trie behind ConnectionsImpl with matching every
+ * pattern as a regular expression, the naive way of supporting wildcards.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class WildcardMatchBenchmark {
+
+    private static final int LEAGUES = 1000;
+
+    @Param({"100000"})
+    public int patterns;
+
+    private ConnectionsImpl<StompFrame> connections;
+    private List<Pattern> linear;
+    private StompFrame message;
+    private long delivered;
+
+    @Setup
+    public void setup() {
+        connections = new ConnectionsImpl<>(SlowConsumerPolicy.unbounded(), new StompEncoderDecoder());
+        linear = new ArrayList<>();
+        ConnectionHandler<StompFrame> handler = new CountingHandler();
+        for (int i = 0; i < patterns; i++) {
+            connections.addConnection(i, handler);
+            subscribe(i, "/league" + (i % LEAGUES) + "/team" + i + "_*", "a");
+            if (i % 10 == 0) {
+                subscribe(i, "/league" + (i % LEAGUES) + "/**", "b");
+            }
+        }
+        message = StompFrame.builder(StompCommand.MESSAGE)
+                .header("subscription", "0")
+                .header("message-id", "1")
+                .body("goal\n")
+                .build();
+    }
+
+    private void subscribe(int connectionId, String pattern, String subscriptionId) {
+        connections.subscribe(pattern, connectionId, subscriptionId);
+        linear.add(Pattern.compile(pattern.replace("**", ".+").replace("*", "[^/]*")));
+    }
+
+    private String destination() {
+        int i = ThreadLocalRandom.current().nextInt(patterns);
+        return "/league" + (i % LEAGUES) + "/team" + i + "_germany";
+    }
+
+    @Benchmark
+    public long trie() {
+        connections.send(destination(), message);
+        return delivered;
+    }
+
+    @Benchmark
+    public long linear() {
+        String destination = destination();
+        for (Pattern pattern : linear) {
+            if (pattern.matcher(destination).matches()) {
+                delivered++;
+            }
+        }
+        return delivered;
+    }
+
+    private final class CountingHandler implements ConnectionHandler<StompFrame> {
+
+        @Override
+        public void send(StompFrame msg) {
+            delivered++;
+        }
+
+        @Override
+        public void publish(EncodedBroadcast msg, String subscriptionId) {
+            delivered++;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
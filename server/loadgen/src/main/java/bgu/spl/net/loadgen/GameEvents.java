@@ -0,0 +1,236 @@
+package bgu.spl.net.loadgen;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The events of a game file such as client/data/events1.json, turned into the report bodies the
+ * C++ client sends for them, less the user line each sender puts in front.
+ * The file is read with a small JSON parser of its own, since the server has no JSON library.
+ */
+final class GameEvents {
+
+    final String teamA;
+    final String teamB;
+    // One report body per event, from the "team a" line on
+    final List<String> reports;
+
+    private GameEvents(String teamA, String teamB, List<String> reports) {
+        this.teamA = teamA;
+        this.teamB = teamB;
+        this.reports = reports;
+    }
+
+    /**
+     * @throws IOException if the file could not be read or is not a game's events
+     */
+    @SuppressWarnings("unchecked")
+    static GameEvents read(Path file) throws IOException {
+        Object parsed;
+        try {
+            parsed = new Parser(new String(Files.readAllBytes(file), StandardCharsets.UTF_8)).document();
+        } catch (IllegalArgumentException ex) {
+            throw new IOException(file + " is not valid JSON: " + ex.getMessage());
+        }
+        if (!(parsed instanceof Map) || !(((Map<String, Object>) parsed).get("events") instanceof List)) {
+            throw new IOException(file + " holds no events");
+        }
+        Map<String, Object> game = (Map<String, Object>) parsed;
+        String teamA = text(game.get("team a"));
+        String teamB = text(game.get("team b"));
+
+        List<String> reports = new ArrayList<>();
+        for (Object element : (List<Object>) game.get("events")) {
+            Map<String, Object> event = (Map<String, Object>) element;
+            // The same lines in the same order as StompProtocol::sendReport
+            StringBuilder body = new StringBuilder();
+            body.append("team a:").append(teamA).append('\n');
+            body.append("team b:").append(teamB).append('\n');
+            body.append("event name:").append(text(event.get("event name"))).append('\n');
+            body.append("time:").append(text(event.get("time"))).append('\n');
+            updates(body, "general game updates", event);
+            updates(body, "team a updates", event);
+            updates(body, "team b updates", event);
+            body.append("description:\n").append(text(event.get("description")));
+            reports.add(body.toString());
+        }
+        if (reports.isEmpty()) {
+            throw new IOException(file + " holds no events");
+        }
+        return new GameEvents(teamA, teamB, reports);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void updates(StringBuilder body, String name, Map<String, Object> event) {
+        body.append(name).append(":\n");
+        Object updates = event.get(name);
+        if (updates instanceof Map) {
+            // Sorted by name, as the client's std::map has them
+            for (Map.Entry<String, Object> update : new TreeMap<>((Map<String, Object>) updates).entrySet()) {
+                body.append(update.getKey()).append(':').append(text(update.getValue())).append('\n');
+            }
+        }
+    }
+
+    private static String text(Object value) {
+        return value == null ? "" : value.toString();
+    }
+
+    /**
+     * Parses JSON into maps, lists and strings. Numbers, booleans and null are kept as the text
+     * they were written as, the way the client prints them.
+     */
+    private static final class Parser {
+
+        private final String json;
+        private int pos = 0;
+
+        Parser(String json) {
+            this.json = json;
+        }
+
+        Object document() {
+            Object value = value();
+            skipWhitespace();
+            if (pos != json.length()) {
+                throw error("unexpected text after the document");
+            }
+            return value;
+        }
+
+        private Object value() {
+            skipWhitespace();
+            if (pos == json.length()) {
+                throw error("unexpected end");
+            }
+            char c = json.charAt(pos);
+            if (c == '{') {
+                return object();
+            } else if (c == '[') {
+                return array();
+            } else if (c == '"') {
+                return string();
+            }
+            int start = pos;
+            while (pos < json.length() && ",}] \t\r\n".indexOf(json.charAt(pos)) < 0) {
+                pos++;
+            }
+            if (start == pos) {
+                throw error("unexpected '" + c + "'");
+            }
+            return json.substring(start, pos);
+        }
+
+        private Map<String, Object> object() {
+            Map<String, Object> object = new LinkedHashMap<>();
+            pos++; // {
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                return object;
+            }
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') {
+                    throw error("expected a member name");
+                }
+                String name = string();
+                skipWhitespace();
+                expect(':');
+                object.put(name, value());
+                skipWhitespace();
+                if (peek() == ',') {
+                    pos++;
+                } else {
+                    expect('}');
+                    return object;
+                }
+            }
+        }
+
+        private List<Object> array() {
+            List<Object> array = new ArrayList<>();
+            pos++; // [
+            skipWhitespace();
+            if (peek() == ']') {
+                pos++;
+                return array;
+            }
+            while (true) {
+                array.add(value());
+                skipWhitespace();
+                if (peek() == ',') {
+                    pos++;
+                } else {
+                    expect(']');
+                    return array;
+                }
+            }
+        }
+
+        private String string() {
+            StringBuilder text = new StringBuilder();
+            pos++; // "
+            while (true) {
+                if (pos >= json.length()) {
+                    throw error("unterminated string");
+                }
+                char c = json.charAt(pos++);
+                if (c == '"') {
+                    return text.toString();
+                }
+                if (c != '\\') {
+                    text.append(c);
+                    continue;
+                }
+                if (pos >= json.length()) {
+                    throw error("unterminated string");
+                }
+                char escaped = json.charAt(pos++);
+                switch (escaped) {
+                    case 'n': text.append('\n'); break;
+                    case 't': text.append('\t'); break;
+                    case 'r': text.append('\r'); break;
+                    case 'b': text.append('\b'); break;
+                    case 'f': text.append('\f'); break;
+                    case 'u':
+                        if (pos + 4 > json.length()) {
+                            throw error("truncated unicode escape");
+                        }
+                        text.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+                        pos += 4;
+                        break;
+                    default: text.append(escaped); // " \ /
+                }
+            }
+        }
+
+        private void skipWhitespace() {
+            while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private char peek() {
+            return pos < json.length() ? json.charAt(pos) : '\0';
+        }
+
+        private void expect(char c) {
+            if (peek() != c) {
+                throw error("expected '" + c + "'");
+            }
+            pos++;
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at offset " + pos);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package bgu.spl.net.loadgen;
+
+import bgu.spl.net.srv.Histogram;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Loads a STOMP server on this machine with thousands of clients at once, which the C++ client,
+ * one user per process, cannot. Every client logs in as a user of its own and joins one of the
+ * game channels, then the clients report the events of a game file, as the client's report
+ * command does, at a fixed total rate. At the end the throughput, the latency from a SEND being
+ * written to each of its MESSAGE copies being read, and the errors are printed.
+ * The clients are spread over a few selector loops, stomp.loadgen.loops of them.
+ */
+public class LoadGenerator {
+
+    private static final long PHASE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 5) {
+            System.out.println("Usage: LoadGenerator <port> <clients> <channels> <reports per second> <seconds> [events file]");
+            return;
+        }
+        int port = Integer.parseInt(args[0]);
+        int clients = Integer.parseInt(args[1]);
+        int channels = Integer.parseInt(args[2]);
+        double rate = Double.parseDouble(args[3]);
+        long seconds = Long.parseLong(args[4]);
+        Path file = Path.of(args.length > 5 ? args[5] : "../../client/data/events1.json");
+        if (clients < 1 || channels < 1 || rate <= 0 || seconds < 1) {
+            System.out.println("clients, channels, rate and seconds must be positive");
+            return;
+        }
+
+        GameEvents events = GameEvents.read(file);
+        LoadStats stats = new LoadStats(channels);
+        int loopCount = Math.min(clients, Integer.getInteger("stomp.loadgen.loops",
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+        LoadLoop[] loops = new LoadLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new LoadLoop(events, file.getFileName().toString(), stats);
+        }
+
+        // Loopback only, connected one at a time so a short accept backlog is not overrun
+        InetSocketAddress server = new InetSocketAddress("127.0.0.1", port);
+        int opened = 0;
+        for (int i = 0; i < clients; i++) {
+            try {
+                SocketChannel chan = SocketChannel.open(server);
+                chan.socket().setTcpNoDelay(true);
+                loops[i % loopCount].add(chan, "load" + i, i % channels);
+                opened++;
+            } catch (IOException ex) {
+                stats.connectFailures.increment();
+                if (stats.connectFailures.sum() == 1) {
+                    System.err.println("Connecting client " + i + " failed: " + ex.getMessage());
+                }
+            }
+        }
+        Thread[] threads = new Thread[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            threads[i] = new Thread(loops[i], "loadgen-loop-" + i);
+            threads[i].start();
+        }
+
+        try {
+            System.out.println("Logging in " + opened + " clients");
+            for (LoadLoop loop : loops) {
+                loop.execute(loop::connectAll);
+            }
+            int expectedLogins = opened;
+            awaitCount(stats.loggedIn::sum, () -> expectedLogins - stats.errorFrames.sum() - stats.connectionsLost.sum(),
+                    PHASE_TIMEOUT_NANOS);
+
+            long loggedIn = stats.loggedIn.sum();
+            System.out.println("Subscribing " + loggedIn + " clients to " + channels + " channels");
+            for (LoadLoop loop : loops) {
+                loop.execute(loop::subscribeAll);
+            }
+            awaitCount(stats::subscribed, () -> loggedIn - stats.connectionsLost.sum(), PHASE_TIMEOUT_NANOS);
+
+            System.out.println("Reporting " + rate + " events per second for " + seconds + " seconds");
+            long start = System.nanoTime();
+            long end = start + TimeUnit.SECONDS.toNanos(seconds);
+            for (LoadLoop loop : loops) {
+                loop.execute(() -> loop.startSending(rate / loopCount, end));
+            }
+            TimeUnit.NANOSECONDS.sleep(end - System.nanoTime());
+            // The last reports are still on their way
+            awaitCount(stats.delivered::sum, stats.expected::sum, DRAIN_TIMEOUT_NANOS);
+            long lastDelivery = start;
+            for (LoadLoop loop : loops) {
+                lastDelivery = Math.max(lastDelivery, loop.lastDelivery());
+            }
+
+            for (LoadLoop loop : loops) {
+                loop.execute(loop::disconnectAll);
+            }
+            long subscribed = stats.subscribed();
+            awaitCount(stats.disconnected::sum, () -> loggedIn - stats.connectionsLost.sum(), DRAIN_TIMEOUT_NANOS);
+
+            report(clients, opened, channels, rate, seconds, subscribed, end - start, lastDelivery - start, stats);
+        } finally {
+            for (int i = 0; i < loopCount; i++) {
+                loops[i].close();
+                threads[i].join();
+            }
+        }
+    }
+
+    /**
+     * Waits until the count reaches the target, or the timeout passes.
+     */
+    private static void awaitCount(LongSupplier count, LongSupplier target, long timeoutNanos) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (count.getAsLong() < target.getAsLong() && System.nanoTime() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+    }
+
+    private static void report(int clients, int opened, int channels, double rate, long seconds, long subscribed,
+                               long sendingNanos, long deliveringNanos, LoadStats stats) {
+        double sendingSeconds = sendingNanos / 1e9;
+        double deliveringSeconds = Math.max(deliveringNanos, 1) / 1e9;
+        Histogram.Snapshot latency = stats.latency.snapshot();
+
+        System.out.println("=".repeat(80));
+        System.out.println("LOAD REPORT");
+        System.out.println("=".repeat(80));
+        System.out.printf("Clients:    %d of %d connected, %d logged in, %d subscribed to %d channels%n",
+                opened, clients, stats.loggedIn.sum(), subscribed, channels);
+        System.out.printf("Sent:       %d reports in %ds, %.1f/s of %.1f/s asked%n",
+                stats.sent.sum(), seconds, stats.sent.sum() / sendingSeconds, rate);
+        System.out.printf("Delivered:  %d of %d MESSAGE copies, %.1f/s%n",
+                stats.delivered.sum(), stats.expected.sum(), stats.delivered.sum() / deliveringSeconds);
+        System.out.printf("Latency:    SEND to MESSAGE in us: p50=%d p90=%d p99=%d p999=%d max=%d (%d samples)%n",
+                latency.getP50() / 1000, latency.getP90() / 1000, latency.getP99() / 1000, latency.getP999() / 1000,
+                latency.getMax() / 1000, latency.getCount());
+        System.out.printf("Errors:     %d ERROR frames, %d connections lost, %d connects failed, %d reports skipped%n",
+                stats.errorFrames.sum(), stats.connectionsLost.sum(), stats.connectFailures.sum(), stats.skipped.sum());
+        IOException loopFailure = stats.loopFailure.get();
+        if (loopFailure != null) {
+            System.out.printf("            %d loops failed, the first with: %s%n", stats.loopsFailed.sum(), loopFailure);
+        }
+        System.out.println("=".repeat(80));
+    }
+}
@@ -0,0 +1,391 @@
+package bgu.spl.net.loadgen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A selector loop driving a share of the load generator's clients on one thread: it writes their
+ * frames, paces their reports and reads everything the server sends them.
+ * Other threads hand it work through {@link #execute}, as the server's ReactorLoop does.
+ */
+final class LoadLoop implements Runnable {
+
+    private static final byte[] SENT_MARK = "loadgen-sent:".getBytes(StandardCharsets.US_ASCII);
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+    private static final long MAX_PENDING_BYTES = 1 << 20;
+    // A loop that fell further behind its schedule than this stops catching up
+    private static final long MAX_LAG_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Error frames printed, the rest are only counted
+    private static final int PRINTED_ERRORS = 5;
+
+    private final Selector selector;
+    private final GameEvents events;
+    private final String file;
+    private final LoadStats stats;
+    private final List<Client> clients = new ArrayList<>();
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    private volatile boolean running = true;
+
+    // Pacing of the reports, only touched by the loop thread
+    private boolean sending = false;
+    private long interval;
+    private long nextSend;
+    private long sendUntil;
+    private int cursor = 0;
+    private volatile long lastDelivery;
+
+    LoadLoop(GameEvents events, String file, LoadStats stats) throws IOException {
+        this.selector = Selector.open();
+        this.events = events;
+        this.file = file;
+        this.stats = stats;
+    }
+
+    /**
+     * Adds a connected client; only before the loop runs.
+     */
+    void add(SocketChannel chan, String user, int channel) throws IOException {
+        chan.configureBlocking(false);
+        Client client = new Client(chan, user, channel, "/" + events.teamA + "_" + events.teamB + "_" + channel);
+        client.key = chan.register(selector, SelectionKey.OP_READ, client);
+        clients.add(client);
+    }
+
+    /**
+     * Runs the task on the loop thread.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void connectAll() {
+        for (Client client : clients) {
+            write(client, "CONNECT\naccept-version:1.2\nhost:stomp.cs.bgu.ac.il\nlogin:" + client.user
+                    + "\npasscode:load\n\n\0");
+        }
+    }
+
+    void subscribeAll() {
+        for (Client client : clients) {
+            if (client.loggedIn) {
+                write(client, "SUBSCRIBE\ndestination:" + client.destination + "\nid:" + client.channel
+                        + "\nreceipt:subscribed\n\n\0");
+            }
+        }
+    }
+
+    /**
+     * Sends reports at the given rate, round robin over the clients, until the given time.
+     */
+    void startSending(double reportsPerSecond, long untilNanos) {
+        interval = (long) (TimeUnit.SECONDS.toNanos(1) / reportsPerSecond);
+        nextSend = System.nanoTime();
+        sendUntil = untilNanos;
+        sending = !clients.isEmpty();
+    }
+
+    void disconnectAll() {
+        for (Client client : clients) {
+            if (!client.closed) {
+                client.disconnecting = true;
+                write(client, "DISCONNECT\nreceipt:disconnected\n\n\0");
+            }
+        }
+    }
+
+    /**
+     * @return when the last MESSAGE was read, in System.nanoTime
+     */
+    long lastDelivery() {
+        return lastDelivery;
+    }
+
+    void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                long wait = sending ? nextSend - System.nanoTime() : 0;
+                if (sending && wait <= 0) {
+                    selector.selectNow();
+                } else {
+                    selector.select(sending ? Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)) : 0);
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    Client client = (Client) key.attachment();
+                    if (key.isValid() && key.isReadable()) {
+                        read(client);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(client);
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                if (sending) {
+                    sendDue();
+                }
+            }
+        } catch (ClosedSelectorException ex) {
+            // closed
+        } catch (IOException ex) {
+            stats.loopsFailed.increment();
+            stats.loopFailure.compareAndSet(null, ex);
+            for (Client client : clients) {
+                lost(client);
+            }
+        } finally {
+            for (Client client : clients) {
+                closeClient(client);
+            }
+            try {
+                selector.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void sendDue() {
+        long now = System.nanoTime();
+        if (now >= sendUntil) {
+            sending = false;
+            return;
+        }
+        if (nextSend < now - MAX_LAG_NANOS) {
+            nextSend = now; // the schedule is lost, go on from here rather than burst
+        }
+        while (nextSend <= now) {
+            sendReport(now);
+            nextSend += interval;
+        }
+    }
+
+    private void sendReport(long now) {
+        for (int tried = 0; tried < clients.size(); tried++) {
+            Client client = clients.get(cursor);
+            cursor = (cursor + 1) % clients.size();
+            if (client.subscribed && !client.closed && client.pendingBytes < MAX_PENDING_BYTES) {
+                String report = events.reports.get(client.nextEvent++ % events.reports.size());
+                stats.expected.add(stats.subscribers.get(client.channel));
+                stats.sent.increment();
+                write(client, "SEND\ndestination:" + client.destination + "\nfile:" + file + "\n\n"
+                        + "loadgen-sent:" + now + "\nuser:" + client.user + "\n" + report + "\n\0");
+                return;
+            }
+        }
+        stats.skipped.increment();
+    }
+
+    private void write(Client client, String frame) {
+        if (client.closed) {
+            return;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(frame.getBytes(StandardCharsets.UTF_8));
+        try {
+            if (client.pending.isEmpty()) {
+                client.chan.write(buf);
+            }
+            if (buf.hasRemaining()) {
+                client.pending.add(buf);
+                client.pendingBytes += buf.remaining();
+                client.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException ex) {
+            lost(client);
+        }
+    }
+
+    private void flush(Client client) {
+        try {
+            while (!client.pending.isEmpty()) {
+                ByteBuffer buf = client.pending.peekFirst();
+                int written = client.chan.write(buf);
+                client.pendingBytes -= written;
+                if (buf.hasRemaining()) {
+                    return;
+                }
+                client.pending.pollFirst();
+            }
+            client.key.interestOps(SelectionKey.OP_READ);
+        } catch (IOException ex) {
+            lost(client);
+        }
+    }
+
+    private void read(Client client) {
+        readBuffer.clear();
+        int read;
+        try {
+            read = client.chan.read(readBuffer);
+        } catch (IOException ex) {
+            lost(client);
+            return;
+        }
+        if (read == -1) {
+            lost(client);
+            return;
+        }
+
+        // Frames end with NUL; a frame cut by the end of the read waits in the client's buffer
+        byte[] bytes = readBuffer.array();
+        int start = 0;
+        for (int i = 0; i < read; i++) {
+            if (bytes[i] != 0) {
+                continue;
+            }
+            if (client.frameLength == 0) {
+                frame(client, bytes, start, i);
+            } else {
+                client.append(bytes, start, i);
+                frame(client, client.frame, 0, client.frameLength);
+                client.frameLength = 0;
+            }
+            start = i + 1;
+        }
+        if (start < read) {
+            client.append(bytes, start, read);
+        }
+    }
+
+    private void frame(Client client, byte[] bytes, int start, int end) {
+        while (start < end && (bytes[start] == '\n' || bytes[start] == '\r')) {
+            start++; // EOLs between frames
+        }
+        if (startsWith(bytes, start, end, "MESSAGE")) {
+            long now = System.nanoTime();
+            stats.delivered.increment();
+            lastDelivery = now;
+            int mark = indexOf(bytes, start, end, SENT_MARK);
+            if (mark >= 0) {
+                stats.latency.record(now - parseLong(bytes, mark + SENT_MARK.length, end));
+            }
+        } else if (startsWith(bytes, start, end, "CONNECTED")) {
+            client.loggedIn = true;
+            stats.loggedIn.increment();
+        } else if (startsWith(bytes, start, end, "RECEIPT")) {
+            String frame = new String(bytes, start, end - start, StandardCharsets.UTF_8);
+            if (frame.contains("receipt-id:subscribed")) {
+                client.subscribed = true;
+                stats.subscribers.incrementAndGet(client.channel);
+            } else if (frame.contains("receipt-id:disconnected")) {
+                stats.disconnected.increment();
+                closeClient(client);
+            }
+        } else if (startsWith(bytes, start, end, "ERROR")) {
+            stats.errorFrames.increment();
+            if (stats.errorFrames.sum() <= PRINTED_ERRORS) {
+                System.err.println("ERROR frame for " + client.user + ":\n" + new String(bytes, start, end - start, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    private void lost(Client client) {
+        if (!client.closed && !client.disconnecting) {
+            stats.connectionsLost.increment();
+        }
+        closeClient(client);
+    }
+
+    private void closeClient(Client client) {
+        if (client.closed) {
+            return;
+        }
+        client.closed = true;
+        client.key.cancel();
+        try {
+            client.chan.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static boolean startsWith(byte[] bytes, int start, int end, String command) {
+        if (end - start < command.length()) {
+            return false;
+        }
+        for (int i = 0; i < command.length(); i++) {
+            if (bytes[start + i] != command.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOf(byte[] bytes, int start, int end, byte[] target) {
+        outer:
+        for (int i = start; i <= end - target.length; i++) {
+            for (int j = 0; j < target.length; j++) {
+                if (bytes[i + j] != target[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private static long parseLong(byte[] bytes, int start, int end) {
+        boolean negative = start < end && bytes[start] == '-';
+        long value = 0;
+        for (int i = negative ? start + 1 : start; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++) {
+            value = value * 10 + (bytes[i] - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    private static final class Client {
+
+        final SocketChannel chan;
+        final String user;
+        final int channel;
+        final String destination;
+        SelectionKey key;
+        final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+        long pendingBytes;
+        // The start of a frame the last read cut off
+        byte[] frame = new byte[0];
+        int frameLength;
+        int nextEvent;
+        boolean loggedIn;
+        boolean subscribed;
+        boolean disconnecting;
+        boolean closed;
+
+        Client(SocketChannel chan, String user, int channel, String destination) {
+            this.chan = chan;
+            this.user = user;
+            this.channel = channel;
+            this.destination = destination;
+        }
+
+        void append(byte[] bytes, int start, int end) {
+            int length = end - start;
+            if (frameLength + length > frame.length) {
+                frame = Arrays.copyOf(frame, Math.max(2 * frame.length, frameLength + length));
+            }
+            System.arraycopy(bytes, start, frame, frameLength, length);
+            frameLength += length;
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package bgu.spl.net.loadgen;
+
+import bgu.spl.net.srv.Histogram;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * What the clients of a load run counted, shared by all of its loops.
+ */
+final class LoadStats {
+
+    final LongAdder loggedIn = new LongAdder();
+    final LongAdder sent = new LongAdder();
+    // Copies the server should deliver for the reports sent: the subscribers of their channels
+    final LongAdder expected = new LongAdder();
+    final LongAdder delivered = new LongAdder();
+    final LongAdder disconnected = new LongAdder();
+    final LongAdder errorFrames = new LongAdder();
+    final LongAdder connectionsLost = new LongAdder();
+    final LongAdder connectFailures = new LongAdder();
+    // Reports not sent because the client still had a megabyte waiting to be written
+    final LongAdder skipped = new LongAdder();
+    // Loops stopped by an I/O failure of their selector, losing their clients, and the first such failure
+    final LongAdder loopsFailed = new LongAdder();
+    final AtomicReference<IOException> loopFailure = new AtomicReference<>();
+    // Nanoseconds from a SEND being written to each of its MESSAGE copies being read
+    final Histogram latency = new Histogram();
+    final AtomicIntegerArray subscribers;
+
+    LoadStats(int channels) {
+        this.subscribers = new AtomicIntegerArray(channels);
+    }
+
+    long subscribed() {
+        long subscribed = 0;
+        for (int i = 0; i < subscribers.length(); i++) {
+            subscribed += subscribers.get(i);
+        }
+        return subscribed;
+    }
+}
@@ -0,0 +1,14 @@
+package bgu.spl.net.api;
+
+/**
+ * Encodes a channel message once for all of its subscribers.
+ */
+public interface BroadcastEncoder<T> {
+
+    /**
+     * @param message the message published to a channel
+     * @return the message split into a per-subscription header and a body shared by every
+     * subscriber, or null if the message has no place for a subscription id
+     */
+    EncodedBroadcast encodeBroadcast(T message);
+}
@@ -0,0 +1,114 @@
+package bgu.spl.net.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+/**
+ * A channel message encoded once, to be delivered to many subscribers.
+ * The bytes sent to a subscriber are the prefix, its subscription id and then the shared body,
+ * so only the short header is built per subscriber while the body is never copied.
+ * A message may also have a compressed form, built once by the first subscriber asking for it.
+ */
+public final class EncodedBroadcast {
+
+    private final byte[] prefix;
+    private final byte[] body;
+    private final Supplier<EncodedBroadcast> compressor;
+    private volatile EncodedBroadcast compressed;
+    private volatile long compressionNanos; // written under this
+
+    /**
+     * @param prefix the bytes in front of the subscription id
+     * @param body the bytes behind the subscription id, up to the end of the encoded message
+     */
+    public EncodedBroadcast(byte[] prefix, byte[] body) {
+        this(prefix, body, null);
+    }
+
+    /**
+     * @param compressor builds the compressed form of the message, or gives null when it is not
+     * worth compressing; null if the message cannot be compressed
+     */
+    public EncodedBroadcast(byte[] prefix, byte[] body, Supplier<EncodedBroadcast> compressor) {
+        this.prefix = prefix;
+        this.body = body;
+        this.compressor = compressor;
+    }
+
+    /**
+     * @return the compressed form of the message, built on the first call, or this message itself
+     * when it is not compressed
+     */
+    public EncodedBroadcast compressed() {
+        EncodedBroadcast result = compressed;
+        if (result == null) {
+            synchronized (this) {
+                result = compressed;
+                if (result == null) {
+                    long start = System.nanoTime();
+                    result = compressor != null ? compressor.get() : null;
+                    compressionNanos = System.nanoTime() - start;
+                    compressed = result = result != null ? result : this;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the time building the compressed form took, to the first caller only, 0 to the others
+     */
+    public long takeCompressionNanos() {
+        if (compressionNanos == 0) {
+            return 0; // the common case, read without taking the lock every subscriber would wait on
+        }
+        synchronized (this) {
+            long nanos = compressionNanos;
+            compressionNanos = 0;
+            return nanos;
+        }
+    }
+
+    /**
+     * @return a new buffer holding the header of the given subscription, ready for reading
+     */
+    public ByteBuffer header(String subscriptionId) {
+        byte[] id = subscriptionId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(prefix.length + id.length);
+        header.put(prefix).put(id).flip();
+        return header;
+    }
+
+    /**
+     * @return a read-only view of the bytes in front of the subscription id with its own position
+     */
+    public ByteBuffer prefix() {
+        return ByteBuffer.wrap(prefix).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return a read-only view of the shared body with its own position
+     */
+    public ByteBuffer body() {
+        return ByteBuffer.wrap(body).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the number of bytes shared by all subscribers, the prefix and the body
+     */
+    public int size() {
+        return prefix.length + body.length;
+    }
+
+    /**
+     * writes the whole message of the given subscription to the stream
+     */
+    public void writeTo(OutputStream out, String subscriptionId) throws IOException {
+        out.write(prefix);
+        out.write(subscriptionId.getBytes(StandardCharsets.UTF_8));
+        out.write(body);
+    }
+}
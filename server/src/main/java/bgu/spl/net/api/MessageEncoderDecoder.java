@@ -1,5 +1,8 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -11,6 +14,24 @@ public interface MessageEncoderDecoder<T> {
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * decodes all the remaining bytes of the given buffer, passing every completed
+     * message to out. Bytes of a message that is not complete yet are kept for the next call.
+     * The default implementation feeds the bytes one by one to {@link #decodeNextByte(byte)};
+     * decoders override it to work on whole ranges at once.
+     *
+     * @param buf the bytes to decode, consumed up to its limit
+     * @param out receives the decoded messages in order
+     */
+    default void decode(ByteBuffer buf, Consumer<T> out) {
+        while (buf.hasRemaining()) {
+            T nextMessage = decodeNextByte(buf.get());
+            if (nextMessage != null) {
+                out.accept(nextMessage);
+            }
+        }
+    }
+
     /**
      * encodes the given message to bytes array
      *
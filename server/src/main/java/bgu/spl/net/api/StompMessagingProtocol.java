@@ -14,4 +14,12 @@ public interface StompMessagingProtocol<T>  {
      * @return true if the connection should be terminated
      */
     boolean shouldTerminate();
+
+    /**
+     * Called once the connection is gone without the client disconnecting: the client closed it,
+     * or stopped sending while heart-beats were expected. Releases what the connection held,
+     * as a DISCONNECT would.
+     */
+    default void connectionLost() {
+    }
 }
@@ -0,0 +1,219 @@
+package bgu.spl.net.impl.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Writes audit statements (logins, logouts, file uploads) to the SQL server behind the backs of
+ * the threads that submit them. Statements wait in a bounded queue and a writer thread sends
+ * them in batches, once batchSize are waiting or every flush interval, whichever comes first.
+ * A batch is one request and one transaction on the SQL server, so a login storm costs a
+ * commit per batch rather than one per statement.
+ * While the SQL server cannot be reached, statements are appended to a spill file without
+ * trying the server for each batch. The writer probes it once a flush interval, and once it
+ * answers sends the spilled statements ahead of any newer one, so the audit keeps its order.
+ * A submitter finding the queue full writes the queue out itself before queueing its statement.
+ */
+class AuditWriter {
+
+	private static final String PROBE = "SELECT 1";
+
+	private final SqlConnectionPool sqlPool;
+	private final ArrayBlockingQueue<String> queue;
+	private final int batchSize;
+	private final long flushIntervalNanos;
+	private final Path spillFile;
+	// Held while writing, so statements leave the queue and reach the server in order
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private final Thread writer;
+	// Whether statements go straight to the spill file, until the SQL server answers a probe
+	private boolean down; // guarded by writeLock
+	private long lastProbeNanos; // guarded by writeLock
+	private volatile boolean closed = false;
+
+	/**
+	 * @param capacity the number of statements the queue holds
+	 * @param batchSize the number of waiting statements that wakes the writer before the interval
+	 * @param flushIntervalMillis how long a statement waits at most before it is sent
+	 * @param spillFile where statements go while the SQL server is down
+	 */
+	AuditWriter(SqlConnectionPool sqlPool, int capacity, int batchSize, long flushIntervalMillis, Path spillFile) {
+		this.sqlPool = sqlPool;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.batchSize = batchSize;
+		this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+		this.spillFile = spillFile;
+		// Statements spilled by an earlier run go before any of this one
+		this.down = Files.exists(spillFile);
+		this.writer = new Thread(this::writeLoop, "audit-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Queues the statement and returns without waiting for the SQL server.
+	 */
+	void submit(String sql) {
+		while (!queue.offer(sql)) {
+			flush();
+		}
+		if (queue.size() >= batchSize) {
+			LockSupport.unpark(writer);
+		}
+	}
+
+	/**
+	 * Sends every statement submitted so far, or spills it if the SQL server is down.
+	 */
+	void flush() {
+		writeLock.lock();
+		try {
+			List<String> batch = new ArrayList<>(batchSize);
+			while (queue.drainTo(batch, batchSize) > 0) {
+				write(batch);
+				batch.clear();
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Stops the writer and flushes what is left, for shutdown.
+	 */
+	void close() {
+		closed = true;
+		LockSupport.unpark(writer);
+		try {
+			writer.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+	}
+
+	private void writeLoop() {
+		while (!closed) {
+			if (queue.size() < batchSize) {
+				LockSupport.parkNanos(this, flushIntervalNanos);
+			}
+			flush();
+			recover();
+		}
+	}
+
+	/**
+	 * While the SQL server is down, probes it at most once a flush interval. Once it answers,
+	 * sends the spilled statements; the queue waits meanwhile, as its statements are newer.
+	 */
+	private void recover() {
+		writeLock.lock();
+		try {
+			long now = System.nanoTime();
+			if (!down || now - lastProbeNanos < flushIntervalNanos) {
+				return;
+			}
+			lastProbeNanos = now;
+			try {
+				sqlPool.execute(PROBE);
+			} catch (IOException ex) {
+				return; // still down
+			}
+			List<String> spilled;
+			try {
+				spilled = Files.exists(spillFile) ? readSpill() : new ArrayList<>();
+			} catch (IOException ex) {
+				System.err.println("Audit spill file could not be read: " + ex.getMessage());
+				return;
+			}
+			int sent = send(spilled);
+			spill(spilled.subList(sent, spilled.size()), false);
+			down = sent < spilled.size();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	// Called with the write lock held
+	private void write(List<String> batch) {
+		if (down) {
+			spill(batch, true);
+			return;
+		}
+		int sent = send(batch);
+		if (sent < batch.size()) {
+			// Not down before, so there is no spill file for these to go after
+			spill(batch.subList(sent, batch.size()), true);
+			down = true;
+			lastProbeNanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Sends the statements in batches of batchSize. A statement the SQL server rejects is logged
+	 * and not sent again.
+	 * @return how many were sent before the SQL server could not be reached
+	 */
+	private int send(List<String> statements) {
+		int sent = 0;
+		try {
+			while (sent < statements.size()) {
+				List<String> chunk = statements.subList(sent, Math.min(sent + batchSize, statements.size()));
+				List<String> results = sqlPool.executeBatch(chunk);
+				for (int i = 0; i < results.size() && i < chunk.size(); i++) {
+					if (results.get(i).startsWith("ERROR")) {
+						System.err.println("Audit statement rejected, " + results.get(i) + ": " + chunk.get(i));
+					}
+				}
+				sent += chunk.size();
+			}
+		} catch (IOException ex) {
+			System.err.println("SQL Error: " + ex.getMessage() + ", spilling " + (statements.size() - sent) + " audit statements");
+		}
+		return sent;
+	}
+
+	private List<String> readSpill() throws IOException {
+		List<String> statements = new ArrayList<>();
+		String spilled = new String(Files.readAllBytes(spillFile), StandardCharsets.UTF_8);
+		int start = 0;
+		int end;
+		while ((end = spilled.indexOf('\0', start)) >= 0) {
+			statements.add(spilled.substring(start, end));
+			start = end + 1;
+		}
+		return statements;
+	}
+
+	/**
+	 * Writes the statements to the spill file, NUL terminated as on the wire.
+	 * @param append false to replace what the file held, true to add to it
+	 */
+	private void spill(List<String> statements, boolean append) {
+		try {
+			if (!append && statements.isEmpty()) {
+				Files.deleteIfExists(spillFile);
+				return;
+			}
+			try (OutputStream out = Files.newOutputStream(spillFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+				for (String sql : statements) {
+					out.write(sql.getBytes(StandardCharsets.UTF_8));
+					out.write('\0');
+				}
+			}
+		} catch (IOException ex) {
+			System.err.println("Audit statements lost, the spill file could not be written: " + ex.getMessage());
+		}
+	}
+}
@@ -1,23 +1,97 @@
 package bgu.spl.net.impl.data;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
 
 public class Database {
-	private final ConcurrentHashMap<String, User> userMap;
+	// The format of SQLite's datetime('now'), in UTC like it
+	private static final DateTimeFormatter SQL_DATETIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+	// The registered users, consulted on every login without going to the SQL server
+	private final UserStore users;
 	private final ConcurrentHashMap<Integer, User> connectionsIdMap;
 	private final String sqlHost;
 	private final int sqlPort;
+	// Persistent connections to the SQL server, so a login costs no TCP handshake
+	private final SqlConnectionPool sqlPool;
+	// Login, logout and file tracking statements, written behind the protocol's back to the SQL
+	// server, which mirrors the users for reports; null when stomp.sql.mirror is false
+	private final AuditWriter audit;
+	// The report's figures, updated on every login, logout and upload
+	private final ReportAggregates report = new ReportAggregates();
+	// Rows of history fetched per query while printing the report
+	private final int reportPageSize;
 
 	private Database() {
-		userMap = new ConcurrentHashMap<>();
 		connectionsIdMap = new ConcurrentHashMap<>();
 		// SQL server connection details
 		this.sqlHost = "127.0.0.1";
 		this.sqlPort = 7778;
+		this.sqlPool = new SqlConnectionPool(sqlHost, sqlPort,
+				Integer.getInteger("stomp.sql.connections", 8), Long.getLong("stomp.sql.healthcheck.millis", 30_000));
+		boolean sqlMirror = Boolean.parseBoolean(System.getProperty("stomp.sql.mirror", "true"));
+		users = userStore(sqlMirror);
+		if (sqlMirror) {
+			this.audit = new AuditWriter(sqlPool,
+					Integer.getInteger("stomp.audit.queue", 10_000),
+					Integer.getInteger("stomp.audit.batch", 256),
+					Long.getLong("stomp.audit.flush.millis", 200),
+					Path.of(System.getProperty("stomp.audit.spill", "audit-spill.sql")));
+			try {
+				seedReport();
+			} catch (RuntimeException e) {
+				// The report then counts from this start on; the server starts all the same
+				System.err.println("Report figures could not be seeded: " + e);
+			}
+			// Whatever is still queued is sent, or spilled, before the server exits
+			Runtime.getRuntime().addShutdownHook(new Thread(audit::close, "audit-shutdown"));
+		} else {
+			this.audit = null;
+		}
+		this.reportPageSize = Integer.getInteger("stomp.report.page", 1000);
+		Runtime.getRuntime().addShutdownHook(new Thread(users::close, "user-store-shutdown"));
+	}
+
+	/**
+	 * Opens the user store: the journal named by the system property stomp.users.journal,
+	 * synced every stomp.users.sync.millis, or memory only if the property is "none".
+	 * A journal started afresh is seeded once with the users the SQL server mirrors, if it does.
+	 */
+	private UserStore userStore(boolean sqlMirror) {
+		String journal = System.getProperty("stomp.users.journal", "users.journal");
+		if (journal.equals("none")) {
+			return new InMemoryUserStore();
+		}
+		try {
+			boolean fresh = !Files.exists(Path.of(journal));
+			UserStore store = new JournaledUserStore(Path.of(journal), Long.getLong("stomp.users.sync.millis", 1000));
+			if (fresh && sqlMirror) {
+				seedUsers(store);
+			}
+			return store;
+		} catch (IOException e) {
+			System.err.println("User journal " + journal + " could not be opened, users are kept in memory only: " + e.getMessage());
+			return new InMemoryUserStore();
+		}
+	}
+
+	/**
+	 * Registers the users the SQL server recorded before the journal existed, so they log in
+	 * with their passwords rather than being registered anew
+	 */
+	private void seedUsers(UserStore store) {
+		for (String[] row : rows(executeSQL("SELECT username, password FROM users"), 2)) {
+			store.putIfAbsent(new User(-1, row[0], row[1]));
+		}
 	}
 
 	public static Database getInstance() {
@@ -30,23 +104,8 @@ public class Database {
 	 * @return Result string from SQL server
 	 */
 	private String executeSQL(String sql) {
-		try (Socket socket = new Socket(sqlHost, sqlPort);
-			 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-			 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-			
-			// Send SQL with null terminator
-			out.print(sql + '\0');
-			out.flush();
-			
-			// Read response until null terminator
-			StringBuilder response = new StringBuilder();
-			int ch;
-			while ((ch = in.read()) != -1 && ch != '\0') {
-				response.append((char) ch);
-			}
-			
-			return response.toString();
-			
+		try {
+			return sqlPool.execute(sql);
 		} catch (Exception e) {
 			System.err.println("SQL Error: " + e.getMessage());
 			return "ERROR:" + e.getMessage();
@@ -57,16 +116,100 @@ public class Database {
 		return "SUCCESS|()"; // Mocked success response */
 	}
 
+	/**
+	 * Hands an audit statement to the SQL mirror, if there is one
+	 */
+	private void mirror(String sql) {
+		if (audit != null) {
+			audit.submit(sql);
+		}
+	}
+
+	/**
+	 * Loads the report's figures for what the SQL server recorded before this server started,
+	 * aggregated by the SQL server, so only this once does the report cost a pass over the history
+	 */
+	private void seedReport() {
+		for (String[] row : rows(executeSQL("SELECT username, registration_date FROM users"), 2)) {
+			report.registered(row[0], row[1]);
+		}
+		for (String[] row : rows(executeSQL(
+				"SELECT username, COUNT(*), MAX(login_time), MAX(logout_time) FROM login_history GROUP BY username"), 4)) {
+			long sessions = count(row, 1);
+			if (sessions >= 0) {
+				report.seedSessions(row[0], sessions, row[2], row[3]);
+			}
+		}
+		for (String[] row : rows(executeSQL("SELECT username, COUNT(*) FROM file_tracking GROUP BY username"), 2)) {
+			long uploads = count(row, 1);
+			if (uploads >= 0) {
+				report.seedUploads(row[0], uploads);
+			}
+		}
+		for (String[] row : rows(executeSQL("SELECT game_channel, COUNT(*) FROM file_tracking GROUP BY game_channel"), 2)) {
+			long uploads = count(row, 1);
+			if (uploads >= 0) {
+				report.seedChannel(row[0], uploads);
+			}
+		}
+	}
+
+	/**
+	 * @return the count in the given column of the row, or -1 if it is not one, the row being reported and skipped
+	 */
+	private static long count(String[] row, int column) {
+		try {
+			return Long.parseLong(row[column]);
+		} catch (NumberFormatException e) {
+			System.err.println("SQL Error: malformed row " + Arrays.toString(row));
+			return -1;
+		}
+	}
+
+	/**
+	 * Splits the response of a SELECT, its columns one after another, into rows
+	 * @param columns the number of columns selected
+	 * @return the rows, NULL columns being null; none if the statement failed or the response is malformed
+	 */
+	private static List<String[]> rows(String result, int columns) {
+		List<String[]> rows = new ArrayList<>();
+		if (!result.startsWith("SUCCESS|") || result.length() == "SUCCESS|".length()) {
+			if (result.startsWith("ERROR")) {
+				System.err.println("SQL Error: " + result);
+			}
+			return rows;
+		}
+		List<String> values = SqlConnectionPool.values(result.substring("SUCCESS|".length()));
+		if (values.size() % columns != 0) {
+			System.err.println("SQL Error: " + values.size() + " values do not make rows of " + columns + " columns");
+			return rows;
+		}
+		for (int i = 0; i < values.size(); i += columns) {
+			rows.add(values.subList(i, i + columns).toArray(new String[0]));
+		}
+		return rows;
+	}
+
+	/**
+	 * @return the current time in SQLite's format; audit statements carry the time they were made
+	 * at rather than calling datetime('now'), since they reach the SQL server later
+	 */
+	private String now() {
+		return LocalDateTime.now(ZoneOffset.UTC).format(SQL_DATETIME);
+	}
+
 	/**
 	 * Escape SQL special characters to prevent SQL injection
 	 */
 	private String escapeSql(String str) {
 		if (str == null) return "";
-		return str.replace("'", "''");
+		// NUL ends a request and 0x1E separates the statements of a batch, neither may appear
+		// inside one; a '|' in a value is escaped by the server in its responses
+		return str.replace("'", "''").replace("\0", "").replace("\u001e", "");
 	}
 
 	public void addUser(User user) {
-		userMap.putIfAbsent(user.name, user);
+		users.putIfAbsent(user);
 		connectionsIdMap.putIfAbsent(user.getConnectionId(), user);
 	}
 
@@ -76,11 +219,13 @@ public class Database {
 		}
 		if (addNewUserCase(connectionId, username, password)) {
 			// Log new user registration in SQL
+			String time = now();
 			String sql = String.format(
-				"INSERT INTO users (username, password, registration_date) VALUES ('%s', '%s', datetime('now'))",
-				escapeSql(username), escapeSql(password)
+				"INSERT INTO users (username, password, registration_date) VALUES ('%s', '%s', '%s')",
+				escapeSql(username), escapeSql(password), time
 			);
-			executeSQL(sql);
+			mirror(sql);
+			report.registered(username, time);
 			
 			// Log login
 			logLogin(username);
@@ -96,16 +241,23 @@ public class Database {
 	}
 
 	private void logLogin(String username) {
+		String time = now();
 		String sql = String.format(
-			"INSERT INTO login_history (username, login_time) VALUES ('%s', datetime('now'))",
-			escapeSql(username)
+			"INSERT INTO login_history (username, login_time) VALUES ('%s', '%s')",
+			escapeSql(username), time
 		);
-		executeSQL(sql);
+		mirror(sql);
+		report.loggedIn(username, time);
 	}
 
 	private LoginStatus userExistsCase(int connectionId, String username, String password) {
-		User user = userMap.get(username);
-		synchronized (user) {
+		User user = users.get(username);
+		if (user == null) {
+			// Removed from the store meanwhile, the name is free again
+			return login(connectionId, username, password);
+		}
+		user.lock.lock();
+		try {
 			if (user.isLoggedIn()) {
 				return LoginStatus.ALREADY_LOGGED_IN;
 			} else if (!user.password.equals(password)) {
@@ -116,34 +268,38 @@ public class Database {
 				connectionsIdMap.put(connectionId, user);
 				return LoginStatus.LOGGED_IN_SUCCESSFULLY;
 			}
+		} finally {
+			user.lock.unlock();
 		}
 	}
 
 	private boolean addNewUserCase(int connectionId, String username, String password) {
-		if (!userMap.containsKey(username)) {
-			synchronized (userMap) {
-				if (!userMap.containsKey(username)) {
-					User user = new User(connectionId, username, password);
-					user.login();
-					addUser(user);
-					return true;
-				}
-			}
+		if (users.get(username) != null) {
+			return false;
 		}
-		return false;
+		User user = new User(connectionId, username, password);
+		user.login();
+		// The store decides between concurrent registrations of the same name
+		if (users.putIfAbsent(user) != null) {
+			return false;
+		}
+		connectionsIdMap.putIfAbsent(connectionId, user);
+		return true;
 	}
 
 	public void logout(int connectionsId) {
 		User user = connectionsIdMap.get(connectionsId);
 		if (user != null) {
 			// Log logout in SQL
+			String time = now();
 			String sql = String.format(
-				"UPDATE login_history SET logout_time=datetime('now') " +
+				"UPDATE login_history SET logout_time='%s' " +
 				"WHERE username='%s' AND logout_time IS NULL " +
 				"ORDER BY login_time DESC LIMIT 1",
-				escapeSql(user.name)
+				time, escapeSql(user.name)
 			);
-			executeSQL(sql);
+			mirror(sql);
+			report.loggedOut(user.name, time);
 			
 			user.logout();
 			connectionsIdMap.remove(connectionsId);
@@ -159,91 +315,83 @@ public class Database {
 	public void trackFileUpload(String username, String filename, String gameChannel) {
 		String sql = String.format(
 			"INSERT INTO file_tracking (username, filename, upload_time, game_channel) " +
-			"VALUES ('%s', '%s', datetime('now'), '%s')",
-			escapeSql(username), escapeSql(filename), escapeSql(gameChannel)
+			"VALUES ('%s', '%s', '%s', '%s')",
+			escapeSql(username), escapeSql(filename), now(), escapeSql(gameChannel)
 		);
-		executeSQL(sql);
+		mirror(sql);
+		report.uploaded(username, gameChannel);
 	}
 
 	/**
-	 * Generate and print server report using SQL queries
+	 * Print the server report: the figures kept in memory, then the history kept by the SQL
+	 * server, fetched a page at a time so a long history is never held whole
 	 */
 	public void printReport() {
+		// Send the queued audit statements first, so the history includes everything done so far
+		if (audit != null) {
+			audit.flush();
+		}
+
 		System.out.println(repeat("=", 80));
 		System.out.println("SERVER REPORT - Generated at: " + java.time.LocalDateTime.now());
 		System.out.println(repeat("=", 80));
-		
-		// List all users
-		System.out.println("\n1. REGISTERED USERS:");
+
+		report.print(System.out, repeat("-", 80));
+
+		// Login history, oldest first
+		System.out.println("\n4. LOGIN HISTORY:");
 		System.out.println(repeat("-", 80));
-		String usersSQL = "SELECT username, registration_date FROM users ORDER BY registration_date";
-		String usersResult = executeSQL(usersSQL);
-		if (usersResult.startsWith("SUCCESS")) {
-			String[] parts = usersResult.split("\\|");
-			if (parts.length > 1) {
-				for (int i = 1; i < parts.length; i++) {
-					System.out.println("   " + parts[i]);
-				}
-			} else {
-				System.out.println("   No users registered");
-			}
+		long printed = printPages("SELECT id, username, login_time, logout_time FROM login_history", 4, row ->
+			System.out.println("   " + row[1] + "  Login: " + row[2] + "  Logout: "
+				+ (row[3] == null ? "Still logged in" : row[3])));
+		if (printed == 0) {
+			System.out.println("   No login history");
 		}
-		
-		// Login history for each user
-		System.out.println("\n2. LOGIN HISTORY:");
+
+		// File uploads, oldest first
+		System.out.println("\n5. FILE UPLOAD HISTORY:");
 		System.out.println(repeat("-", 80));
-		String loginSQL = "SELECT username, login_time, logout_time FROM login_history ORDER BY username, login_time DESC";
-		String loginResult = executeSQL(loginSQL);
-		if (loginResult.startsWith("SUCCESS")) {
-			String[] parts = loginResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 3) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      Login:  " + fields[1]);
-						System.out.println("      Logout: " + (fields[2].equals("None") ? "Still logged in" : fields[2]));
-					}
-				}
-			} else {
-				System.out.println("   No login history");
-			}
+		printed = printPages("SELECT id, username, filename, upload_time, game_channel FROM file_tracking", 5, row ->
+			System.out.println("   " + row[1] + "  File: " + row[2] + "  Time: " + row[3] + "  Game: " + row[4]));
+		if (printed == 0) {
+			System.out.println("   No files uploaded");
 		}
-		
-		// File uploads for each user
-		System.out.println("\n3. FILE UPLOADS:");
+
+		// Latency of the statements sent to the SQL server so far, this report's included
+		System.out.println("\n6. SQL LATENCY:");
 		System.out.println(repeat("-", 80));
-		String filesSQL = "SELECT username, filename, upload_time, game_channel FROM file_tracking ORDER BY username, upload_time DESC";
-		String filesResult = executeSQL(filesSQL);
-		if (filesResult.startsWith("SUCCESS")) {
-			String[] parts = filesResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 4) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      File: " + fields[1]);
-						System.out.println("      Time: " + fields[2]);
-						System.out.println("      Game: " + fields[3]);
-						System.out.println();
-					}
-				}
-			} else {
-				System.out.println("   No files uploaded");
-			}
+		for (String line : sqlPool.latencyReport()) {
+			System.out.println("   " + line);
 		}
 		
 	System.out.println(repeat("=", 80));
 }
 
+/**
+ * Runs the query a page at a time, each page picking up after the last id of the one before
+ * @param select a SELECT of a table's id first, without WHERE or ORDER BY
+ * @return the number of rows printed
+ */
+private long printPages(String select, int columns, Consumer<String[]> printer) {
+	long printed = 0;
+	long lastId = 0;
+	List<String[]> page;
+	do {
+		page = rows(executeSQL(select + " WHERE id > " + lastId + " ORDER BY id LIMIT " + reportPageSize), columns);
+		for (String[] row : page) {
+			printer.accept(row);
+		}
+		printed += page.size();
+		if (!page.isEmpty()) {
+			lastId = count(page.get(page.size() - 1), 0);
+			if (lastId < 0) {
+				break; // no id to pick up after
+			}
+		}
+	} while (page.size() == reportPageSize);
+	return printed;
+}
+
 private String repeat(String str, int times) {
 	StringBuilder sb = new StringBuilder();
 	for (int i = 0; i < times; i++) {
@@ -0,0 +1,29 @@
+package bgu.spl.net.impl.data;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the users in memory only, so every user is new again after a restart.
+ */
+public class InMemoryUserStore implements UserStore {
+	private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+
+	@Override
+	public User get(String name) {
+		return users.get(name);
+	}
+
+	@Override
+	public User putIfAbsent(User user) {
+		return users.putIfAbsent(user.name, user);
+	}
+
+	@Override
+	public void remove(String name) {
+		users.remove(name);
+	}
+
+	@Override
+	public void close() {
+	}
+}
@@ -0,0 +1,261 @@
+package bgu.spl.net.impl.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * Keeps the users in a concurrent hash index, backed by an append-only journal file so they
+ * survive restarts. Every registration and removal is appended to the journal as a record of
+ * its length, a checksum and the change; on startup the journal is replayed up to the first
+ * torn record. A background thread forces the journal to disk every sync interval, and compacts
+ * it into one record per user once most of its records no longer describe a current user.
+ * Lookups never touch the file.
+ */
+public class JournaledUserStore implements UserStore {
+	private static final byte REGISTER = 1;
+	private static final byte REMOVE = 2;
+	private static final int RECORD_HEADER = 8; // length, checksum
+	// Compaction is only worth it once the journal has this many records of removed users
+	private static final int COMPACTION_THRESHOLD = 256;
+
+	private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+	private final Path journal;
+	private final long syncIntervalNanos;
+	// Serializes changes, so the journal lists them in the order the index saw them
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private FileChannel channel; // guarded by writeLock
+	private long records = 0;    // guarded by writeLock
+	private boolean dirty = false; // guarded by writeLock
+	private final Thread syncer;
+	private volatile boolean closed = false;
+
+	/**
+	 * Opens the journal, replaying the users it holds, and starts syncing it.
+	 * @param syncIntervalMillis how often appended records are forced to disk
+	 */
+	public JournaledUserStore(Path journal, long syncIntervalMillis) throws IOException {
+		this.journal = journal;
+		this.syncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis);
+		long end = replay();
+		this.channel = FileChannel.open(journal, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+		// Cut a torn record off, so new records follow the last whole one
+		channel.truncate(end);
+		channel.position(end);
+		this.syncer = new Thread(this::syncLoop, "user-journal");
+		this.syncer.setDaemon(true);
+		this.syncer.start();
+	}
+
+	@Override
+	public User get(String name) {
+		return users.get(name);
+	}
+
+	@Override
+	public User putIfAbsent(User user) {
+		User existing = users.get(user.name);
+		if (existing != null) {
+			return existing;
+		}
+		writeLock.lock();
+		try {
+			existing = users.putIfAbsent(user.name, user);
+			if (existing == null) {
+				append(REGISTER, user.name, user.password);
+			}
+			return existing;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void remove(String name) {
+		writeLock.lock();
+		try {
+			if (users.remove(name) != null) {
+				append(REMOVE, name, null);
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		LockSupport.unpark(syncer);
+		try {
+			syncer.join();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		writeLock.lock();
+		try {
+			channel.force(false);
+			channel.close();
+		} catch (IOException ex) {
+			System.err.println("User journal could not be closed: " + ex.getMessage());
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	// Called with the write lock held
+	private void append(byte type, String name, String password) {
+		try {
+			ByteBuffer record = encode(type, name, password);
+			while (record.hasRemaining()) {
+				channel.write(record);
+			}
+			records++;
+			dirty = true;
+		} catch (IOException ex) {
+			// The user stays registered until the next restart
+			System.err.println("User journal could not be written: " + ex.getMessage());
+		}
+	}
+
+	private static ByteBuffer encode(byte type, String name, String password) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(type);
+		out.writeUTF(name);
+		if (type == REGISTER) {
+			out.writeUTF(password);
+		}
+		byte[] change = bytes.toByteArray();
+		CRC32C crc = new CRC32C();
+		crc.update(change);
+
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER + change.length);
+		record.putInt(change.length).putInt((int) crc.getValue()).put(change).flip();
+		return record;
+	}
+
+	/**
+	 * Applies the journal's records to the index.
+	 * @return the length of the journal up to the first torn record
+	 */
+	private long replay() throws IOException {
+		if (!Files.exists(journal)) {
+			return 0;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(journal));
+		while (buf.remaining() >= RECORD_HEADER) {
+			int start = buf.position();
+			int length = buf.getInt();
+			int checksum = buf.getInt();
+			if (length <= 0 || length > buf.remaining()) {
+				buf.position(start);
+				break;
+			}
+			CRC32C crc = new CRC32C();
+			crc.update(buf.array(), buf.position(), length);
+			if ((int) crc.getValue() != checksum) {
+				buf.position(start);
+				break;
+			}
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf.array(), buf.position(), length));
+			byte type = in.readByte();
+			String name = in.readUTF();
+			if (type == REGISTER) {
+				users.put(name, new User(-1, name, in.readUTF()));
+			} else {
+				users.remove(name);
+			}
+			buf.position(buf.position() + length);
+			records++;
+		}
+		return buf.position();
+	}
+
+	private void syncLoop() {
+		while (!closed) {
+			LockSupport.parkNanos(this, syncIntervalNanos);
+			try {
+				sync();
+				if (compactionDue()) {
+					compact();
+				}
+			} catch (IOException ex) {
+				System.err.println("User journal could not be synced: " + ex.getMessage());
+			}
+		}
+	}
+
+	private void sync() throws IOException {
+		FileChannel toSync;
+		writeLock.lock();
+		try {
+			if (!dirty) {
+				return;
+			}
+			dirty = false;
+			toSync = channel;
+		} finally {
+			writeLock.unlock();
+		}
+		// Registrations go on while the disk catches up; only this thread replaces the channel
+		toSync.force(false);
+	}
+
+	/**
+	 * Whether most of the journal's records are about users removed since, counting the records
+	 * left by an earlier compaction as well as those appended after it.
+	 */
+	private boolean compactionDue() {
+		writeLock.lock();
+		try {
+			long dead = records - users.size();
+			return dead > COMPACTION_THRESHOLD && dead > users.size();
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Replaces the journal with one REGISTER record per current user.
+	 */
+	void compact() throws IOException {
+		writeLock.lock();
+		try {
+			Path compacted = journal.resolveSibling(journal.getFileName() + ".compact");
+			long written = 0;
+			try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				for (User user : users.values()) {
+					ByteBuffer record = encode(REGISTER, user.name, user.password);
+					while (record.hasRemaining()) {
+						out.write(record);
+					}
+					written++;
+				}
+				out.force(false);
+			}
+			// Until the move the old journal stays complete, so a failure here loses nothing
+			Files.move(compacted, journal, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			channel.close();
+			channel = FileChannel.open(journal, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+			records = written;
+			dirty = false;
+		} finally {
+			writeLock.unlock();
+		}
+	}
+}
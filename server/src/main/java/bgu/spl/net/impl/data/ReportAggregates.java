@@ -0,0 +1,118 @@
+package bgu.spl.net.impl.data;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The figures of the server report, kept up to date as users register, log in, log out and
+ * upload files, so printing them costs time in the number of users and channels rather than
+ * in the length of their history.
+ */
+class ReportAggregates {
+	private final ConcurrentHashMap<String, Activity> users = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, LongAdder> uploadsByChannel = new ConcurrentHashMap<>();
+	private final AtomicInteger activeSessions = new AtomicInteger();
+
+	void registered(String username, String time) {
+		activity(username).registered = time;
+	}
+
+	void loggedIn(String username, String time) {
+		Activity activity = activity(username);
+		activity.sessions.increment();
+		activity.lastLogin = time;
+		activity.active = true;
+		activeSessions.incrementAndGet();
+	}
+
+	void loggedOut(String username, String time) {
+		Activity activity = activity(username);
+		activity.lastLogout = time;
+		activity.active = false;
+		activeSessions.decrementAndGet();
+	}
+
+	void uploaded(String username, String channel) {
+		activity(username).uploads.increment();
+		uploadsByChannel.computeIfAbsent(channel, c -> new LongAdder()).increment();
+	}
+
+	/**
+	 * Adds what happened before this server started, as aggregated by the SQL server.
+	 * Sessions left open back then ended with that server, so none of them counts as active.
+	 */
+	void seedSessions(String username, long sessions, String lastLogin, String lastLogout) {
+		Activity activity = activity(username);
+		activity.sessions.add(sessions);
+		activity.lastLogin = lastLogin;
+		activity.lastLogout = lastLogout;
+	}
+
+	void seedUploads(String username, long uploads) {
+		activity(username).uploads.add(uploads);
+	}
+
+	void seedChannel(String channel, long uploads) {
+		uploadsByChannel.computeIfAbsent(channel, c -> new LongAdder()).add(uploads);
+	}
+
+	/**
+	 * Prints users, sessions and uploads, sorted by name.
+	 */
+	void print(PrintStream out, String rule) {
+		Map<String, Activity> sorted = new TreeMap<>(users);
+
+		out.println("\n1. REGISTERED USERS: " + sorted.size());
+		out.println(rule);
+		for (Map.Entry<String, Activity> entry : sorted.entrySet()) {
+			String registered = entry.getValue().registered;
+			out.println("   " + entry.getKey() + (registered != null ? " (Registered: " + registered + ")" : ""));
+		}
+
+		out.println("\n2. SESSIONS: " + activeSessions.get() + " active");
+		out.println(rule);
+		for (Map.Entry<String, Activity> entry : sorted.entrySet()) {
+			Activity activity = entry.getValue();
+			out.println("   User: " + entry.getKey() + (activity.active ? " (logged in)" : ""));
+			out.println("      Sessions:     " + activity.sessions.sum());
+			out.println("      Last login:   " + (activity.lastLogin != null ? activity.lastLogin : "Never"));
+			out.println("      Last logout:  " + (activity.lastLogout != null ? activity.lastLogout : "Never"));
+		}
+
+		out.println("\n3. FILE UPLOADS:");
+		out.println(rule);
+		List<String> uploaders = new ArrayList<>();
+		for (Map.Entry<String, Activity> entry : sorted.entrySet()) {
+			long uploads = entry.getValue().uploads.sum();
+			if (uploads > 0) {
+				uploaders.add("   User: " + entry.getKey() + " uploaded " + uploads);
+			}
+		}
+		if (uploaders.isEmpty()) {
+			out.println("   No files uploaded");
+		}
+		uploaders.forEach(out::println);
+		for (Map.Entry<String, LongAdder> entry : new TreeMap<>(uploadsByChannel).entrySet()) {
+			out.println("   Game: " + entry.getKey() + " received " + entry.getValue().sum());
+		}
+	}
+
+	private Activity activity(String username) {
+		return users.computeIfAbsent(username, u -> new Activity());
+	}
+
+	private static final class Activity {
+		final LongAdder sessions = new LongAdder();
+		final LongAdder uploads = new LongAdder();
+		volatile String registered;
+		volatile String lastLogin;
+		volatile String lastLogout;
+		volatile boolean active;
+	}
+}
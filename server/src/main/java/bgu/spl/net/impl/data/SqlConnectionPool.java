@@ -0,0 +1,317 @@
+package bgu.spl.net.impl.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of persistent connections to the SQL server, which answers any number of
+ * NUL terminated requests on one connection, one at a time.
+ * At most maxConnections statements run at once; callers beyond that wait for a connection.
+ * A connection idle for longer than the health check interval is probed before it is reused,
+ * and a reused connection that turns out to be closed is replaced. The statement is then sent
+ * again only if the SQL server cannot have run it already: it was never sent whole, or it is a
+ * SELECT, which changes nothing when run twice.
+ * Many statements can be sent as one batch, which the SQL server runs as a single transaction.
+ * The latency of every request is recorded by its kind, the first word of the SQL or BATCH.
+ */
+class SqlConnectionPool {
+
+	private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+	// A batch request is the header followed by its statements, separated by the separator
+	private static final String BATCH_HEADER = "BATCH\n";
+	private static final String BATCH_SEPARATOR = "\u001e";
+
+	private final String host;
+	private final int port;
+	private final long healthCheckMillis;
+	private final Semaphore permits;
+	// Most recently used first, so the connections least likely to be stale are reused
+	private final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+	private final ConcurrentHashMap<String, Latency> latencies = new ConcurrentHashMap<>();
+	private volatile boolean closed = false;
+
+	/**
+	 * @param maxConnections the number of connections open at most
+	 * @param healthCheckMillis how long a connection may be idle before it is probed
+	 */
+	SqlConnectionPool(String host, int port, int maxConnections, long healthCheckMillis) {
+		this.host = host;
+		this.port = port;
+		this.healthCheckMillis = healthCheckMillis;
+		this.permits = new Semaphore(maxConnections, true);
+	}
+
+	/**
+	 * Sends the statement and waits for its response.
+	 * @return the response of the SQL server, without its terminator
+	 * @throws IOException if the SQL server could not be reached
+	 */
+	String execute(String sql) throws IOException {
+		return request(sql, kind(sql));
+	}
+
+	/**
+	 * Sends the statements as one batch, run by the SQL server in one transaction with one commit.
+	 * A statement failing on its own, such as a duplicate insert, does not affect the others.
+	 * @return the result of every statement, OK or ERROR:reason
+	 * @throws IOException if the SQL server could not be reached or could not commit the batch
+	 * @throws IllegalArgumentException if a statement holds a NUL or the batch separator
+	 */
+	List<String> executeBatch(List<String> statements) throws IOException {
+		if (statements.isEmpty()) {
+			return new ArrayList<>();
+		}
+		for (String sql : statements) {
+			if (sql.indexOf('\0') >= 0 || sql.contains(BATCH_SEPARATOR)) {
+				throw new IllegalArgumentException("statement holds a NUL or batch separator: " + sql);
+			}
+		}
+		String response = request(BATCH_HEADER + String.join(BATCH_SEPARATOR, statements), "BATCH");
+		if (!response.startsWith("SUCCESS|")) {
+			throw new IOException("SQL batch failed: " + response);
+		}
+		return values(response.substring("SUCCESS|".length()));
+	}
+
+	/**
+	 * Splits the columns of a SELECT's response, or the results of a batch, at every '|' the SQL
+	 * server did not escape with a backslash; a value of \N is NULL
+	 */
+	static List<String> values(String columns) {
+		List<String> values = new ArrayList<>();
+		StringBuilder value = new StringBuilder();
+		boolean isNull = false;
+		for (int i = 0; i < columns.length(); i++) {
+			char c = columns.charAt(i);
+			if (c == '\\' && i + 1 < columns.length()) {
+				char escaped = columns.charAt(++i);
+				if (escaped == 'N') {
+					isNull = true;
+				} else {
+					value.append(escaped);
+				}
+			} else if (c == '|') {
+				values.add(isNull ? null : value.toString());
+				value.setLength(0);
+				isNull = false;
+			} else {
+				value.append(c);
+			}
+		}
+		values.add(isNull ? null : value.toString());
+		return values;
+	}
+
+	private String request(String sql, String kind) throws IOException {
+		long start = System.nanoTime();
+		try {
+			permits.acquire();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting for an SQL connection");
+		}
+		try {
+			Connection connection = idle.pollFirst();
+			if (connection != null && !connection.isHealthy(healthCheckMillis)) {
+				connection.close();
+				connection = null;
+			}
+			String response;
+			if (connection == null) {
+				connection = new Connection(host, port);
+				response = roundTrip(connection, sql);
+			} else {
+				try {
+					response = connection.roundTrip(sql);
+				} catch (IOException ex) {
+					connection.close();
+					// Closed by the SQL server (a restart); once sent, a statement may have run before it answered
+					boolean resend = ex instanceof UnsentException || ex instanceof EOFException && kind.equals("SELECT");
+					if (!resend) {
+						throw ex;
+					}
+					connection = new Connection(host, port);
+					response = roundTrip(connection, sql);
+				}
+			}
+			if (closed) {
+				connection.close();
+			} else {
+				idle.offerFirst(connection);
+			}
+			return response;
+		} finally {
+			permits.release();
+			latencies.computeIfAbsent(kind, k -> new Latency()).record(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * @return one line per kind of request: count, mean and max latency in microseconds
+	 */
+	List<String> latencyReport() {
+		List<String> lines = new ArrayList<>();
+		for (Map.Entry<String, Latency> entry : latencies.entrySet()) {
+			Latency latency = entry.getValue();
+			long count = latency.count.sum();
+			lines.add(String.format("%-8s count=%d mean=%dus max=%dus", entry.getKey(), count,
+					count == 0 ? 0 : latency.totalNanos.sum() / count / 1000, latency.maxNanos.get() / 1000));
+		}
+		return lines;
+	}
+
+	/**
+	 * Closes the idle connections; connections in use are closed when returned to a closed pool.
+	 */
+	void close() {
+		closed = true;
+		Connection connection;
+		while ((connection = idle.pollFirst()) != null) {
+			connection.close();
+		}
+	}
+
+	private static String roundTrip(Connection connection, String sql) throws IOException {
+		try {
+			return connection.roundTrip(sql);
+		} catch (IOException ex) {
+			connection.close();
+			throw ex;
+		}
+	}
+
+	private static String kind(String sql) {
+		String trimmed = sql.trim();
+		int end = 0;
+		while (end < trimmed.length() && !Character.isWhitespace(trimmed.charAt(end))) {
+			end++;
+		}
+		return trimmed.substring(0, end).toUpperCase();
+	}
+
+	private static final class Latency {
+
+		final LongAdder count = new LongAdder();
+		final LongAdder totalNanos = new LongAdder();
+		final AtomicLong maxNanos = new AtomicLong();
+
+		void record(long nanos) {
+			count.increment();
+			totalNanos.add(nanos);
+			maxNanos.accumulateAndGet(nanos, Math::max);
+		}
+	}
+
+	/**
+	 * The request was not written whole, so the SQL server never ran it.
+	 */
+	private static final class UnsentException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		UnsentException(IOException cause) {
+			super("SQL request not sent", cause);
+		}
+	}
+
+	private static final class Connection {
+
+		private final Socket socket;
+		private final InputStream in;
+		private final OutputStream out;
+		private long lastUsed = System.currentTimeMillis();
+
+		Connection(String host, int port) throws IOException {
+			socket = new Socket();
+			try {
+				socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+				socket.setTcpNoDelay(true);
+				in = new BufferedInputStream(socket.getInputStream());
+				out = new BufferedOutputStream(socket.getOutputStream());
+			} catch (IOException ex) {
+				socket.close();
+				throw ex;
+			}
+		}
+
+		/**
+		 * @throws UnsentException if the request could not be written whole
+		 * @throws EOFException if the connection was closed before any of the response arrived
+		 */
+		String roundTrip(String sql) throws IOException {
+			// Send SQL with null terminator
+			try {
+				out.write(sql.getBytes(StandardCharsets.UTF_8));
+				out.write('\0');
+				out.flush();
+			} catch (IOException ex) {
+				throw new UnsentException(ex);
+			}
+
+			// Read response until null terminator
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			int b;
+			while ((b = in.read()) != -1 && b != '\0') {
+				response.write(b);
+			}
+			if (b == -1) {
+				throw response.size() == 0
+						? new EOFException("SQL server closed the connection")
+						: new IOException("SQL server closed the connection mid-response");
+			}
+			lastUsed = System.currentTimeMillis();
+			return response.toString(StandardCharsets.UTF_8);
+		}
+
+		/**
+		 * Probes a connection idle for longer than the given time: a peer that closed it makes
+		 * the read return at once, a live one lets it time out.
+		 */
+		boolean isHealthy(long healthCheckMillis) {
+			if (socket.isClosed()) {
+				return false;
+			}
+			if (System.currentTimeMillis() - lastUsed < healthCheckMillis) {
+				return true;
+			}
+			try {
+				socket.setSoTimeout(1);
+				try {
+					in.read();
+					return false; // closed by the SQL server, or sent something no request asked for
+				} catch (SocketTimeoutException ex) {
+					return true;
+				} finally {
+					socket.setSoTimeout(0);
+				}
+			} catch (IOException ex) {
+				return false;
+			}
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+}
@@ -1,8 +1,12 @@
 package bgu.spl.net.impl.data;
 
+import java.util.concurrent.locks.ReentrantLock;
+
 public class User {
 	public final String name;
 	public final String password;
+	// Guards the login state, see Database.userExistsCase
+	final ReentrantLock lock = new ReentrantLock();
 	private int connectionId;
 	private boolean isLoggedIn = false;
 
@@ -0,0 +1,29 @@
+package bgu.spl.net.impl.data;
+
+/**
+ * Where the registered users are kept, looked up on every login.
+ * Implementations are safe for concurrent use and never block a lookup on I/O.
+ */
+public interface UserStore {
+
+	/**
+	 * @return the user registered under the name, or null if there is none
+	 */
+	User get(String name);
+
+	/**
+	 * Registers the user unless its name is taken.
+	 * @return the user already registered under the name, or null if this one was registered
+	 */
+	User putIfAbsent(User user);
+
+	/**
+	 * Forgets the user registered under the name, if any.
+	 */
+	void remove(String name);
+
+	/**
+	 * Releases whatever the store holds, making what it was given durable first.
+	 */
+	void close();
+}
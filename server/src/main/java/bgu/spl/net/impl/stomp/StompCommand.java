@@ -0,0 +1,48 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The commands of STOMP 1.2 frames, client and server side.
+ */
+public enum StompCommand {
+    CONNECT,
+    STOMP,
+    SEND,
+    SUBSCRIBE,
+    UNSUBSCRIBE,
+    ACK,
+    NACK,
+    BEGIN,
+    COMMIT,
+    ABORT,
+    DISCONNECT,
+    CONNECTED,
+    MESSAGE,
+    RECEIPT,
+    ERROR,
+    /** any command line this server does not know */
+    UNKNOWN;
+
+    private static final StompCommand[] KNOWN = Arrays.copyOf(values(), values().length - 1);
+
+    private final byte[] name = name().getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * @return the command whose name is exactly the given bytes, or {@link #UNKNOWN}
+     */
+    static StompCommand of(byte[] buf, int start, int end) {
+        for (StompCommand command : KNOWN) {
+            if (command.name.length == end - start
+                    && Arrays.equals(command.name, 0, command.name.length, buf, start, end)) {
+                return command;
+            }
+        }
+        return UNKNOWN;
+    }
+
+    byte[] bytes() {
+        return name;
+    }
+}
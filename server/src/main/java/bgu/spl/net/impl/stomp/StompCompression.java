@@ -0,0 +1,171 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.api.EncodedBroadcast;
+import bgu.spl.net.srv.Compression;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Deflater;
+
+/**
+ * The compression extension of the server, negotiated at CONNECT.
+ * A client asking for it lists the schemes it understands, in the order it prefers them, in an
+ * accept-compression header; the server answers with the one it picked in the compression header
+ * of CONNECTED, or leaves the header out and sends everything uncompressed:
+ * <ul>
+ * <li>deflate-stream: every byte the server sends behind CONNECTED is one zlib stream, flushed
+ * with a sync flush at the end of each write, see {@link Compression#STREAM}.</li>
+ * <li>deflate-frame: the body of each MESSAGE worth compressing is a zlib stream of its own,
+ * marked with a content-encoding:deflate header and sent with its content-length; other frames
+ * are sent as they are, see {@link Compression#FRAME}.</li>
+ * </ul>
+ * Both zlib streams start from the preset {@link #DICTIONARY}, which the client sets on its
+ * inflater when asked for it. Frames from the client are never compressed.
+ * Compression is offered unless the server runs with stomp.compression=false.
+ */
+final class StompCompression {
+
+    static final String STREAM = "deflate-stream";
+    static final String FRAME = "deflate-frame";
+
+    /**
+     * The text the game reports and MESSAGE headers are made of, most common last, where
+     * deflate finds it at the shortest distance.
+     */
+    static final byte[] DICTIONARY = ("before halftime:false\nbefore halftime:true\n"
+            + "active:false\nactive:true\ngoals:\npossession:\nkickoff\nhalftime\ngoal!!!!\n"
+            + "content-type:text/plain\ncontent-length:\nreceipt-id:\nMESSAGE\nsubscription:\n"
+            + "message-id:\ndestination:/\nuser:\nteam a:\nteam b:\nevent name:\ntime:\n"
+            + "general game updates:\nteam a updates:\nteam b updates:\ndescription:\n")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("stomp.compression", "true"));
+    // Bodies shorter than this do not shrink enough to be worth it
+    private static final int MIN_BODY_SIZE = 64;
+    private static final byte[] ENCODING_HEADERS = "\ncontent-encoding:deflate\ncontent-length:"
+            .getBytes(StandardCharsets.UTF_8);
+    private static final byte[] CONTENT_LENGTH = "\ncontent-length:".getBytes(StandardCharsets.UTF_8);
+
+    // Deflaters are reused rather than allocated per body, their native state is large. A pool
+    // rather than one per thread, as a virtual thread per client may be the one compressing.
+    private static final ConcurrentLinkedQueue<Deflater> DEFLATERS = new ConcurrentLinkedQueue<>();
+
+    private StompCompression() {
+    }
+
+    /**
+     * @param acceptCompression the accept-compression header of a CONNECT frame, may be null
+     * @return the first scheme of the header the server supports, or null for none
+     */
+    static String negotiate(String acceptCompression) {
+        if (!ENABLED || acceptCompression == null) {
+            return null;
+        }
+        for (String scheme : acceptCompression.split(",")) {
+            scheme = scheme.trim();
+            if (scheme.equals(STREAM) || scheme.equals(FRAME)) {
+                return scheme;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return how the connection handler compresses for the given negotiated scheme
+     */
+    static Compression of(String scheme) {
+        return scheme.equals(STREAM) ? Compression.STREAM : Compression.FRAME;
+    }
+
+    /**
+     * Builds the deflate-frame form of a broadcast MESSAGE: the same headers with a
+     * content-encoding header and the length of the deflated body, then the deflated body.
+     *
+     * @param prefix the bytes of the MESSAGE in front of its subscription id
+     * @param message the bytes behind the subscription id
+     * @return the compressed message, or null if its body is not worth compressing
+     */
+    static EncodedBroadcast compressBroadcast(byte[] prefix, byte[] message) {
+        int headersEnd = indexOfBlankLine(message);
+        int bodyStart = headersEnd + 2;
+        int bodyLength = message.length - 1 - bodyStart; // less the NUL
+        if (headersEnd < 0 || bodyLength < MIN_BODY_SIZE) {
+            return null;
+        }
+        byte[] deflated = deflate(message, bodyStart, bodyLength);
+        if (deflated.length >= bodyLength) {
+            return null;
+        }
+
+        // The headers behind the subscription id, less any content-length of the plain body.
+        // Each line is taken with the EOL in front of it.
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(headersEnd + deflated.length + 64);
+        int line = 0;
+        while (line < headersEnd) {
+            int next = line + 1;
+            while (next < headersEnd && message[next] != '\n') {
+                next++;
+            }
+            if (!startsWith(message, line, CONTENT_LENGTH)) {
+                compressed.write(message, line, next - line);
+            }
+            line = next;
+        }
+        compressed.writeBytes(ENCODING_HEADERS);
+        compressed.writeBytes(Integer.toString(deflated.length).getBytes(StandardCharsets.US_ASCII));
+        compressed.write('\n');
+        compressed.write('\n');
+        compressed.writeBytes(deflated);
+        compressed.write('\u0000');
+        return new EncodedBroadcast(prefix, compressed.toByteArray());
+    }
+
+    private static byte[] deflate(byte[] bytes, int offset, int length) {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater();
+        }
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(bytes, offset, length);
+            deflater.finish();
+            byte[] out = new byte[length];
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                size += deflater.deflate(out, size, out.length - size);
+            }
+            return Arrays.copyOf(out, size);
+        } finally {
+            deflater.reset();
+            DEFLATERS.offer(deflater);
+        }
+    }
+
+    /**
+     * @return the offset of the EOL ending the last header, or -1
+     */
+    private static int indexOfBlankLine(byte[] frame) {
+        for (int i = 0; i + 1 < frame.length; i++) {
+            if (frame[i] == '\n' && frame[i + 1] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, byte[] prefix) {
+        if (bytes.length - offset < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,43 +1,230 @@
 package bgu.spl.net.impl.stomp;
 
+import bgu.spl.net.api.BroadcastEncoder;
+import bgu.spl.net.api.EncodedBroadcast;
 import bgu.spl.net.api.MessageEncoderDecoder;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.function.Consumer;
 
-public class StompEncoderDecoder implements MessageEncoderDecoder<String> {
+/**
+ * Cuts the byte stream of a connection into STOMP frames.
+ * A frame ends at the first NUL behind its headers, or, when it has a content-length header,
+ * at the NUL right behind that many body bytes, so such bodies may hold any bytes, NUL included,
+ * and are skipped over rather than scanned. A frame larger than the maximum frame size is
+ * answered with a malformed frame, after which the rest of the stream is ignored.
+ */
+public class StompEncoderDecoder implements MessageEncoderDecoder<StompFrame>, BroadcastEncoder<StompFrame> {
 
-    private byte[] bytes = new byte[1 << 10]; // start with 1k
+    public static final int DEFAULT_MAX_FRAME_SIZE = 1 << 20;
+
+    private static final int INITIAL_CAPACITY = 1 << 10; // start with 1k
+    private static final int SHRINK_ABOVE = 1 << 16;
+
+    private final int maxFrameSize;
+    private final ByteBuffer nextByte = ByteBuffer.allocate(1);
+    private final Consumer<StompFrame> lastFrameSink = frame -> lastFrame = frame;
+    private StompFrame lastFrame;
+
+    // The pending frame starts at bytes[0]; the scan state below survives between reads
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
     private int len = 0;
+    private int scan = 0;        // the next byte to look at
+    private int lineStart = 0;   // the start of the header line being scanned
+    private boolean inBody = false;
+    private int terminator = -1; // where the NUL must be, once a content-length is known
+    private boolean rejected = false;
+
+    public StompEncoderDecoder() {
+        this(DEFAULT_MAX_FRAME_SIZE);
+    }
+
+    /**
+     * @param maxFrameSize the largest frame accepted, in bytes including its terminator
+     */
+    public StompEncoderDecoder(int maxFrameSize) {
+        this.maxFrameSize = maxFrameSize;
+    }
 
     @Override
-    public String decodeNextByte(byte nextByte) {
-        // In STOMP, the end of the message is indicated solely by the Null character.
-        // We do not stop at '\n' because it is a valid character within the message body (e.g. headers, body text).
-        if (nextByte == '\u0000') {
-            return popString();
+    public StompFrame decodeNextByte(byte nextByte) {
+        this.nextByte.clear();
+        this.nextByte.put(nextByte).flip();
+        decode(this.nextByte, lastFrameSink);
+
+        StompFrame result = lastFrame;
+        lastFrame = null;
+        return result; // null when not a complete frame yet
+    }
+
+    @Override
+    public void decode(ByteBuffer buf, Consumer<StompFrame> out) {
+        if (rejected) {
+            buf.position(buf.limit());
+            return;
+        }
+
+        // Copy the whole chunk behind the pending bytes in one go, then cut frames out by offset.
+        // The unfinished tail is moved to the front once per chunk.
+        int count = buf.remaining();
+        ensureCapacity(len + count);
+        buf.get(bytes, len, count);
+        len += count;
+
+        int frameStart = 0;
+        while (true) {
+            if (terminator >= 0) {
+                // The body length is known, jump straight to its terminator
+                if (terminator >= len) {
+                    break;
+                }
+                if (bytes[terminator] != '\u0000') {
+                    reject(out, "Frame body is longer than its content-length header");
+                    return;
+                }
+                out.accept(StompFrame.parse(Arrays.copyOfRange(bytes, frameStart, terminator + 1)));
+                frameStart = nextFrame(terminator + 1);
+                continue;
+            }
+
+            if (inBody) {
+                // In STOMP, the end of the message is indicated solely by the Null character.
+                // We do not stop at '\n' because it is a valid character within the message body.
+                byte[] bytes = this.bytes; // a local, so the loop does not reload the field
+                int end = len;
+                int i = scan;
+                while (i < end && bytes[i] != '\u0000') {
+                    i++;
+                }
+                scan = i;
+                if (i == end) {
+                    break;
+                }
+                out.accept(StompFrame.parse(Arrays.copyOfRange(bytes, frameStart, i + 1)));
+                frameStart = nextFrame(i + 1);
+                continue;
+            }
+
+            if (scan >= len) {
+                break;
+            }
+            byte b = bytes[scan];
+            if (b == '\u0000') {
+                // A frame without a body
+                out.accept(StompFrame.parse(Arrays.copyOfRange(bytes, frameStart, scan + 1)));
+                frameStart = nextFrame(scan + 1);
+            } else if (scan == frameStart && (b == '\n' || b == '\r')) {
+                // EOLs in front of a frame are heart-beats, not part of the frame
+                frameStart = nextFrame(scan + 1);
+            } else if (b == '\n') {
+                if (lineStart > frameStart && StompFrame.isBlank(bytes, lineStart, scan)) {
+                    if (!endHeaders(frameStart, out)) {
+                        return;
+                    }
+                } else {
+                    lineStart = scan + 1;
+                }
+                scan++;
+            } else {
+                scan++;
+            }
+        }
+
+        if (len - frameStart > maxFrameSize) {
+            reject(out, "Frame is larger than " + maxFrameSize + " bytes");
+            return;
         }
+        compact(frameStart);
+    }
 
-        pushByte(nextByte);
-        return null; // not a complete frame yet
+    @Override
+    public byte[] encode(StompFrame message) {
+        // Frames are kept encoded, the Null character required by the STOMP protocol included.
+        return message.bytes();
     }
 
     @Override
-    public byte[] encode(String message) {
-        // Adding the Null character at the end of the message as required by the STOMP protocol.
-        return (message + "\u0000").getBytes(StandardCharsets.UTF_8);
+    public EncodedBroadcast encodeBroadcast(StompFrame message) {
+        // The protocol broadcasts MESSAGE frames with a placeholder subscription header, replaced per subscriber
+        int[] placeholder = message.headerValueRange("subscription");
+        if (placeholder == null) {
+            return null;
+        }
+        byte[] frame = message.bytes();
+        byte[] prefix = Arrays.copyOfRange(frame, 0, placeholder[0]);
+        byte[] body = Arrays.copyOfRange(frame, placeholder[1], frame.length);
+        return new EncodedBroadcast(prefix, body, () -> StompCompression.compressBroadcast(prefix, body));
     }
 
-    private void pushByte(byte nextByte) {
-        if (len >= bytes.length) {
-            bytes = Arrays.copyOf(bytes, len * 2);
+    /**
+     * Called on the blank line behind the headers of the frame at frameStart.
+     * Looks for a content-length header, which fixes where the frame must end.
+     * @return false if the frame was rejected
+     */
+    private boolean endHeaders(int frameStart, Consumer<StompFrame> out) {
+        inBody = true;
+        int bodyStart = scan + 1;
+        long contentLength = StompFrame.contentLength(bytes, frameStart, scan);
+        if (contentLength == StompFrame.INVALID_CONTENT_LENGTH) {
+            reject(out, "Invalid content-length header");
+            return false;
         }
+        if (contentLength >= 0) {
+            if (bodyStart - frameStart + contentLength + 1 > maxFrameSize) {
+                reject(out, "Frame is larger than " + maxFrameSize + " bytes");
+                return false;
+            }
+            terminator = bodyStart + (int) contentLength;
+        }
+        return true;
+    }
 
-        bytes[len++] = nextByte;
+    /**
+     * Resets the scan state for a frame starting at the given offset.
+     * @return the offset
+     */
+    private int nextFrame(int frameStart) {
+        scan = frameStart;
+        lineStart = frameStart;
+        inBody = false;
+        terminator = -1;
+        return frameStart;
     }
 
-    private String popString() {
-        String result = new String(bytes, 0, len, StandardCharsets.UTF_8);
+    /**
+     * Moves the pending frame to the front of the buffer, and gives back the memory of a
+     * large frame once nothing is pending any more.
+     */
+    private void compact(int frameStart) {
+        if (frameStart > 0) {
+            System.arraycopy(bytes, frameStart, bytes, 0, len - frameStart);
+            len -= frameStart;
+            scan -= frameStart;
+            lineStart -= frameStart;
+            if (terminator >= 0) {
+                terminator -= frameStart;
+            }
+        }
+        if (len == 0 && bytes.length > SHRINK_ABOVE) {
+            bytes = new byte[INITIAL_CAPACITY];
+        }
+    }
+
+    /**
+     * Hands a malformed frame to out and ignores the rest of the stream,
+     * as the connection is closed once the client has been told.
+     */
+    private void reject(Consumer<StompFrame> out, String reason) {
+        rejected = true;
         len = 0;
-        return result;
+        bytes = new byte[0];
+        out.accept(StompFrame.malformed(reason));
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            // Doubling stops at the maximum frame size, a larger frame is rejected anyway
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, Math.min(bytes.length * 2, maxFrameSize)));
+        }
     }
 }
\ No newline at end of file
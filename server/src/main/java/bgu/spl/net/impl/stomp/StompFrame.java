@@ -0,0 +1,391 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A STOMP frame kept in its encoded form: the frame bytes up to and including the
+ * terminating NUL, plus the offsets of its command, headers and body found in a single pass.
+ * Header values and the body are only decoded to Strings when they are asked for.
+ * Frames are never modified once built, so the same instance may be sent to many clients.
+ */
+public final class StompFrame {
+
+    private static final int INITIAL_HEADERS = 8;
+    private static final String CONTENT_LENGTH = "content-length";
+
+    /** returned by {@link #contentLength} for a header that is not a number */
+    static final long INVALID_CONTENT_LENGTH = -2;
+
+    private final StompCommand command;
+    private final byte[] buf;
+    private final int commandEnd;
+    // 4 offsets per header: name start, name end, value start, value end
+    private final int[] headers;
+    private final int headerCount;
+    private final int bodyStart;
+    private final int bodyEnd;
+    private final boolean malformed;
+
+    private String[] values; // decoded header values, filled on first lookup
+
+    private StompFrame(StompCommand command, byte[] buf, int commandEnd, int[] headers, int headerCount, int bodyStart, int bodyEnd) {
+        this(command, buf, commandEnd, headers, headerCount, bodyStart, bodyEnd, false);
+    }
+
+    private StompFrame(StompCommand command, byte[] buf, int commandEnd, int[] headers, int headerCount, int bodyStart, int bodyEnd,
+                       boolean malformed) {
+        this.command = command;
+        this.buf = buf;
+        this.commandEnd = commandEnd;
+        this.headers = headers;
+        this.headerCount = headerCount;
+        this.bodyStart = bodyStart;
+        this.bodyEnd = bodyEnd;
+        this.malformed = malformed;
+    }
+
+    /**
+     * Parses a frame in one pass over its bytes.
+     * EOLs in front of the command (heart-beats between frames) are skipped, lines may end with
+     * "\r\n", and header names and values are trimmed. Lines without ':' are ignored.
+     *
+     * @param buf the frame bytes, ending with the NUL terminator. The frame keeps the array.
+     */
+    static StompFrame parse(byte[] buf) {
+        int end = buf.length - 1;
+        int pos = 0;
+        while (pos < end && (buf[pos] == '\n' || buf[pos] == '\r')) {
+            pos++;
+        }
+
+        int commandStart = pos;
+        while (pos < end && buf[pos] != '\n') {
+            pos++;
+        }
+        int commandEnd = trimEnd(buf, commandStart, pos);
+        StompCommand command = StompCommand.of(buf, commandStart, commandEnd);
+        pos = Math.min(pos + 1, end);
+
+        int[] headers = new int[INITIAL_HEADERS * 4];
+        int headerCount = 0;
+        int bodyStart = end;
+        while (pos < end) {
+            int lineStart = pos;
+            int colon = -1;
+            while (pos < end && buf[pos] != '\n') {
+                if (colon < 0 && buf[pos] == ':') {
+                    colon = pos;
+                }
+                pos++;
+            }
+            int lineEnd = pos;
+            pos = Math.min(pos + 1, end);
+
+            if (trimStart(buf, lineStart, lineEnd) == lineEnd) {
+                bodyStart = pos; // the blank line ends the headers
+                break;
+            }
+            if (colon >= 0) {
+                if (headerCount * 4 == headers.length) {
+                    headers = Arrays.copyOf(headers, headers.length * 2);
+                }
+                int h = headerCount++ * 4;
+                headers[h] = trimStart(buf, lineStart, colon);
+                headers[h + 1] = trimEnd(buf, headers[h], colon);
+                headers[h + 2] = trimStart(buf, colon + 1, lineEnd);
+                headers[h + 3] = trimEnd(buf, headers[h + 2], lineEnd);
+            }
+        }
+
+        if (commandStart > 0) {
+            // Keep the command at offset 0, so encoding the frame never has to cut it
+            buf = Arrays.copyOfRange(buf, commandStart, buf.length);
+            for (int i = 0; i < headerCount * 4; i++) {
+                headers[i] -= commandStart;
+            }
+            commandEnd -= commandStart;
+            bodyStart -= commandStart;
+            end -= commandStart;
+        }
+        return new StompFrame(command, buf, commandEnd, headers, headerCount, bodyStart, end);
+    }
+
+    /**
+     * @return a frame standing for bytes the codec could not accept, with the reason as its body
+     */
+    static StompFrame malformed(String reason) {
+        byte[] body = (reason + '\u0000').getBytes(StandardCharsets.UTF_8);
+        return new StompFrame(StompCommand.UNKNOWN, body, 0, new int[0], 0, 0, body.length - 1, true);
+    }
+
+    /**
+     * Finds the first content-length header among the header lines in buf[start, end),
+     * the first of which is the command line.
+     * @return the body length it gives, -1 if there is none, or {@link #INVALID_CONTENT_LENGTH}
+     */
+    static long contentLength(byte[] buf, int start, int end) {
+        int pos = start;
+        while (pos < end && buf[pos] != '\n') {
+            pos++; // the command line
+        }
+        while (++pos < end) {
+            int lineStart = pos;
+            int colon = -1;
+            while (pos < end && buf[pos] != '\n') {
+                if (colon < 0 && buf[pos] == ':') {
+                    colon = pos;
+                }
+                pos++;
+            }
+            if (colon < 0) {
+                continue;
+            }
+            int nameStart = trimStart(buf, lineStart, colon);
+            int nameEnd = trimEnd(buf, nameStart, colon);
+            if (nameEnd - nameStart == CONTENT_LENGTH.length() && nameEquals(buf, nameStart, CONTENT_LENGTH)) {
+                int valueStart = trimStart(buf, colon + 1, pos);
+                return parseLength(buf, valueStart, trimEnd(buf, valueStart, pos));
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return true if buf[start, end) holds nothing but whitespace, the same test that ends the headers in {@link #parse}
+     */
+    static boolean isBlank(byte[] buf, int start, int end) {
+        return trimStart(buf, start, end) == end;
+    }
+
+    /**
+     * @return a builder for a new frame with the given command
+     */
+    public static Builder builder(StompCommand command) {
+        return new Builder(command);
+    }
+
+    public StompCommand command() {
+        return command;
+    }
+
+    /**
+     * @return true if the codec could not accept the frame's bytes, the body then gives the reason
+     */
+    public boolean isMalformed() {
+        return malformed;
+    }
+
+    /**
+     * @return the command line as sent, also for an {@link StompCommand#UNKNOWN} command
+     */
+    public String commandLine() {
+        return new String(buf, 0, commandEnd, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the value of the first header with the given name, or null if there is none
+     */
+    public String header(String name) {
+        int index = indexOf(name);
+        if (index < 0) {
+            return null;
+        }
+        if (values == null) {
+            values = new String[headerCount];
+        }
+        if (values[index] == null) {
+            int h = index * 4;
+            values[index] = new String(buf, headers[h + 2], headers[h + 3] - headers[h + 2], StandardCharsets.UTF_8);
+        }
+        return values[index];
+    }
+
+    public boolean hasHeader(String name) {
+        return indexOf(name) >= 0;
+    }
+
+    /**
+     * @return the body decoded as UTF-8
+     */
+    public String body() {
+        return new String(buf, bodyStart, bodyEnd - bodyStart, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return a read-only view of the body bytes, without copying them
+     */
+    public ByteBuffer bodyBuffer() {
+        return ByteBuffer.wrap(buf, bodyStart, bodyEnd - bodyStart).slice().asReadOnlyBuffer();
+    }
+
+    public int bodyLength() {
+        return bodyEnd - bodyStart;
+    }
+
+    /**
+     * @return the encoded frame including the NUL terminator. Callers must not modify it.
+     */
+    byte[] bytes() {
+        return buf;
+    }
+
+    /**
+     * @return the offsets of the value of the first header with the given name as
+     * {start, end}, or null if there is none
+     */
+    int[] headerValueRange(String name) {
+        int index = indexOf(name);
+        return index < 0 ? null : new int[]{headers[index * 4 + 2], headers[index * 4 + 3]};
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, 0, bodyEnd, StandardCharsets.UTF_8);
+    }
+
+    private int indexOf(String name) {
+        for (int i = 0; i < headerCount; i++) {
+            int start = headers[i * 4];
+            int end = headers[i * 4 + 1];
+            if (end - start == name.length() && nameEquals(buf, start, name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Header names are ASCII, so their bytes compare directly to the chars of the name
+    private static boolean nameEquals(byte[] buf, int start, String name) {
+        for (int i = 0; i < name.length(); i++) {
+            if (buf[start + i] != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long parseLength(byte[] buf, int start, int end) {
+        if (start == end || end - start > 18) {
+            return INVALID_CONTENT_LENGTH;
+        }
+        long length = 0;
+        for (int i = start; i < end; i++) {
+            if (buf[i] < '0' || buf[i] > '9') {
+                return INVALID_CONTENT_LENGTH;
+            }
+            length = length * 10 + (buf[i] - '0');
+        }
+        return length;
+    }
+
+    private static int trimStart(byte[] buf, int start, int end) {
+        while (start < end && (buf[start] & 0xff) <= ' ') {
+            start++;
+        }
+        return start;
+    }
+
+    private static int trimEnd(byte[] buf, int start, int end) {
+        while (end > start && (buf[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        return end;
+    }
+
+    /**
+     * Writes a frame straight into its encoded form, recording the offsets as it goes.
+     * Headers come first; once the body is started no more headers can be added.
+     */
+    public static final class Builder {
+
+        private final StompCommand command;
+        private byte[] buf = new byte[256];
+        private int len = 0;
+        private int[] headers = new int[INITIAL_HEADERS * 4];
+        private int headerCount = 0;
+        private int bodyStart = -1;
+
+        private Builder(StompCommand command) {
+            this.command = command;
+            append(command.bytes(), 0, command.bytes().length);
+            append((byte) '\n');
+        }
+
+        public Builder header(String name, String value) {
+            if (bodyStart >= 0) {
+                throw new IllegalStateException("header " + name + " added after the body");
+            }
+            if (headerCount * 4 == headers.length) {
+                headers = Arrays.copyOf(headers, headers.length * 2);
+            }
+            int h = headerCount++ * 4;
+            headers[h] = len;
+            append(name.getBytes(StandardCharsets.UTF_8));
+            headers[h + 1] = len;
+            append((byte) ':');
+            headers[h + 2] = len;
+            append(value.getBytes(StandardCharsets.UTF_8));
+            headers[h + 3] = len;
+            append((byte) '\n');
+            return this;
+        }
+
+        /**
+         * appends the given text to the body
+         */
+        public Builder body(String text) {
+            startBody();
+            append(text.getBytes(StandardCharsets.UTF_8));
+            return this;
+        }
+
+        /**
+         * appends the remaining bytes of the given buffer to the body, without changing its position
+         */
+        public Builder body(ByteBuffer bytes) {
+            startBody();
+            ensureCapacity(len + bytes.remaining());
+            bytes.duplicate().get(buf, len, bytes.remaining());
+            len += bytes.remaining();
+            return this;
+        }
+
+        public StompFrame build() {
+            startBody();
+            append((byte) '\u0000');
+            byte[] frame = Arrays.copyOf(buf, len);
+            return new StompFrame(command, frame, command.bytes().length,
+                    Arrays.copyOf(headers, headerCount * 4), headerCount, bodyStart, len - 1);
+        }
+
+        private void startBody() {
+            if (bodyStart < 0) {
+                append((byte) '\n');
+                bodyStart = len;
+            }
+        }
+
+        private void append(byte b) {
+            ensureCapacity(len + 1);
+            buf[len++] = b;
+        }
+
+        private void append(byte[] bytes) {
+            append(bytes, 0, bytes.length);
+        }
+
+        private void append(byte[] bytes, int offset, int length) {
+            ensureCapacity(len + length);
+            System.arraycopy(bytes, offset, buf, len, length);
+            len += length;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package bgu.spl.net.impl.stomp;
+
+/**
+ * STOMP 1.2 heart-beating, negotiated at CONNECT.
+ * The heart-beat header of CONNECT holds cx,cy: the client sends something at least every cx
+ * milliseconds, and wants to hear from the server every cy. CONNECTED answers with the server's
+ * own sx,sy, read from stomp.heartbeat (default 10000,10000). The server then sends an EOL
+ * whenever it sent nothing for max(sx, cy), and drops the client as lost once it sent nothing
+ * for twice max(cx, sy); a 0 on either side turns that direction off.
+ */
+final class StompHeartBeat {
+
+    /**
+     * The server's heart-beat header: how often it can send, and how often it wants to hear from
+     * the client, in milliseconds.
+     */
+    static final String SERVER = System.getProperty("stomp.heartbeat", "10000,10000");
+
+    // How many intervals a client may let pass without sending, for the network's delays
+    private static final int TOLERANCE = 2;
+
+    private static final long[] SERVER_BEATS = serverBeats();
+
+    private StompHeartBeat() {
+    }
+
+    /**
+     * @param header a heart-beat header, may be null for none
+     * @return the two intervals of the header, 0,0 for none, or null if it is not valid
+     */
+    static long[] parse(String header) {
+        if (header == null) {
+            return new long[] {0, 0};
+        }
+        int comma = header.indexOf(',');
+        if (comma < 0) {
+            return null;
+        }
+        try {
+            long[] beats = {Long.parseLong(header.substring(0, comma).trim()),
+                    Long.parseLong(header.substring(comma + 1).trim())};
+            return beats[0] >= 0 && beats[1] >= 0 ? beats : null;
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @param client the intervals of the client's heart-beat header
+     * @return how often the server sends a heart-beat to the client, 0 for never
+     */
+    static long sendMillis(long[] client) {
+        return interval(SERVER_BEATS[0], client[1]);
+    }
+
+    /**
+     * @param client the intervals of the client's heart-beat header
+     * @return how long the client may stay silent before it is dropped, 0 for forever
+     */
+    static long timeoutMillis(long[] client) {
+        return TOLERANCE * interval(client[0], SERVER_BEATS[1]);
+    }
+
+    private static long[] serverBeats() {
+        long[] beats = parse(SERVER);
+        if (beats == null) {
+            System.err.println("Invalid stomp.heartbeat " + SERVER + ", not heart-beating");
+            return new long[] {0, 0};
+        }
+        return beats;
+    }
+
+    private static long interval(long sender, long receiver) {
+        return sender == 0 || receiver == 0 ? 0 : Math.max(sender, receiver);
+    }
+}
@@ -4,59 +4,80 @@ import bgu.spl.net.api.StompMessagingProtocol;
 import bgu.spl.net.impl.data.Database;
 import bgu.spl.net.impl.data.LoginStatus;
 import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.Histogram;
+import bgu.spl.net.srv.Metrics;
 
-import java.util.HashMap;
-import java.util.Map;
-
-public class StompMessagingProtocolImpl implements StompMessagingProtocol<String> {
+public class StompMessagingProtocolImpl implements StompMessagingProtocol<StompFrame> {
 
     private int connectionId;
-    private Connections<String> connections;
+    private Connections<StompFrame> connections;
     private boolean shouldTerminate = false;
     private String currentUser = null; 
+    // The latency histogram of each command, by ordinal, looked up on the command's first use
+    private Metrics metrics;
+    private final Histogram[] commandLatency = new Histogram[StompCommand.values().length];
 
     @Override
-    public void start(int connectionId, Connections<String> connections) {
+    public void start(int connectionId, Connections<StompFrame> connections) {
         this.connectionId = connectionId;
         this.connections = connections;
+        this.metrics = connections.metrics();
     }
 
-    public StompMessagingProtocolImpl(Connections<String> connections) {
+    public StompMessagingProtocolImpl(Connections<StompFrame> connections) {
         this.connections = connections;
     }
 
     @Override
-    public void process(String message) {
-        String[] lines = message.split("\n");
-        if (lines.length == 0) return;
-
-        String command = lines[0].trim();
-        Map<String, String> headers = parseHeaders(message);
-        String body = extractBody(message);
-
-        // Delegate execution based on the STOMP command
-        switch (command) {
-            case "CONNECT":
-                handleConnect(headers);
+    public void process(StompFrame message) {
+        if (message.isMalformed()) {
+            sendError(message, "Malformed Frame", message.body());
+            return;
+        }
+
+        long start = System.nanoTime();
+        try {
+            dispatch(message);
+        } finally {
+            if (metrics != null) {
+                commandLatency(message.command()).record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private void dispatch(StompFrame message) {
+        // The codec already parsed the frame, headers are looked up straight from its bytes
+        switch (message.command()) {
+            case CONNECT:
+                handleConnect(message);
                 break;
-            case "SUBSCRIBE":
-                handleSubscribe(headers);
+            case SUBSCRIBE:
+                handleSubscribe(message);
                 break;
-            case "UNSUBSCRIBE":
-                handleUnsubscribe(headers);
+            case UNSUBSCRIBE:
+                handleUnsubscribe(message);
                 break;
-            case "SEND":
-                handleSend(headers, body);
+            case SEND:
+                handleSend(message);
                 break;
-            case "DISCONNECT":
-                handleDisconnect(headers);
+            case DISCONNECT:
+                handleDisconnect(message);
                 break;
             default:
-                sendError(headers, "Unknown Command", "The command " + command + " is not recognized.");
+                sendError(message, "Unknown Command", "The command " + message.commandLine() + " is not recognized.");
                 break;
         }
     }
 
+    private Histogram commandLatency(StompCommand command) {
+        Histogram histogram = commandLatency[command.ordinal()];
+        if (histogram == null) {
+            histogram = metrics.histogram("stomp." + command.name().toLowerCase() + ".latency_ns");
+            commandLatency[command.ordinal()] = histogram;
+        }
+        return histogram;
+    }
+
     @Override
     public boolean shouldTerminate() {
         return shouldTerminate;
@@ -64,18 +85,23 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
 
     // --- Command Handler Methods ---
 
-    private void handleConnect(Map<String, String> headers) {
-        String login = headers.get("login");
-        String passcode = headers.get("passcode");
-        String acceptVersion = headers.get("accept-version");
+    private void handleConnect(StompFrame frame) {
+        String login = frame.header("login");
+        String passcode = frame.header("passcode");
+        String acceptVersion = frame.header("accept-version");
 
         // Validate mandatory headers
         if (acceptVersion == null || !acceptVersion.equals("1.2")) {
-            sendError(headers, "Malformed Frame", "Supported version is 1.2");
+            sendError(frame, "Malformed Frame", "Supported version is 1.2");
             return;
         }
         if (login == null || passcode == null) {
-            sendError(headers, "Malformed Frame", "Missing login or passcode header");
+            sendError(frame, "Malformed Frame", "Missing login or passcode header");
+            return;
+        }
+        long[] heartBeat = StompHeartBeat.parse(frame.header("heart-beat"));
+        if (heartBeat == null) {
+            sendError(frame, "Malformed Frame", "The heart-beat header must be two non-negative numbers");
             return;
         }
 
@@ -85,11 +111,24 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         if (status == LoginStatus.LOGGED_IN_SUCCESSFULLY || status == LoginStatus.ADDED_NEW_USER) {
             this.currentUser = login;
             
-            // Send success frame
-            String response = "CONNECTED\n" +
-                              "version:1.2\n" +
-                              "\n";
-            connections.send(connectionId, response);
+            // Send success frame, naming the compression picked if the client asked for one
+            String compression = StompCompression.negotiate(frame.header("accept-compression"));
+            StompFrame.Builder response = StompFrame.builder(StompCommand.CONNECTED)
+                    .header("version", "1.2");
+            if (compression != null) {
+                response.header("compression", compression);
+            }
+            // The first heart-beat is an interval away, well behind CONNECTED
+            long sendMillis = StompHeartBeat.sendMillis(heartBeat);
+            long timeoutMillis = StompHeartBeat.timeoutMillis(heartBeat);
+            if ((sendMillis > 0 || timeoutMillis > 0) && connections.heartBeat(connectionId, sendMillis, timeoutMillis)) {
+                response.header("heart-beat", StompHeartBeat.SERVER);
+            }
+            connections.send(connectionId, response.build());
+            if (compression != null) {
+                // Everything behind CONNECTED is compressed
+                connections.compress(connectionId, StompCompression.of(compression), StompCompression.DICTIONARY);
+            }
         } else {
             // Handle various login failures
             String errorMsg = "Login failed";
@@ -97,29 +136,64 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             else if (status == LoginStatus.ALREADY_LOGGED_IN) errorMsg = "User already logged in";
             else if (status == LoginStatus.CLIENT_ALREADY_CONNECTED) errorMsg = "Client already connected";
             
-            sendError(headers, "Login Failed", errorMsg);
+            sendError(frame, "Login Failed", errorMsg);
         }
     }
 
-    private void handleSubscribe(Map<String, String> headers) {
-        String destination = headers.get("destination");
-        String id = headers.get("id");
+    private void handleSubscribe(StompFrame frame) {
+        String destination = frame.header("destination");
+        String id = frame.header("id");
 
         if (destination == null || id == null) {
-            sendError(headers, "Malformed Frame", "Missing destination or id header");
+            sendError(frame, "Malformed Frame", "Missing destination or id header");
+            return;
+        }
+
+        // A replay header asks for the messages the channel kept, a number of them or "all"
+        String replayHeader = frame.header("replay");
+        int replay;
+        try {
+            replay = replayHeader == null ? 0 : replayHeader.equals("all") ? Integer.MAX_VALUE : Integer.parseInt(replayHeader);
+        } catch (NumberFormatException ex) {
+            replay = -1;
+        }
+        if (replay < 0) {
+            sendError(frame, "Malformed Frame", "Invalid replay header, expected a count or all");
+            return;
+        }
+
+        // An offset header resumes from the channel's log, taking the place of replay
+        String offsetHeader = frame.header("offset");
+        long offset;
+        try {
+            offset = offsetHeader == null ? 0 : Long.parseLong(offsetHeader);
+        } catch (NumberFormatException ex) {
+            offset = -1;
+        }
+        if (offset < 0) {
+            sendError(frame, "Malformed Frame", "Invalid offset header, expected an offset of the destination's log");
             return;
         }
 
-        // Register the subscription
-        connections.subscribe(destination, connectionId, id);
+        // Register the subscription, the destination may be a wildcard pattern
+        try {
+            if (offsetHeader != null) {
+                connections.resume(destination, connectionId, id, offset);
+            } else {
+                connections.subscribe(destination, connectionId, id, replay);
+            }
+        } catch (IllegalArgumentException ex) {
+            sendError(frame, "Malformed Frame", ex.getMessage());
+            return;
+        }
 
-        sendReceiptIfNeeded(headers);
+        sendReceiptIfNeeded(frame);
     }
 
-    private void handleUnsubscribe(Map<String, String> headers) {
-        String id = headers.get("id");
+    private void handleUnsubscribe(StompFrame frame) {
+        String id = frame.header("id");
         if (id == null) {
-             sendError(headers, "Malformed Frame", "Missing id header");
+             sendError(frame, "Malformed Frame", "Missing id header");
              return;
         }
 
@@ -127,52 +201,74 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         // ConnectionsImpl will look up the corresponding channel and remove the user.
         connections.unsubscribe(id, connectionId);
         
-        sendReceiptIfNeeded(headers);
+        sendReceiptIfNeeded(frame);
     }
 
-    private void handleSend(Map<String, String> headers, String body) {
-        String destination = headers.get("destination");
+    private void handleSend(StompFrame frame) {
+        String destination = frame.header("destination");
         if (destination == null) {
-            sendError(headers, "Malformed Frame", "Missing destination header");
+            sendError(frame, "Malformed Frame", "Missing destination header");
+            return;
+        }
+
+        // Only the server publishes to its reserved destinations, such as the metrics
+        if (Metrics.isReserved(destination)) {
+            sendError(frame, "Unauthorized", "Destination " + destination + " is reserved for the server");
             return;
         }
 
         // Ensure the user is logged in before allowing them to send messages
         if (this.currentUser == null) {
-            sendError(headers, "Unauthorized", "You must log in first");
+            sendError(frame, "Unauthorized", "You must log in first");
             return;
         }
 
         // If the user tries to send to a channel they are not subscribed to -> Error
         if (!connections.isSubscribed(destination, connectionId)) {
-            sendError(headers, "Unauthorized", "User is not subscribed to topic " + destination);
+            sendError(frame, "Unauthorized", "User is not subscribed to topic " + destination);
             return;
         }
 
     // Check if this SEND frame comes from a 'report' command (contains the file header)
-    String filename = headers.get("file");
+    String filename = frame.header("file");
     if (filename != null) {
         Database.getInstance().trackFileUpload(this.currentUser, filename, destination);
     }
 
-        // Construct the MESSAGE frame for broadcasting
-        String messageFrame = "MESSAGE\n" +
-                              "subscription:0\n" + 
-                              "message-id:" + System.currentTimeMillis() + "\n" +
-                              "destination:" + destination + "\n" +
-                              "\n" +
-                              body + "\n";
+        // Broadcast to all subscribers of the channel, the MESSAGE frame is built
+        // once the channel's log gave it an offset, which subscribers may resume from
+        connections.send(destination, offset -> messageFrame(frame, destination, offset));
+        sendReceiptIfNeeded(frame);
+    }
 
-        // Broadcast to all subscribers of the channel
-        connections.send(destination, messageFrame);
-        sendReceiptIfNeeded(headers);
+    private StompFrame messageFrame(StompFrame frame, String destination, long offset) {
+        // Construct the MESSAGE frame for broadcasting, copying the body over as bytes
+        StompFrame.Builder messageFrame = StompFrame.builder(StompCommand.MESSAGE)
+                .header("subscription", "0")
+                .header("message-id", String.valueOf(System.currentTimeMillis()))
+                .header("destination", destination);
+        if (offset >= 0) {
+            messageFrame.header("offset", String.valueOf(offset));
+        }
+        if (frame.hasHeader("content-length")) {
+            // A sized body may be binary, so it is forwarded exactly as sent
+            if (frame.hasHeader("content-type")) {
+                messageFrame.header("content-type", frame.header("content-type"));
+            }
+            messageFrame.header("content-length", String.valueOf(frame.bodyLength()))
+                        .body(frame.bodyBuffer());
+        } else {
+            messageFrame.body(frame.bodyBuffer())
+                        .body("\n");
+        }
+        return messageFrame.build();
     }
 
-    private void handleDisconnect(Map<String, String> headers) {
+    private void handleDisconnect(StompFrame frame) {
         // Mark user as logged out in the database
         Database.getInstance().logout(connectionId);
         
-        sendReceiptIfNeeded(headers);
+        sendReceiptIfNeeded(frame);
         
         // Signal termination and close connection.
         // ConnectionsImpl will automatically clean up all subscriptions for this ID.
@@ -180,48 +276,40 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         connections.disconnect(connectionId);
     }
 
+    @Override
+    public void connectionLost() {
+        if (shouldTerminate) {
+            return; // disconnected and logged out already
+        }
+        Database.getInstance().logout(connectionId);
+        shouldTerminate = true;
+        connections.disconnect(connectionId);
+    }
+
     // --- Helper Methods ---
 
-    private void sendReceiptIfNeeded(Map<String, String> headers) {
-        String receiptId = headers.get("receipt");
+    private void sendReceiptIfNeeded(StompFrame frame) {
+        String receiptId = frame.header("receipt");
         if (receiptId != null) {
-            String receiptFrame = "RECEIPT\n" +
-                                  "receipt-id:" + receiptId + "\n" +
-                                  "\n" ;
+            StompFrame receiptFrame = StompFrame.builder(StompCommand.RECEIPT)
+                    .header("receipt-id", receiptId)
+                    .build();
             connections.send(connectionId, receiptFrame);
         }
     }
 
-    private void sendError(Map<String, String> headers, String message, String description) {
-        String errorFrame = "ERROR\n" +
-                            "message:" + message + "\n" +
-                            (headers.containsKey("receipt") ? "receipt-id:" + headers.get("receipt") + "\n" : "") +
-                            "\n" +
-                            description + "\n";
-        connections.send(connectionId, errorFrame);
+    private void sendError(StompFrame frame, String message, String description) {
+        StompFrame.Builder errorFrame = StompFrame.builder(StompCommand.ERROR)
+                .header("message", message);
+        if (frame.hasHeader("receipt")) {
+            errorFrame.header("receipt-id", frame.header("receipt"));
+        }
+        errorFrame.body(description + "\n");
+        connections.send(connectionId, errorFrame.build());
         
-        // Protocol requires closing connection after an ERROR frame
+        // Protocol requires closing connection after an ERROR frame, which also logs the user out
+        Database.getInstance().logout(connectionId);
         shouldTerminate = true;
         connections.disconnect(connectionId);
     }
-
-    private Map<String, String> parseHeaders(String message) {
-        Map<String, String> headers = new HashMap<>();
-        String[] lines = message.split("\n");
-        for (int i = 1; i < lines.length; i++) {
-            String line = lines[i].trim();
-            if (line.isEmpty()) break;
-            String[] parts = line.split(":", 2);
-            if (parts.length == 2) {
-                headers.put(parts[0].trim(), parts[1].trim());
-            }
-        }
-        return headers;
-    }
-
-    private String extractBody(String message) {
-        int splitIndex = message.indexOf("\n\n");
-        if (splitIndex == -1) return "";
-        return message.substring(splitIndex + 2);
-    }
 }
\ No newline at end of file
@@ -1,16 +1,26 @@
 package bgu.spl.net.impl.stomp;
 
+import bgu.spl.net.srv.BroadcastStage;
 import bgu.spl.net.srv.ConnectionsImpl;
+import bgu.spl.net.srv.LogPolicy;
+import bgu.spl.net.srv.MessageLog;
+import bgu.spl.net.srv.Metrics;
+import bgu.spl.net.srv.RetentionPolicy;
 import bgu.spl.net.srv.Server;
+import bgu.spl.net.srv.SlowConsumerPolicy;
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.StompMessagingProtocol;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Supplier;
 
 public class StompServer {
 
-    public static void main(String[] args) {
+    public static void main(String[] args) throws IOException {
         if (args.length < 2) {
-            System.out.println("Usage: StompServer <port> <tpc|reactor>");
+            System.out.println("Usage: StompServer <port> <tpc|vthreads|reactor> [selector loops]");
             return;
         }
 
@@ -19,28 +29,145 @@ public class StompServer {
 
         // Initialize the shared Connections object once.
         // This object holds the map of topics and active users.
-        ConnectionsImpl<String> sharedConnections = new ConnectionsImpl<>();
+        // Channel messages are encoded once per broadcast rather than once per subscriber.
+        ConnectionsImpl<StompFrame> sharedConnections = new ConnectionsImpl<>(slowConsumerPolicy(), new StompEncoderDecoder(),
+                broadcastStage(), retentionPolicy(), messageLog());
+        publishMetrics(sharedConnections);
 
         // Pass the SAME sharedConnections object to every new Protocol instance.
         // This ensures all clients see the same data (subscriptions/topics).
-        Supplier<StompMessagingProtocol<String>> protocolFactory = () -> new StompMessagingProtocolImpl(sharedConnections);
+        Supplier<StompMessagingProtocol<StompFrame>> protocolFactory = () -> new StompMessagingProtocolImpl(sharedConnections);
 
-        Supplier<MessageEncoderDecoder<String>> encoderFactory = () -> new StompEncoderDecoder();
+        // Frames above stomp.frame.max bytes are refused with an ERROR frame
+        int maxFrameSize = Integer.getInteger("stomp.frame.max", StompEncoderDecoder.DEFAULT_MAX_FRAME_SIZE);
+        Supplier<MessageEncoderDecoder<StompFrame>> encoderFactory = () -> new StompEncoderDecoder(maxFrameSize);
 
         if (serverType.equals("tpc")) {
             Server.threadPerClient(
                     port,
                     protocolFactory,
-                    encoderFactory
+                    encoderFactory,
+                    sharedConnections
             ).serve();
 
+        } else if (serverType.equals("vthreads")) {
+            // Thread per client on virtual threads, needs JDK 21+
+            try {
+                Server.virtualThreadPerClient(
+                        port,
+                        protocolFactory,
+                        encoderFactory,
+                        sharedConnections
+                ).serve();
+            } catch (UnsupportedOperationException ex) {
+                System.out.println(ex.getMessage());
+            }
+
         } else if (serverType.equals("reactor")) {
+            // One selector loop per core by default, so socket I/O is not bound to a single thread
+            int selectors = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
             Server.reactor(
                     Runtime.getRuntime().availableProcessors(),
+                    selectors,
                     port,
                     protocolFactory,
-                    encoderFactory
+                    encoderFactory,
+                    sharedConnections
             ).serve();
         }
     }
+
+    /**
+     * Builds the stage delivering the broadcasts of large channels from the system properties
+     * stomp.fanout.threshold (subscribers, 0 to deliver every broadcast on the worker),
+     * stomp.fanout.lanes (delivery threads) and stomp.fanout.queue (broadcasts a lane holds).
+     */
+    private static BroadcastStage broadcastStage() {
+        int threshold = Integer.getInteger("stomp.fanout.threshold", 1000);
+        int lanes = Integer.getInteger("stomp.fanout.lanes", Runtime.getRuntime().availableProcessors());
+        int queue = Integer.getInteger("stomp.fanout.queue", BroadcastStage.DEFAULT_LANE_CAPACITY);
+        return threshold > 0 ? new BroadcastStage(threshold, lanes, queue) : null;
+    }
+
+    /**
+     * Builds the retention of channel messages for late subscribers from the system properties
+     * stomp.retain.frames (messages per destination, 0 to keep none), stomp.retain.seconds
+     * (0 for no time limit) and stomp.retain.bytes (encoded bytes per destination).
+     */
+    private static RetentionPolicy retentionPolicy() {
+        int frames = Integer.getInteger("stomp.retain.frames", 0);
+        long seconds = Long.getLong("stomp.retain.seconds", 0);
+        long bytes = Long.getLong("stomp.retain.bytes", 1L << 20);
+        return new RetentionPolicy(frames, seconds * 1000, bytes);
+    }
+
+    /**
+     * Opens the log keeping every channel message on disk when the system property stomp.log.dir
+     * names its directory, laid out by stomp.log.segment.bytes (size segments grow to),
+     * stomp.log.retain.bytes and stomp.log.retain.hours (per destination, 0 for no limit),
+     * stomp.log.fsync (batch, interval or none) and stomp.log.fsync.millis (interval).
+     */
+    private static MessageLog messageLog() throws IOException {
+        String dir = System.getProperty("stomp.log.dir");
+        if (dir == null) {
+            return null;
+        }
+        int segmentBytes = Integer.getInteger("stomp.log.segment.bytes", 16 << 20);
+        long retainBytes = Long.getLong("stomp.log.retain.bytes", 1L << 30);
+        long retainHours = Long.getLong("stomp.log.retain.hours", 7 * 24);
+        String fsync = System.getProperty("stomp.log.fsync", "interval");
+        long fsyncMillis = Long.getLong("stomp.log.fsync.millis", 1000);
+
+        MessageLog log = new MessageLog(Path.of(dir), new LogPolicy(segmentBytes, retainBytes, retainHours * 3600_000,
+                LogPolicy.Fsync.valueOf(fsync.toUpperCase()), fsyncMillis));
+        // Force what is still only in the mapped segments on a normal shutdown
+        Runtime.getRuntime().addShutdownHook(new Thread(log::close));
+        return log;
+    }
+
+    /**
+     * Registers the server's metrics with JMX and starts publishing their report to the
+     * subscribers of /$SYS/metrics every stomp.metrics.millis (0 to publish none).
+     */
+    private static void publishMetrics(ConnectionsImpl<StompFrame> connections) {
+        Metrics metrics = connections.metrics();
+        metrics.register();
+        long millis = Long.getLong("stomp.metrics.millis", 5000);
+        if (millis <= 0) {
+            return;
+        }
+        Thread publisher = new Thread(() -> {
+            while (true) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+                // The report is only built when someone is subscribed
+                connections.send(Metrics.DESTINATION, offset -> StompFrame.builder(StompCommand.MESSAGE)
+                        .header("subscription", "0")
+                        .header("message-id", String.valueOf(System.currentTimeMillis()))
+                        .header("destination", Metrics.DESTINATION)
+                        .header("content-type", "text/plain")
+                        .body(metrics.getReport())
+                        .build());
+            }
+        }, "metrics-publisher");
+        publisher.setDaemon(true);
+        publisher.start();
+    }
+
+    /**
+     * Builds the slow consumer policy from the system properties
+     * stomp.outbound.high and stomp.outbound.low (bytes per connection) and
+     * stomp.outbound.policy (drop-oldest, pause or disconnect).
+     */
+    private static SlowConsumerPolicy<StompFrame> slowConsumerPolicy() {
+        long high = Long.getLong("stomp.outbound.high", 8L << 20);
+        long low = Long.getLong("stomp.outbound.low", high / 2);
+        String action = System.getProperty("stomp.outbound.policy", "drop-oldest");
+
+        StompFrame goodbye = StompFrame.builder(StompCommand.ERROR)
+                .header("message", "Slow consumer")
+                .body("The client could not keep up with its subscriptions and was disconnected.\n")
+                .build();
+        return new SlowConsumerPolicy<>(high, low,
+                SlowConsumerPolicy.Action.valueOf(action.toUpperCase().replace('-', '_')), goodbye);
+    }
 }
\ No newline at end of file
@@ -1,76 +1,80 @@
 package bgu.spl.net.srv;
 
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Queue;
-import java.util.Set;
-import java.util.WeakHashMap;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public class ActorThreadPool {
 
-    private final Map<Object, Queue<Runnable>> acts;
-    private final ReadWriteLock actsRWLock;
-    private final Set<Object> playingNow;
+    // An actor runs at most this many of its tasks before giving its worker to other actors
+    private static final int MAX_TASKS_PER_RUN = 16;
+
     private final ExecutorService threads;
+    // Records how long tasks wait in their mailbox, null to record nothing
+    private final Histogram queueWait;
 
     public ActorThreadPool(int threads) {
-        this.threads = Executors.newFixedThreadPool(threads);
-        acts = new WeakHashMap<>();
-        playingNow = ConcurrentHashMap.newKeySet();
-        actsRWLock = new ReentrantReadWriteLock();
+        this(Executors.newFixedThreadPool(threads));
     }
 
-    public void submit(Object act, Runnable r) {
-        synchronized (act) {
-            if (!playingNow.contains(act)) {
-                playingNow.add(act);
-                execute(r, act);
-            } else {
-                pendingRunnablesOf(act).add(r);
-            }
+    /**
+     * @param threads the executor the actors run on, shut down together with this pool
+     */
+    public ActorThreadPool(ExecutorService threads) {
+        this(threads, null);
+    }
+
+    /**
+     * @param queueWait where the nanoseconds from a task's submission to its start are recorded
+     */
+    public ActorThreadPool(ExecutorService threads, Histogram queueWait) {
+        this.threads = threads;
+        this.queueWait = queueWait;
+    }
+
+    /**
+     * Posts a task to an actor's mailbox.
+     * Tasks of the same mailbox run one at a time, in the order they were submitted.
+     * No lock is taken: the task is queued and the first submitter that flips the
+     * mailbox's scheduled flag hands it to a worker.
+     */
+    public void submit(Mailbox act, Runnable r) {
+        if (queueWait != null) {
+            long submitted = System.nanoTime();
+            Runnable task = r;
+            r = () -> {
+                queueWait.record(System.nanoTime() - submitted);
+                task.run();
+            };
         }
+        act.pending.add(r);
+        schedule(act);
     }
 
     public void shutdown() {
         threads.shutdownNow();
     }
 
-    private Queue<Runnable> pendingRunnablesOf(Object act) {
-
-        actsRWLock.readLock().lock();
-        Queue<Runnable> pendingRunnables = acts.get(act);
-        actsRWLock.readLock().unlock();
-
-        if (pendingRunnables == null) {
-            actsRWLock.writeLock().lock();
-            acts.put(act, pendingRunnables = new LinkedList<>());
-            actsRWLock.writeLock().unlock();
+    private void schedule(Mailbox act) {
+        if (act.scheduled.compareAndSet(false, true)) {
+            threads.execute(() -> run(act));
         }
-        return pendingRunnables;
     }
 
-    private void execute(Runnable r, Object act) {
-        threads.execute(() -> {
-            try {
+    private void run(Mailbox act) {
+        try {
+            for (int i = 0; i < MAX_TASKS_PER_RUN; i++) {
+                Runnable r = act.pending.poll();
+                if (r == null) {
+                    break;
+                }
                 r.run();
-            } finally {
-                complete(act);
             }
-        });
-    }
-
-    private void complete(Object act) {
-        synchronized (act) {
-            Queue<Runnable> pending = pendingRunnablesOf(act);
-            if (pending.isEmpty()) {
-                playingNow.remove(act);
-            } else {
-                execute(pending.poll(), act);
+        } finally {
+            // Clear the flag before checking for new tasks, a task posted in between is
+            // then either seen here or scheduled by its own submitter
+            act.scheduled.set(false);
+            if (!act.pending.isEmpty()) {
+                schedule(act);
             }
         }
     }
@@ -16,7 +16,7 @@ public abstract class BaseServer<T> implements Server<T> {
     private final Supplier<MessageEncoderDecoder<T>> encdecFactory;
     private ServerSocket sock;
     
-    private final ConnectionsImpl<T> connections = new ConnectionsImpl<>(); 
+    private final ConnectionsImpl<T> connections;
     private int idCounter = 0;
 
     public BaseServer(
@@ -24,9 +24,19 @@ public abstract class BaseServer<T> implements Server<T> {
             Supplier<StompMessagingProtocol<T>> protocolFactory, // Update Constructor
             Supplier<MessageEncoderDecoder<T>> encdecFactory) {
 
+        this(port, protocolFactory, encdecFactory, new ConnectionsImpl<>());
+    }
+
+    public BaseServer(
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encdecFactory,
+            ConnectionsImpl<T> connections) {
+
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.encdecFactory = encdecFactory;
+        this.connections = connections;
         this.sock = null;
     }
 
@@ -58,6 +68,7 @@ public abstract class BaseServer<T> implements Server<T> {
         }
 
         System.out.println("server closed");
+        connections.shutdown();
     }
 
     @Override
@@ -1,15 +1,24 @@
 package bgu.spl.net.srv;
 
+import bgu.spl.net.api.EncodedBroadcast;
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.StompMessagingProtocol; // Update Import
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
+    private static final int READ_CHUNK_SIZE = 8192;
+
     // Update field type
     private final StompMessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
@@ -17,9 +26,21 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
     private BufferedInputStream in;
     private BufferedOutputStream out;
     private volatile boolean connected = true;
+    // Guards the output stream against concurrent sends. A lock rather than synchronized,
+    // so a virtual thread blocked in a socket write unmounts instead of pinning its carrier.
+    private final ReentrantLock writeLock = new ReentrantLock();
+
+    // Frames are written to frames, the socket's stream or, once a deflate stream was negotiated,
+    // the deflater, which fills deflated for the socket. Guarded by the write lock.
+    private OutputStream frames;
+    private Compression compression;
+    private Deflater deflater;
+    private ByteArrayOutputStream deflated;
 
     private final int connectionId; 
     private final Connections<T> connections;
+    private final Metrics metrics;
+    private final Metrics.Traffic traffic;
 
     // Update Constructor
     public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, StompMessagingProtocol<T> protocol, int connectionId, Connections<T> connections) {
@@ -30,6 +51,8 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
         this.connections = connections;
         
         ((ConnectionsImpl<T>) connections).addConnection(connectionId, this);
+        this.metrics = ((ConnectionsImpl<T>) connections).metrics();
+        this.traffic = metrics.connectionOpened(connectionId);
 
         // Initialize the protocol
         protocol.start(connectionId, connections);
@@ -39,47 +62,130 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
     public void run() {
         try (Socket sock = this.sock) { 
             int read;
+            byte[] chunk = new byte[READ_CHUNK_SIZE];
+            ByteBuffer buf = ByteBuffer.wrap(chunk);
 
             in = new BufferedInputStream(sock.getInputStream());
             out = new BufferedOutputStream(sock.getOutputStream());
+            frames = out;
 
-            while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
-                T nextMessage = encdec.decodeNextByte((byte) read);
-                if (nextMessage != null) {
-                    
-                    // Crucial Change: process() is now void. 
-                    // We just call it. We DO NOT send the return value.
-                    protocol.process(nextMessage);
-                    
-                }
+            while (!protocol.shouldTerminate() && connected && (read = in.read(chunk)) >= 0) {
+                traffic.read(read);
+                buf.clear().limit(read);
+                encdec.decode(buf, this::process);
             }
 
         } catch (IOException ex) {
             ex.printStackTrace();
         } finally {
+            // Unless the client disconnected, the protocol logs it out and drops its subscriptions
+            protocol.connectionLost();
             close();
         }
     }
 
+    private void process(T nextMessage) {
+        // Crucial Change: process() is now void. 
+        // We just call it. We DO NOT send the return value.
+        // Messages read behind a terminating one are dropped, as they were when reading byte by byte.
+        if (!protocol.shouldTerminate()) {
+            protocol.process(nextMessage);
+        }
+    }
+
     @Override
     public void close() {
         connected = false;
+        metrics.connectionClosed(connectionId);
         try {
             sock.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
+        // Closing the socket first fails any write in progress, which gives the lock back
+        writeLock.lock();
+        try {
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+                deflated = null;
+                frames = out;
+            }
+        } finally {
+            writeLock.unlock();
+        }
     }
 
     @Override
     public void send(T msg) {
+        if (msg == null) {
+            return;
+        }
+        writeLock.lock();
         try {
-            if (msg != null) {
-                out.write(encdec.encode(msg));
-                out.flush();
+            byte[] encoded = encdec.encode(msg);
+            long start = System.nanoTime();
+            frames.write(encoded);
+            flush(encoded.length, start);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void publish(EncodedBroadcast msg, String subscriptionId) {
+        writeLock.lock();
+        try {
+            if (compression == Compression.FRAME) {
+                EncodedBroadcast compressed = msg.compressed();
+                metrics.compressed(msg.size(), compressed.size(), msg.takeCompressionNanos());
+                msg = compressed;
             }
+            long start = System.nanoTime();
+            msg.writeTo(frames, subscriptionId);
+            flush(msg.size() + subscriptionId.length(), start);
         } catch (IOException e) {
             e.printStackTrace();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    public void compress(Compression compression, byte[] dictionary) {
+        writeLock.lock();
+        try {
+            if (compression == Compression.STREAM && deflater == null && connected) {
+                deflater = new Deflater();
+                deflater.setDictionary(dictionary);
+                deflated = new ByteArrayOutputStream();
+                frames = new DeflaterOutputStream(deflated, deflater, true);
+            }
+            this.compression = compression;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the frames written since the last flush to the socket, deflated first when the
+     * connection has a deflate stream. Called under the write lock.
+     * @param plainBytes the size of the frames before compression
+     * @param start when writing the frames started, to time the compression
+     */
+    private void flush(long plainBytes, long start) throws IOException {
+        if (deflated == null) {
+            out.flush();
+            traffic.written(plainBytes);
+            return;
         }
+        frames.flush(); // a sync flush, so the client can inflate everything written so far
+        metrics.compressed(plainBytes, deflated.size(), System.nanoTime() - start);
+        traffic.written(deflated.size());
+        deflated.writeTo(out);
+        deflated.reset();
+        out.flush();
     }
 }
\ No newline at end of file
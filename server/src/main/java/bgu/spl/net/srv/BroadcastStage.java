@@ -0,0 +1,149 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers the broadcasts of large channels on threads of its own, so the worker that handled
+ * the SEND moves on as soon as the fan-out is handed over, however many subscribers there are.
+ * Subscribers are spread over lanes by connection id and every lane delivers on one thread, in
+ * the order broadcasts were handed to it. While a channel still has deliveries in the lanes, its
+ * next broadcasts go through the lanes too, even when small, so no subscriber ever gets a
+ * channel's messages out of order.
+ * A lane holds a bounded number of broadcasts; once it is full, whoever hands it the next one
+ * waits for room, so a lane held up by a slow subscriber slows its publishers down rather than
+ * piling up their broadcasts.
+ */
+public class BroadcastStage {
+
+    public static final int DEFAULT_LANE_CAPACITY = 1024;
+
+    private final int threshold;
+    private final Lane[] lanes;
+
+    public BroadcastStage(int threshold, int lanes) {
+        this(threshold, lanes, DEFAULT_LANE_CAPACITY);
+    }
+
+    /**
+     * @param threshold the number of subscribers from which a channel's broadcasts leave the worker
+     * @param lanes the number of threads delivering in parallel
+     * @param laneCapacity the number of broadcasts a lane holds before its publishers wait
+     */
+    public BroadcastStage(int threshold, int lanes, int laneCapacity) {
+        if (lanes < 1) {
+            throw new IllegalArgumentException("a broadcast stage needs at least one lane, got " + lanes);
+        }
+        this.threshold = threshold;
+        this.lanes = new Lane[lanes];
+        for (int i = 0; i < lanes; i++) {
+            this.lanes[i] = new Lane("broadcast-lane-" + i, laneCapacity);
+        }
+    }
+
+    /**
+     * Stops the lanes. The broadcasts still in them are not delivered, and those handed over
+     * from then on are dropped.
+     */
+    public void shutdown() {
+        for (Lane lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    /**
+     * @return true if the broadcast should be handed to {@link #dispatch} rather than delivered in place
+     */
+    <T> boolean accepts(ChannelRegistry.Channel<T> channel, ChannelRegistry.Subscribers<T> subscribers) {
+        return subscribers.size() >= threshold || channel.deliveriesInFlight() > 0;
+    }
+
+    /**
+     * Hands every lane the subscribers that belong to it and returns without waiting for them.
+     */
+    <T> void dispatch(ChannelRegistry.Channel<T> channel, ChannelRegistry.Subscribers<T> subscribers, Delivery<T> delivery) {
+        int[][] byLane = subscribers.byLane(lanes.length);
+        for (int lane = 0; lane < lanes.length; lane++) {
+            int[] indices = byLane[lane];
+            if (indices.length == 0) {
+                continue;
+            }
+            channel.deliveryStarted();
+            boolean handedOver = lanes[lane].execute(() -> {
+                try {
+                    for (int index : indices) {
+                        try {
+                            delivery.deliver(subscribers, index);
+                        } catch (RuntimeException ex) {
+                            ex.printStackTrace(); // one failing subscriber must not starve the rest of the lane
+                        }
+                    }
+                } finally {
+                    channel.deliveryDone();
+                }
+            });
+            if (!handedOver) {
+                channel.deliveryDone();
+            }
+        }
+    }
+
+    /**
+     * Delivers a broadcast to one subscriber of a snapshot.
+     */
+    interface Delivery<T> {
+        void deliver(ChannelRegistry.Subscribers<T> subscribers, int index);
+    }
+
+    /**
+     * One delivery thread and the broadcasts waiting for it.
+     */
+    private static final class Lane implements Runnable {
+
+        private final BlockingQueue<Runnable> tasks;
+        private final Thread thread;
+        private volatile boolean stopped = false;
+
+        Lane(String name, int capacity) {
+            this.tasks = new ArrayBlockingQueue<>(capacity);
+            this.thread = new Thread(this, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Queues the task, waiting for room while the lane is full.
+         * @return false if the lane was stopped, or the caller interrupted, before it took the task
+         */
+        boolean execute(Runnable task) {
+            try {
+                while (!stopped) {
+                    if (tasks.offer(task, 100, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        void shutdown() {
+            stopped = true;
+            thread.interrupt();
+            tasks.clear();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!stopped) {
+                    tasks.take().run();
+                }
+            } catch (InterruptedException ex) {
+                // stopped
+            }
+        }
+    }
+}
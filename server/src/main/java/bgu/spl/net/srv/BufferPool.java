@@ -0,0 +1,117 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free pool of direct byte buffers, kept in a few fixed size classes.
+ * Buffers are usually acquired by a selector thread and released by the worker that
+ * decoded them, so both operations are safe to call from any thread.
+ */
+public class BufferPool {
+
+    private static final int[] SIZE_CLASSES = {1 << 10, 1 << 13, 1 << 16}; // 1k, 8k, 64k
+    private static final int DEFAULT_POOLED_BYTES_PER_CLASS = 4 << 20;      // 4MB
+
+    private final SizeClass[] classes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public BufferPool() {
+        this(DEFAULT_POOLED_BYTES_PER_CLASS);
+    }
+
+    /**
+     * @param pooledBytesPerClass the most memory each size class may keep idle in the pool
+     */
+    public BufferPool(int pooledBytesPerClass) {
+        classes = new SizeClass[SIZE_CLASSES.length];
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            classes[i] = new SizeClass(Math.max(1, pooledBytesPerClass / SIZE_CLASSES[i]));
+        }
+    }
+
+    /**
+     * @return the number of size classes, classes are numbered from 0 (smallest) upwards
+     */
+    public static int sizeClasses() {
+        return SIZE_CLASSES.length;
+    }
+
+    public static int capacityOf(int sizeClass) {
+        return SIZE_CLASSES[sizeClass];
+    }
+
+    /**
+     * @return a cleared buffer whose capacity is exactly {@link #capacityOf(int)} of the given class
+     */
+    public ByteBuffer acquire(int sizeClass) {
+        SizeClass pooled = classes[sizeClass];
+        ByteBuffer buf = pooled.free.poll();
+        if (buf != null) {
+            pooled.freeCount.decrementAndGet();
+            hits.increment();
+            return buf;
+        }
+        misses.increment();
+        return ByteBuffer.allocateDirect(SIZE_CLASSES[sizeClass]);
+    }
+
+    /**
+     * Returns a buffer obtained from {@link #acquire(int)} to the pool.
+     * Buffers beyond the pool's capacity are left to the garbage collector.
+     */
+    public void release(ByteBuffer buf) {
+        int sizeClass = classOf(buf.capacity());
+        if (sizeClass < 0 || !buf.isDirect()) {
+            return;
+        }
+        SizeClass pooled = classes[sizeClass];
+        if (pooled.freeCount.incrementAndGet() > pooled.maxFree) {
+            pooled.freeCount.decrementAndGet();
+            return;
+        }
+        buf.clear();
+        pooled.free.offer(buf);
+    }
+
+    /**
+     * @return how many acquisitions were served by a pooled buffer
+     */
+    public long hits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return how many acquisitions had to allocate a new buffer
+     */
+    public long misses() {
+        return misses.sum();
+    }
+
+    private static int classOf(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (SIZE_CLASSES[i] == capacity) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * The idle buffers of one size class.
+     */
+    private static final class SizeClass {
+
+        final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+        final AtomicInteger freeCount = new AtomicInteger();
+        final int maxFree;
+
+        SizeClass(int maxFree) {
+            this.maxFree = maxFree;
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.EncodedBroadcast;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The channels that have subscribers, each interned to one {@link Channel} with an int id.
+ * A channel keeps its subscribers in copy-on-write arrays, so a broadcast reads one snapshot
+ * and walks it without locks or boxing, while subscribe and unsubscribe copy the arrays under
+ * the channel's lock. A channel whose last subscriber leaves is evicted.
+ * Destinations with wildcards are channels too, indexed by a {@link DestinationTrie}.
+ * Under a {@link RetentionPolicy} every destination also keeps its latest messages for late
+ * subscribers, in {@link RetainedFrames} of its own that outlive its channel. Keeping a message
+ * and replaying the kept ones both happen under the lock of those frames, and the replay itself
+ * is delivered once the lock is released; a sweeper thread forgets the destinations whose
+ * messages all expired.
+ */
+final class ChannelRegistry<T> {
+
+    private static final long SWEEP_MILLIS = 10_000;
+
+    private final ConcurrentHashMap<String, Channel<T>> channels = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final DestinationTrie<T> patterns = new DestinationTrie<>(nextId);
+    private final RetentionPolicy retention;
+    private final ConcurrentHashMap<String, RetainedFrames> retained = new ConcurrentHashMap<>();
+    private final Thread sweeper; // null without retention
+    private volatile boolean closed = false;
+
+    ChannelRegistry(RetentionPolicy retention) {
+        this.retention = retention.retains() ? retention : null;
+        if (this.retention != null) {
+            sweeper = new Thread(this::sweepLoop, "retention-sweeper");
+            sweeper.setDaemon(true);
+            sweeper.start();
+        } else {
+            sweeper = null;
+        }
+    }
+
+    /**
+     * Stops the sweeper.
+     */
+    void shutdown() {
+        closed = true;
+        if (sweeper != null) {
+            LockSupport.unpark(sweeper);
+        }
+    }
+
+    /**
+     * @return true if destinations keep their latest messages, see {@link #retain}
+     */
+    boolean retains() {
+        return retention != null;
+    }
+
+    /**
+     * @return the channel of the given name, or null if it has no subscribers
+     */
+    Channel<T> get(String name) {
+        return channels.get(name);
+    }
+
+    /**
+     * @return the channels a message sent to the destination goes to:
+     * the destination's own channel, first, and the channels of all patterns matching it
+     */
+    List<Channel<T>> match(String destination) {
+        Channel<T> exact = channels.get(destination);
+        List<Channel<T>> matched = new ArrayList<>(4);
+        if (exact != null) {
+            matched.add(exact);
+        }
+        patterns.match(destination, matched);
+        return matched;
+    }
+
+    /**
+     * Keeps a message sent to the destination for late subscribers. The subscribers of the
+     * destination's own channel are taken again together with keeping it, so a client
+     * subscribing meanwhile either gets it replayed or delivered, never both or neither.
+     * @param targets the channels the message goes to, as {@link #match} gave them; the
+     * destination's own channel is brought up to date in place
+     * @param snapshots the subscribers of every target, brought up to date alike
+     */
+    void retain(String destination, EncodedBroadcast frame, long now,
+                List<Channel<T>> targets, List<Subscribers<T>> snapshots) {
+        while (true) {
+            RetainedFrames frames = retained.computeIfAbsent(destination, d -> new RetainedFrames(retention));
+            synchronized (frames) {
+                if (frames.discarded()) {
+                    continue; // swept meanwhile, keep the message in the destination's new frames
+                }
+                frames.add(frame, now);
+                Channel<T> own = channels.get(destination);
+                boolean listed = !targets.isEmpty() && targets.get(0).pattern() == null;
+                if (own != null && listed) {
+                    targets.set(0, own);
+                    snapshots.set(0, own.subscribers());
+                } else if (own != null) {
+                    targets.add(0, own);
+                    snapshots.add(0, own.subscribers());
+                } else if (listed) {
+                    targets.remove(0);
+                    snapshots.remove(0);
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Subscribes the connection to the named channel, interning the channel if needed.
+     * A connection already subscribed to the channel gets its subscription id replaced.
+     * @param replay the number of retained messages to deliver to the connection before any new
+     * one; ignored for patterns, which keep no messages
+     * @return the channel
+     * @throws IllegalArgumentException if the name is an invalid pattern
+     */
+    Channel<T> subscribe(String name, int connectionId, ConnectionHandler<T> handler, String subscriptionId, int replay) {
+        if (DestinationPattern.isPattern(name)) {
+            return patterns.subscribe(name, DestinationPattern.parse(name), connectionId, handler, subscriptionId);
+        }
+        if (replay <= 0 || retention == null) {
+            return subscribe(name, connectionId, handler, subscriptionId);
+        }
+        while (true) {
+            Channel<T> channel = intern(name);
+            RetainedFrames frames = retained.computeIfAbsent(name, d -> new RetainedFrames(retention));
+            EncodedBroadcast[] replayed;
+            ReplayingSubscriber<T> replaying = null;
+            boolean added;
+            synchronized (frames) {
+                if (frames.discarded()) {
+                    continue;
+                }
+                boolean subscribed = channel.subscribers().indexOf(connectionId) >= 0;
+                replayed = subscribed ? new EncodedBroadcast[0] : frames.latest(replay, System.currentTimeMillis());
+                if (replayed.length > 0) {
+                    // Stands in for the handler until the replay is delivered, outside this lock
+                    replaying = new ReplayingSubscriber<>(handler);
+                }
+                added = channel.add(connectionId, replaying != null ? replaying : handler, subscriptionId);
+            }
+            if (!added) {
+                channels.remove(name, channel);
+                continue;
+            }
+            if (replaying != null) {
+                for (EncodedBroadcast frame : replayed) {
+                    handler.replay(frame, subscriptionId);
+                }
+                replaying.replayed();
+            }
+            return channel;
+        }
+    }
+
+    private Channel<T> subscribe(String name, int connectionId, ConnectionHandler<T> handler, String subscriptionId) {
+        while (true) {
+            Channel<T> channel = intern(name);
+            if (channel.add(connectionId, handler, subscriptionId)) {
+                return channel;
+            }
+            // The channel lost its last subscriber meanwhile, make sure it is gone and intern it again
+            channels.remove(name, channel);
+        }
+    }
+
+    private Channel<T> intern(String name) {
+        return channels.computeIfAbsent(name, n -> new Channel<>(n, nextId.getAndIncrement(), null));
+    }
+
+    /**
+     * Removes the connection from the channel, evicting the channel if it is left empty.
+     */
+    void unsubscribe(Channel<T> channel, int connectionId) {
+        if (channel.pattern() != null) {
+            patterns.unsubscribe(channel, connectionId);
+        } else if (channel.remove(connectionId)) {
+            channels.remove(channel.name(), channel);
+        }
+    }
+
+    /**
+     * Forgets the destinations whose kept messages all expired, every so often.
+     */
+    private void sweepLoop() {
+        long interval = retention.maxAgeMillis() > 0 ? Math.min(retention.maxAgeMillis(), SWEEP_MILLIS) : SWEEP_MILLIS;
+        while (!closed) {
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(interval));
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, RetainedFrames> entry : retained.entrySet()) {
+                RetainedFrames frames = entry.getValue();
+                synchronized (frames) {
+                    frames.dropExpired(now);
+                    if (!frames.isEmpty()) {
+                        continue;
+                    }
+                    frames.discard();
+                }
+                retained.remove(entry.getKey(), frames);
+            }
+        }
+    }
+
+    /**
+     * A destination and its current subscribers.
+     * Once evicted a channel stays empty; subscribing again interns a new one.
+     */
+    static final class Channel<T> {
+
+        private final String name;
+        private final int id;
+        private final String[] pattern;
+        private volatile Subscribers<T> subscribers = Subscribers.empty();
+        private boolean evicted = false; // guarded by this
+        // Lane tasks of a BroadcastStage not yet done with this channel's broadcasts
+        private final AtomicInteger deliveriesInFlight = new AtomicInteger();
+
+        Channel(String name, int id, String[] pattern) {
+            this.name = name;
+            this.id = id;
+            this.pattern = pattern;
+        }
+
+        String name() {
+            return name;
+        }
+
+        /**
+         * @return the segments of a wildcard channel, null for a plain destination
+         */
+        String[] pattern() {
+            return pattern;
+        }
+
+        /**
+         * @return true if a message sent to the destination goes to this channel
+         */
+        boolean matches(String destination) {
+            return pattern != null ? DestinationPattern.matches(pattern, destination) : name.equals(destination);
+        }
+
+        /**
+         * @return the number this channel was interned to; numbers are never reused
+         */
+        int id() {
+            return id;
+        }
+
+        /**
+         * @return the subscribers at the time of the call, not affected by later changes
+         */
+        Subscribers<T> subscribers() {
+            return subscribers;
+        }
+
+        int deliveriesInFlight() {
+            return deliveriesInFlight.get();
+        }
+
+        void deliveryStarted() {
+            deliveriesInFlight.incrementAndGet();
+        }
+
+        void deliveryDone() {
+            deliveriesInFlight.decrementAndGet();
+        }
+
+        /**
+         * Adds the subscriber, or replaces the subscription id of a connection already subscribed.
+         * @return false if the channel was evicted and must not be used any more
+         */
+        synchronized boolean add(int connectionId, ConnectionHandler<T> handler, String subscriptionId) {
+            if (evicted) {
+                return false;
+            }
+            Subscribers<T> current = subscribers;
+            int index = current.indexOf(connectionId);
+            if (index >= 0) {
+                String[] subscriptionIds = current.subscriptionIds.clone();
+                subscriptionIds[index] = subscriptionId;
+                subscribers = new Subscribers<>(current.connectionIds, current.handlers, subscriptionIds);
+            } else {
+                int n = current.size();
+                int[] connectionIds = Arrays.copyOf(current.connectionIds, n + 1);
+                ConnectionHandler<T>[] handlers = Arrays.copyOf(current.handlers, n + 1);
+                String[] subscriptionIds = Arrays.copyOf(current.subscriptionIds, n + 1);
+                connectionIds[n] = connectionId;
+                handlers[n] = handler;
+                subscriptionIds[n] = subscriptionId;
+                subscribers = new Subscribers<>(connectionIds, handlers, subscriptionIds);
+            }
+            return true;
+        }
+
+        /**
+         * @return true if this removed the last subscriber and evicted the channel
+         */
+        synchronized boolean remove(int connectionId) {
+            Subscribers<T> current = subscribers;
+            int index = current.indexOf(connectionId);
+            if (index < 0) {
+                return false;
+            }
+            int n = current.size();
+            if (n == 1) {
+                evicted = true;
+                subscribers = Subscribers.empty();
+                return true;
+            }
+
+            // Move the last subscriber into the hole, order among subscribers does not matter
+            int[] connectionIds = Arrays.copyOf(current.connectionIds, n - 1);
+            ConnectionHandler<T>[] handlers = Arrays.copyOf(current.handlers, n - 1);
+            String[] subscriptionIds = Arrays.copyOf(current.subscriptionIds, n - 1);
+            if (index < n - 1) {
+                connectionIds[index] = current.connectionIds[n - 1];
+                handlers[index] = current.handlers[n - 1];
+                subscriptionIds[index] = current.subscriptionIds[n - 1];
+            }
+            subscribers = new Subscribers<>(connectionIds, handlers, subscriptionIds);
+            return false;
+        }
+    }
+
+    /**
+     * An immutable snapshot of the subscribers of a channel, as parallel arrays:
+     * the i-th subscriber is connection connectionIds[i], reached through handlers[i],
+     * subscribed with subscriptionIds[i].
+     */
+    static final class Subscribers<T> {
+
+        private static final Subscribers<Object> EMPTY = new Subscribers<>(new int[0], noHandlers(), new String[0]);
+
+        final int[] connectionIds;
+        final ConnectionHandler<T>[] handlers;
+        final String[] subscriptionIds;
+        private volatile int[][] byLane; // computed on the first parallel broadcast of this snapshot
+
+        Subscribers(int[] connectionIds, ConnectionHandler<T>[] handlers, String[] subscriptionIds) {
+            this.connectionIds = connectionIds;
+            this.handlers = handlers;
+            this.subscriptionIds = subscriptionIds;
+        }
+
+        @SuppressWarnings("unchecked") // it holds no handler, so it stands for no subscribers of any type
+        static <T> Subscribers<T> empty() {
+            return (Subscribers<T>) (Subscribers<?>) EMPTY;
+        }
+
+        @SuppressWarnings("unchecked") // an array of a generic type can only be created with a wildcard
+        private static <T> ConnectionHandler<T>[] noHandlers() {
+            return (ConnectionHandler<T>[]) new ConnectionHandler<?>[0];
+        }
+
+        int size() {
+            return connectionIds.length;
+        }
+
+        /**
+         * @return for every lane, the indices of the subscribers whose connection id falls in it
+         */
+        int[][] byLane(int lanes) {
+            int[][] partition = byLane;
+            if (partition != null && partition.length == lanes) {
+                return partition;
+            }
+
+            int[] counts = new int[lanes];
+            for (int connectionId : connectionIds) {
+                counts[Math.floorMod(connectionId, lanes)]++;
+            }
+            partition = new int[lanes][];
+            for (int lane = 0; lane < lanes; lane++) {
+                partition[lane] = new int[counts[lane]];
+                counts[lane] = 0;
+            }
+            for (int i = 0; i < connectionIds.length; i++) {
+                int lane = Math.floorMod(connectionIds[i], lanes);
+                partition[lane][counts[lane]++] = i;
+            }
+            byLane = partition;
+            return partition;
+        }
+
+        int indexOf(int connectionId) {
+            for (int i = 0; i < connectionIds.length; i++) {
+                if (connectionIds[i] == connectionId) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package bgu.spl.net.srv;
+
+/**
+ * How the frames a server sends to a connection are compressed, once the protocol agreed on it
+ * with the client. Both start from a preset dictionary the protocol gives, which the client
+ * knows as well. What the client sends stays uncompressed.
+ */
+public enum Compression {
+    /**
+     * Every byte sent from then on goes through one deflate stream of the connection, flushed
+     * at the end of each write. The best ratio, since every frame is compressed against the
+     * ones before it, but each connection keeps a deflater of its own and compresses every
+     * channel message itself.
+     */
+    STREAM,
+    /**
+     * The body of every channel message is deflated on its own, so it is compressed once for
+     * all the subscribers using this mode and only costs the memory of the compressed copy.
+     */
+    FRAME
+}
@@ -5,6 +5,7 @@
  */
 package bgu.spl.net.srv;
 
+import bgu.spl.net.api.EncodedBroadcast;
 import java.io.Closeable;
 
 /**
@@ -19,4 +20,52 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * Delivers a message published to a channel the client is subscribed to.
+     * Unlike {@link #send}, an implementation may drop or defer it when the client
+     * cannot keep up, see {@link SlowConsumerPolicy}.
+     */
+    default void publish(T msg) {
+        send(msg);
+    }
+
+    /**
+     * Delivers a channel message encoded once for all its subscribers, see {@link EncodedBroadcast}.
+     * The same slow consumer rules as for {@link #publish(Object)} apply.
+     *
+     * @param subscriptionId the id of the client's subscription the message was published to
+     */
+    void publish(EncodedBroadcast msg, String subscriptionId);
+
+    /**
+     * Delivers a channel message the server kept, replayed to a subscriber that asked for the
+     * channel's earlier messages. Unlike {@link #publish(EncodedBroadcast, String)} it is never
+     * dropped or deferred, and it does not count towards the slow consumer watermarks.
+     *
+     * @param subscriptionId the id of the client's subscription the message is replayed to
+     */
+    default void replay(EncodedBroadcast msg, String subscriptionId) {
+        publish(msg, subscriptionId);
+    }
+
+    /**
+     * Compresses the frames sent to the client from the next one on, see {@link Compression}.
+     * An implementation that cannot compress keeps sending them as they are.
+     *
+     * @param dictionary the preset dictionary the client's inflater starts from
+     */
+    default void compress(Compression compression, byte[] dictionary) {
+    }
+
+    /**
+     * Starts heart-beating as negotiated with the client: an EOL is sent whenever nothing else
+     * was for sendMillis, and the connection is dropped as lost once nothing was read from the
+     * client for timeoutMillis. Either may be 0 for none.
+     *
+     * @return false if this implementation does not heart-beat
+     */
+    default boolean heartBeat(long sendMillis, long timeoutMillis) {
+        return false;
+    }
+
 }
@@ -1,24 +1,59 @@
 package bgu.spl.net.srv;
 
+import java.util.function.LongFunction;
+
 public interface Connections<T> {
 
     
     boolean send(int connectionId, T msg);
 
-   
+    /**
+     * Sends a message to every subscriber of a channel. Each one gets it with its own subscription
+     * id where the server has a broadcast encoder for the messages, and as it is otherwise.
+     */
     void send(String channel, T msg);
 
+    /**
+     * Sends a message to a channel, built for the offset the channel's message log gives it.
+     * @param message Builds the message from its offset, -1 when the channel's messages are not logged.
+     */
+    default void send(String channel, LongFunction<T> message) {
+        send(channel, message.apply(-1));
+    }
+
 
     void disconnect(int connectionId);
 
     /**
      * Subscribes a client to a channel with a specific subscription ID.
-     * @param channel The name of the channel (topic).
+     * The channel may hold wildcards: "/germany_*" covers every channel whose name starts
+     * with "/germany_", and "/worldcup/**" every channel below "/worldcup".
+     * @param channel The name of the channel (topic), or a pattern of channel names.
      * @param connectionId The ID of the client.
      * @param subscriptionId The unique ID provided by the client for this subscription.
+     * @throws IllegalArgumentException if the channel is not a valid pattern.
      */
     void subscribe(String channel, int connectionId, String subscriptionId);
 
+    /**
+     * Like {@link #subscribe(String, int, String)}, but first delivers to the client up to replay
+     * of the latest messages the channel kept, before any new message.
+     * @param replay The number of kept messages to deliver, 0 for none.
+     */
+    default void subscribe(String channel, int connectionId, String subscriptionId, int replay) {
+        subscribe(channel, connectionId, subscriptionId);
+    }
+
+    /**
+     * Like {@link #subscribe(String, int, String)}, but first delivers to the client the logged
+     * messages of the channel from the given offset on, before any new message.
+     * Where messages are not logged, or the channel is a pattern, this only subscribes.
+     * @param offset The offset of the first message to deliver.
+     */
+    default void resume(String channel, int connectionId, String subscriptionId, long offset) {
+        subscribe(channel, connectionId, subscriptionId);
+    }
+
     /**
      * Unsubscribes a client from a channel using the subscription ID.
      * @param subscriptionId The unique ID provided by the client during subscription.
@@ -27,10 +62,35 @@ public interface Connections<T> {
     void unsubscribe(String subscriptionId, int connectionId);
 
     /**
-     * Checks if a specific client is subscribed to a specific channel.
+     * Checks if a specific client is subscribed to a specific channel, directly or through a pattern.
      * @param channel The name of the channel.
      * @param connectionId The ID of the client.
      * @return true if subscribed, false otherwise.
      */
     boolean isSubscribed(String channel, int connectionId);
+
+    /**
+     * Compresses the frames sent to a client from the next one on, as negotiated with it.
+     * Where the server cannot compress, the frames are sent as they are.
+     * @param dictionary The preset dictionary the client's inflater starts from.
+     */
+    default void compress(int connectionId, Compression compression, byte[] dictionary) {
+    }
+
+    /**
+     * Starts heart-beating with a client: an EOL is sent to it whenever nothing else was for
+     * sendMillis, and it is disconnected as lost once it sent nothing for timeoutMillis.
+     * Either may be 0 for none.
+     * @return false if the server does not heart-beat, the client should then not expect it to
+     */
+    default boolean heartBeat(int connectionId, long sendMillis, long timeoutMillis) {
+        return false;
+    }
+
+    /**
+     * @return the metrics the server records into, or null if it records none
+     */
+    default Metrics metrics() {
+        return null;
+    }
 }
\ No newline at end of file
@@ -1,21 +1,84 @@
 package bgu.spl.net.srv;
 
+import bgu.spl.net.api.BroadcastEncoder;
+import bgu.spl.net.api.EncodedBroadcast;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongFunction;
 
 public class ConnectionsImpl<T> implements Connections<T> {
 
+    // Logged messages replayed per lock of the destination's log
+    private static final int REPLAY_CHUNK = 256;
+
     // Mapping: ConnectionID -> ConnectionHandler
     // Holds the physical connection handlers for sending data over the network.
     private final ConcurrentHashMap<Integer, ConnectionHandler<T>> activeConnections = new ConcurrentHashMap<>();
 
-    // Mapping: ChannelName -> ( ConnectionID -> SubscriptionID )
+    // Mapping: ChannelName -> Channel ( ConnectionIDs, handlers and SubscriptionIDs as arrays )
     // Manages topic subscriptions. Used when sending a message to a channel to know who should receive it.
-    private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, String>> channelSubscribers = new ConcurrentHashMap<>();
+    private final ChannelRegistry<T> channels;
 
-    // Mapping: ConnectionID -> ( SubscriptionID -> ChannelName )
+    // Mapping: ConnectionID -> ( SubscriptionID -> Channel )
     // Reverse mapping for fast lookup. Used to efficiently unsubscribe a user by ID or clean up on disconnect.
-    private final ConcurrentHashMap<Integer, ConcurrentHashMap<String, String>> clientSubscriptions = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, ConcurrentHashMap<String, ChannelRegistry.Channel<T>>> clientSubscriptions = new ConcurrentHashMap<>();
+
+    // Limits how much channel traffic may queue up for a single slow client
+    private final SlowConsumerPolicy<T> slowConsumerPolicy;
+
+    // Encodes a channel message once for all its subscribers with their own subscription ids,
+    // null to deliver every subscriber the message as it is
+    private final BroadcastEncoder<T> broadcastEncoder;
+
+    // Delivers the broadcasts of large channels in parallel, null to always deliver on the caller
+    private final BroadcastStage broadcastStage;
+
+    // Keeps every channel message on disk for subscribers resuming from an offset, null to keep none
+    private final MessageLog messageLog;
+
+    // Fan-out sizes here, traffic and write queue depths in the connection handlers
+    private final Metrics metrics = new Metrics();
+
+    public ConnectionsImpl() {
+        this(SlowConsumerPolicy.unbounded());
+    }
+
+    public ConnectionsImpl(SlowConsumerPolicy<T> slowConsumerPolicy) {
+        this(slowConsumerPolicy, null);
+    }
+
+    public ConnectionsImpl(SlowConsumerPolicy<T> slowConsumerPolicy, BroadcastEncoder<T> broadcastEncoder) {
+        this(slowConsumerPolicy, broadcastEncoder, null);
+    }
+
+    public ConnectionsImpl(SlowConsumerPolicy<T> slowConsumerPolicy, BroadcastEncoder<T> broadcastEncoder,
+                           BroadcastStage broadcastStage) {
+        this(slowConsumerPolicy, broadcastEncoder, broadcastStage, RetentionPolicy.none());
+    }
+
+    /**
+     * @param retention how many messages a destination keeps for late subscribers; messages are kept
+     * in the form the broadcast encoder gives them, so nothing is kept without one
+     */
+    public ConnectionsImpl(SlowConsumerPolicy<T> slowConsumerPolicy, BroadcastEncoder<T> broadcastEncoder,
+                           BroadcastStage broadcastStage, RetentionPolicy retention) {
+        this(slowConsumerPolicy, broadcastEncoder, broadcastStage, retention, null);
+    }
+
+    /**
+     * @param messageLog where channel messages are logged; like retention, logging needs the broadcast encoder
+     */
+    public ConnectionsImpl(SlowConsumerPolicy<T> slowConsumerPolicy, BroadcastEncoder<T> broadcastEncoder,
+                           BroadcastStage broadcastStage, RetentionPolicy retention, MessageLog messageLog) {
+        this.channels = new ChannelRegistry<>(retention);
+        this.slowConsumerPolicy = slowConsumerPolicy;
+        this.broadcastEncoder = broadcastEncoder;
+        this.broadcastStage = broadcastStage;
+        this.messageLog = broadcastEncoder != null ? messageLog : null;
+    }
 
     @Override
     public boolean send(int connectionId, T msg) {
@@ -29,15 +92,114 @@ public class ConnectionsImpl<T> implements Connections<T> {
 
     @Override
     public void send(String channel, T msg) {
-        // Retrieve all subscribers for the given channel
-        ConcurrentHashMap<Integer, String> subscribers = channelSubscribers.get(channel);
-        
-        if (subscribers != null) {
-            for (Integer connectionId : subscribers.keySet()) {
-                String originalFrame = (String) msg;
-                String personalizedFrame = originalFrame.replaceFirst("subscription:0", "subscription:" + subscribers.get(connectionId));
-                send(connectionId, (T) personalizedFrame);
+        send(channel, offset -> msg);
+    }
+
+    @Override
+    public void send(String channel, LongFunction<T> message) {
+        DestinationLog log = destinationLog(channel);
+        if (log == null) {
+            // Retrieve the channel and every wildcard subscription matching it
+            List<ChannelRegistry.Channel<T>> targets = channels.match(channel);
+            if (targets.isEmpty()) {
+                metrics.fanout().record(0);
+                return;
             }
+            T msg = message.apply(-1);
+
+            // Encode the shared part once, each subscriber only gets its own header on top of it
+            EncodedBroadcast encoded = broadcastEncoder != null ? broadcastEncoder.encodeBroadcast(msg) : null;
+            List<ChannelRegistry.Subscribers<T>> subscribers = snapshot(channel, targets, encoded);
+            broadcast(targets, subscribers, msg, encoded);
+            return;
+        }
+
+        // The offset, the logged message and the subscribers are taken together,
+        // so a client resuming meanwhile gets the message either from the log or live, exactly once
+        T msg;
+        EncodedBroadcast encoded;
+        List<ChannelRegistry.Channel<T>> targets;
+        List<ChannelRegistry.Subscribers<T>> subscribers;
+        while (true) {
+            synchronized (log) {
+                if (!log.isClosed()) {
+                    msg = message.apply(log.nextOffset());
+                    encoded = broadcastEncoder.encodeBroadcast(msg);
+                    long now = System.currentTimeMillis();
+                    try {
+                        if (log.append(encoded, now)) {
+                            messageLog.segmentWanted();
+                        }
+                    } catch (UncheckedIOException ex) {
+                        ex.printStackTrace(); // the message is still delivered live
+                    }
+                    targets = channels.match(channel);
+                    subscribers = snapshot(channel, targets, encoded);
+                    break;
+                }
+            }
+            // Closed for being idle meanwhile, the destination gets a new log
+            log = messageLog.destination(channel);
+        }
+        messageLog.appended();
+        broadcast(targets, subscribers, msg, encoded);
+    }
+
+    /**
+     * @return the log of the channel, or null if its messages are not logged, as the server's own never are
+     */
+    private DestinationLog destinationLog(String channel) {
+        if (messageLog == null || Metrics.isReserved(channel)) {
+            return null;
+        }
+        return messageLog.destination(channel);
+    }
+
+    /**
+     * @return a snapshot of the subscribers of every target, which needs no locking unless the
+     * destination also keeps the message; the destination's own channel may then be added to targets
+     */
+    private List<ChannelRegistry.Subscribers<T>> snapshot(String destination, List<ChannelRegistry.Channel<T>> targets,
+                                                          EncodedBroadcast encoded) {
+        List<ChannelRegistry.Subscribers<T>> snapshots = new ArrayList<>(targets.size() + 1);
+        for (ChannelRegistry.Channel<T> target : targets) {
+            snapshots.add(target.subscribers());
+        }
+        if (encoded != null && channels.retains()) {
+            channels.retain(destination, encoded, System.currentTimeMillis(), targets, snapshots);
+        }
+        return snapshots;
+    }
+
+    private void broadcast(List<ChannelRegistry.Channel<T>> targets, List<ChannelRegistry.Subscribers<T>> snapshots,
+                           T msg, EncodedBroadcast encoded) {
+        int fanout = 0;
+        for (ChannelRegistry.Subscribers<T> subscribers : snapshots) {
+            fanout += subscribers.size();
+        }
+        metrics.fanout().record(fanout);
+
+        BroadcastStage.Delivery<T> delivery = (subscribers, i) -> deliver(subscribers, i, msg, encoded);
+        for (int t = 0; t < targets.size(); t++) {
+            ChannelRegistry.Channel<T> target = targets.get(t);
+            ChannelRegistry.Subscribers<T> subscribers = snapshots.get(t);
+            if (broadcastStage != null && broadcastStage.accepts(target, subscribers)) {
+                // A large channel is delivered in parallel, off this thread
+                broadcastStage.dispatch(target, subscribers, delivery);
+            } else {
+                for (int i = 0; i < subscribers.size(); i++) {
+                    deliver(subscribers, i, msg, encoded);
+                }
+            }
+        }
+    }
+
+    private void deliver(ChannelRegistry.Subscribers<T> subscribers, int i, T msg, EncodedBroadcast encoded) {
+        if (encoded != null) {
+            subscribers.handlers[i].publish(encoded, subscribers.subscriptionIds[i]);
+        } else {
+            // Without a place for the subscription id there is nothing to personalize
+            subscribers.handlers[i].publish(msg);
         }
     }
 
@@ -47,47 +209,136 @@ public class ConnectionsImpl<T> implements Connections<T> {
         activeConnections.remove(connectionId);
 
         // Remove all logical subscriptions associated with this user
-        Map<String, String> userSubs = clientSubscriptions.remove(connectionId);
+        Map<String, ChannelRegistry.Channel<T>> userSubs = clientSubscriptions.remove(connectionId);
         if (userSubs != null) {
-            for (String channel : userSubs.values()) {
-                // Clean up the user from each channel's subscriber list
-                ConcurrentHashMap<Integer, String> channelSubs = channelSubscribers.get(channel);
-                if (channelSubs != null) {
-                    channelSubs.remove(connectionId);
-                }
+            for (ChannelRegistry.Channel<T> channel : userSubs.values()) {
+                // Clean up the user from each channel's subscriber list, evicting channels left empty
+                channels.unsubscribe(channel, connectionId);
             }
         }
     }
 
     @Override
     public void subscribe(String channel, int connectionId, String subscriptionId) {
+        subscribe(channel, connectionId, subscriptionId, 0);
+    }
+
+    @Override
+    public void subscribe(String channel, int connectionId, String subscriptionId, int replay) {
+        ConnectionHandler<T> handler = activeConnections.get(connectionId);
+        if (handler == null) {
+            return; // already disconnected
+        }
+        subscribe(channel, connectionId, handler, subscriptionId, replay);
+    }
+
+    private void subscribe(String channel, int connectionId, ConnectionHandler<T> handler, String subscriptionId, int replay) {
         // Register the user to the channel
-        channelSubscribers.computeIfAbsent(channel, k -> new ConcurrentHashMap<>())
-                          .put(connectionId, subscriptionId);
+        ChannelRegistry.Channel<T> subscribed = channels.subscribe(channel, connectionId, handler, subscriptionId, replay);
 
         // Record the subscription for the user (for reverse lookup)
-        clientSubscriptions.computeIfAbsent(connectionId, k -> new ConcurrentHashMap<>())
-                           .put(subscriptionId, channel);
+        ChannelRegistry.Channel<T> previous = clientSubscriptions.computeIfAbsent(connectionId, k -> new ConcurrentHashMap<>())
+                                                                 .put(subscriptionId, subscribed);
+        if (previous != null && previous != subscribed) {
+            // The subscription ID was reused for another channel, leave the old one
+            channels.unsubscribe(previous, connectionId);
+        }
+    }
+
+    @Override
+    public void resume(String channel, int connectionId, String subscriptionId, long offset) {
+        ConnectionHandler<T> handler = activeConnections.get(connectionId);
+        DestinationLog log = DestinationPattern.isPattern(channel) ? null : destinationLog(channel);
+        if (handler == null || log == null) {
+            subscribe(channel, connectionId, subscriptionId);
+            return;
+        }
+
+        // Subscribed at the log's end, with no message logged meanwhile: every message before it
+        // is replayed from the log, every later one is delivered live. The stand-in holds the live
+        // ones back until the replay, made outside the log's lock, is done.
+        ReplayingSubscriber<T> replaying = new ReplayingSubscriber<>(handler);
+        long end;
+        while (true) {
+            synchronized (log) {
+                if (!log.isClosed()) {
+                    end = log.nextOffset();
+                    subscribe(channel, connectionId, replaying, subscriptionId, 0);
+                    break;
+                }
+            }
+            log = messageLog.destination(channel);
+        }
+        try {
+            List<EncodedBroadcast> chunk = new ArrayList<>(REPLAY_CHUNK);
+            long next = offset;
+            while (next < end) {
+                long read = log.read(next, end, REPLAY_CHUNK, chunk::add);
+                if (read == next) {
+                    break;
+                }
+                for (EncodedBroadcast frame : chunk) {
+                    handler.replay(frame, subscriptionId);
+                }
+                chunk.clear();
+                next = read;
+            }
+        } finally {
+            replaying.replayed();
+        }
     }
 
     @Override
     public void unsubscribe(String subscriptionId, int connectionId) {
         // Find which channel this subscription ID belongs to
-        Map<String, String> userSubs = clientSubscriptions.get(connectionId);
+        Map<String, ChannelRegistry.Channel<T>> userSubs = clientSubscriptions.get(connectionId);
         
         if (userSubs != null) {
-            String channel = userSubs.remove(subscriptionId);
+            ChannelRegistry.Channel<T> channel = userSubs.remove(subscriptionId);
             
             // If the channel was found, remove the user from that channel's list
             if (channel != null) {
-                ConcurrentHashMap<Integer, String> channelSubs = channelSubscribers.get(channel);
-                if (channelSubs != null) {
-                    channelSubs.remove(connectionId);
-                }
+                channels.unsubscribe(channel, connectionId);
             }
         }
     }
     
+    /**
+     * @return the policy applied to clients whose outbound queue grows too large
+     */
+    public SlowConsumerPolicy<T> slowConsumerPolicy() {
+        return slowConsumerPolicy;
+    }
+
+    @Override
+    public void compress(int connectionId, Compression compression, byte[] dictionary) {
+        ConnectionHandler<T> handler = activeConnections.get(connectionId);
+        if (handler != null) {
+            handler.compress(compression, dictionary);
+        }
+    }
+
+    @Override
+    public boolean heartBeat(int connectionId, long sendMillis, long timeoutMillis) {
+        ConnectionHandler<T> handler = activeConnections.get(connectionId);
+        return handler != null && handler.heartBeat(sendMillis, timeoutMillis);
+    }
+
+    @Override
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * Stops the threads delivering broadcasts and sweeping kept messages. Called by the server once it closed.
+     */
+    public void shutdown() {
+        channels.shutdown();
+        if (broadcastStage != null) {
+            broadcastStage.shutdown();
+        }
+    }
+
     /**
      * Adds a new connection handler. Called by the server when a client connects.
      */
@@ -97,10 +348,16 @@ public class ConnectionsImpl<T> implements Connections<T> {
 
     @Override
     public boolean isSubscribed(String channel, int connectionId) {
-        // Get the map of subscribers for this specific channel
-        ConcurrentHashMap<Integer, String> subscribers = channelSubscribers.get(channel);
-        
-        // Check if the map exists AND if the user is in it
-        return subscribers != null && subscribers.containsKey(connectionId);
+        // Look among the user's own subscriptions, which are few, rather than among the channel's subscribers
+        Map<String, ChannelRegistry.Channel<T>> userSubs = clientSubscriptions.get(connectionId);
+        if (userSubs == null) {
+            return false;
+        }
+        for (ChannelRegistry.Channel<T> subscribed : userSubs.values()) {
+            if (subscribed.matches(channel)) {
+                return true;
+            }
+        }
+        return false;
     }
 }
\ No newline at end of file
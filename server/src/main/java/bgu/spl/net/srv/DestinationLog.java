@@ -0,0 +1,343 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.EncodedBroadcast;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * The messages of one destination, in {@link LogSegment}s of a directory of their own.
+ * Every message gets the next offset of the destination, counting from 0 and never reused,
+ * also when old segments are removed. Appends go to the last, active segment; once it is full
+ * a new one is started at the next offset. The first segment is small, each next one twice the
+ * size of the one before, up to the policy's segment size. The next segment is created by
+ * {@link #prepareSegment}, off the appending thread, once the active one is half full, so an
+ * append finding the active segment full only switches to it.
+ * A log made by {@link #opening} has no files yet: its messages are kept in memory until
+ * {@link #openFiles} creates them, off the thread that sent the first message.
+ * Callers that must pair an offset with its message hold the log's lock across
+ * {@link #nextOffset} and {@link #append}, and find another log if this one {@link #isClosed}.
+ */
+final class DestinationLog {
+
+    static final int FIRST_SEGMENT_BYTES = 64 * 1024;
+
+    private final Path dir;
+    private final LogPolicy policy;
+    private final TreeMap<Long, LogSegment> segments = new TreeMap<>(); // guarded by this
+    private LogSegment active; // guarded by this, null until the files are open
+    private List<LogSegment> unflushed = new ArrayList<>(); // full segments not yet flushed, guarded by this
+    private LogSegment spare; // the segment after the active one, guarded by this
+    private boolean spareWanted = false; // guarded by this
+    private List<LogSegment> unnamed = new ArrayList<>(); // spares started but not yet renamed, guarded by this
+    // Until the files are open: the offset of the first message and the messages appended since
+    private long pendingOffset; // guarded by this
+    private List<EncodedBroadcast> pending; // guarded by this
+    private long pendingMillis; // guarded by this
+    private volatile boolean closed = false;
+    private volatile long lastUsedMillis = System.currentTimeMillis();
+
+    private DestinationLog(Path dir, LogPolicy policy) {
+        this.dir = dir;
+        this.policy = policy;
+    }
+
+    /**
+     * Opens the log in the given directory, recovering the segments of an earlier run.
+     */
+    static DestinationLog open(Path dir, LogPolicy policy) throws IOException {
+        DestinationLog log = opening(dir, policy, 0);
+        log.openFiles();
+        return log;
+    }
+
+    /**
+     * Makes the log of the given directory without touching the disk; its messages get offsets
+     * from nextOffset on and are kept in memory until {@link #openFiles}.
+     */
+    static DestinationLog opening(Path dir, LogPolicy policy, long nextOffset) {
+        DestinationLog log = new DestinationLog(dir, policy);
+        log.pendingOffset = nextOffset;
+        log.pending = new ArrayList<>();
+        return log;
+    }
+
+    /**
+     * Creates the directory and first segment of a log made by {@link #opening}, or recovers the
+     * segments left there, and appends the messages kept in memory meanwhile.
+     */
+    void openFiles() throws IOException {
+        long first;
+        int firstBytes;
+        synchronized (this) {
+            if (closed || active != null) {
+                return;
+            }
+            first = pendingOffset;
+            firstBytes = firstSegmentBytes(pending.isEmpty() ? 0 : LogSegment.recordSize(pending.get(0)));
+        }
+        Files.createDirectories(dir);
+        TreeMap<Long, LogSegment> found = new TreeMap<>();
+        Path spareFile = dir.resolve(LogSegment.SPARE_NAME + LogSegment.LOG_SUFFIX);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files.filter(f -> f.toString().endsWith(LogSegment.LOG_SUFFIX))::iterator) {
+                if (!file.equals(spareFile)) {
+                    LogSegment segment = LogSegment.open(file);
+                    found.put(segment.baseOffset(), segment);
+                }
+            }
+        }
+        if (Files.exists(spareFile)) {
+            // A spare started before the end of the last run, but never renamed, follows the last segment
+            long base = found.isEmpty() ? first : found.lastEntry().getValue().nextOffset();
+            LogSegment started = LogSegment.open(spareFile, base);
+            if (started.nextOffset() > base) {
+                started.rename();
+                found.put(base, started);
+            } else {
+                started.delete();
+            }
+        }
+        // The messages already given offsets go on from the last one, which is never reused
+        if (found.isEmpty() || found.lastEntry().getValue().nextOffset() < first) {
+            found.put(first, LogSegment.create(dir, first, firstBytes));
+        }
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            segments.putAll(found);
+            active = segments.lastEntry().getValue();
+            for (EncodedBroadcast frame : pending) {
+                append(frame, pendingMillis);
+            }
+            pending = null;
+        }
+    }
+
+    synchronized boolean isOpen() {
+        return active != null;
+    }
+
+    /**
+     * @return true once {@link #close} was called; appending to the log is then up to a new one
+     */
+    boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the offset the next appended message gets
+     */
+    synchronized long nextOffset() {
+        return active != null ? active.nextOffset() : pendingOffset + pending.size();
+    }
+
+    /**
+     * Appends the message at {@link #nextOffset}. The message is in the mapped file once this
+     * returns; when it reaches the disk is up to the {@link LogPolicy.Fsync} policy.
+     * @return true the first time the active segment is half full without a next one prepared,
+     * so {@link #prepareSegment} is best called soon
+     * @throws UncheckedIOException if a new segment was needed and could not be created
+     */
+    synchronized boolean append(EncodedBroadcast frame, long now) {
+        lastUsedMillis = now;
+        if (active == null) {
+            pending.add(frame);
+            pendingMillis = now;
+            return false;
+        }
+        if (!active.append(frame, now)) {
+            LogSegment next;
+            if (spare != null && spare.capacity() >= LogSegment.recordSize(frame)) {
+                next = spare;
+                spare = null;
+                next.start(active.nextOffset(), now);
+                unnamed.add(next);
+            } else {
+                // No spare yet, or a message too large for it: only then are files created here
+                try {
+                    next = LogSegment.create(dir, active.nextOffset(), Math.max(nextCapacity(), LogSegment.recordSize(frame)));
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            }
+            segments.put(next.baseOffset(), next);
+            unflushed.add(active);
+            active = next;
+            active.append(frame, now);
+        }
+        if (spare == null && !spareWanted && active.size() >= active.capacity() / 2) {
+            spareWanted = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Renames the spares started since the last call after their base offsets, and creates the
+     * spare that follows the active segment once that is half full. Only the flusher calls this.
+     */
+    void prepareSegment() throws IOException {
+        List<LogSegment> started;
+        int capacity = 0;
+        synchronized (this) {
+            if (active == null) {
+                return;
+            }
+            started = unnamed;
+            unnamed = new ArrayList<>();
+            if (spare == null && active.size() >= active.capacity() / 2) {
+                capacity = nextCapacity();
+            }
+        }
+        // Only this thread renames or deletes segment files, so no lock is needed for it
+        for (LogSegment segment : started) {
+            segment.rename();
+        }
+        if (capacity == 0) {
+            return;
+        }
+        LogSegment next = LogSegment.spare(dir, capacity);
+        synchronized (this) {
+            if (!closed) {
+                spare = next;
+                spareWanted = false;
+                return;
+            }
+        }
+        next.delete();
+    }
+
+    /**
+     * Hands the messages from the given offset on to out, oldest first, stopping before toOffset
+     * or once limit messages were handed over. Messages from before the oldest segment left are
+     * gone, the oldest message left is the first one handed over.
+     * The log is locked for one call only, so a long read is best made in several.
+     * @return the offset to read on from, toOffset once every message before it was handed over
+     */
+    synchronized long read(long fromOffset, long toOffset, int limit, Consumer<EncodedBroadcast> out) {
+        lastUsedMillis = System.currentTimeMillis();
+        if (closed) {
+            return fromOffset;
+        }
+        if (active == null) {
+            long offset = Math.max(fromOffset, pendingOffset);
+            long end = Math.min(toOffset, pendingOffset + pending.size());
+            for (; offset < end && limit > 0; offset++, limit--) {
+                out.accept(pending.get((int) (offset - pendingOffset)));
+            }
+            return offset;
+        }
+        Long first = segments.floorKey(fromOffset);
+        Map<Long, LogSegment> from = first != null ? segments.tailMap(first, true) : segments;
+        long offset = fromOffset;
+        for (LogSegment segment : from.values()) {
+            if (limit <= 0) {
+                break;
+            }
+            offset = Math.max(offset, segment.baseOffset());
+            if (offset >= toOffset) {
+                break;
+            }
+            int read = segment.read(offset, toOffset, limit, out);
+            offset += read;
+            limit -= read;
+        }
+        return offset;
+    }
+
+    /**
+     * Forces the messages appended since the last flush to disk.
+     */
+    void flush() {
+        List<LogSegment> full;
+        LogSegment current;
+        synchronized (this) {
+            full = unflushed;
+            unflushed = new ArrayList<>();
+            current = active;
+        }
+        for (LogSegment segment : full) {
+            segment.flush();
+        }
+        if (current != null) {
+            current.flush();
+        }
+    }
+
+    /**
+     * Removes the oldest full segments while the log is over the policy's size or age limits.
+     * @return true if the log was neither appended to nor read for longer than the policy retains
+     * messages, so it holds none still retained and may be {@link #close}d
+     */
+    synchronized boolean applyRetention(long now) throws IOException {
+        long size = 0;
+        for (LogSegment segment : segments.values()) {
+            size += segment.size();
+        }
+        while (segments.size() > 1) {
+            LogSegment oldest = segments.firstEntry().getValue();
+            boolean tooLarge = policy.retainBytes() > 0 && size > policy.retainBytes();
+            boolean tooOld = policy.retainMillis() > 0 && now - oldest.lastAppendMillis() > policy.retainMillis();
+            if (!tooLarge && !tooOld) {
+                break;
+            }
+            segments.pollFirstEntry();
+            unflushed.remove(oldest);
+            unnamed.remove(oldest);
+            size -= oldest.size();
+            oldest.delete();
+        }
+        return active != null && policy.retainMillis() > 0 && now - lastUsedMillis > policy.retainMillis();
+    }
+
+    /**
+     * Closes the log, deleting every segment but the last, which is kept for the offset a later
+     * log of the destination goes on from. Its mappings are released once the segments are collected.
+     * @return the offset the next message of the destination gets
+     */
+    synchronized long close() {
+        long next = nextOffset();
+        closed = true;
+        if (active != null) {
+            active.flush();
+            try {
+                for (LogSegment segment : segments.headMap(active.baseOffset()).values()) {
+                    segment.delete();
+                }
+                if (!active.isNamed()) {
+                    active.rename();
+                }
+                if (spare != null) {
+                    spare.delete();
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace(); // the files are left behind, the log is closed all the same
+            }
+        }
+        segments.clear();
+        unflushed = new ArrayList<>();
+        unnamed = new ArrayList<>();
+        spare = null;
+        active = null;
+        pending = null;
+        return next;
+    }
+
+    // Guarded by this
+    private int nextCapacity() {
+        return (int) Math.min(policy.segmentBytes(), 2L * active.capacity());
+    }
+
+    private int firstSegmentBytes(int recordSize) {
+        return Math.max(Math.min(FIRST_SEGMENT_BYTES, policy.segmentBytes()), recordSize);
+    }
+}
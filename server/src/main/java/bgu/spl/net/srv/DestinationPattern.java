@@ -0,0 +1,76 @@
+package bgu.spl.net.srv;
+
+/**
+ * Destinations with wildcards, as clients may subscribe to them.
+ * A destination is split into segments at '/'. In a pattern, a segment ending with '*', such as
+ * "germany_*", matches any one segment starting with what comes before the '*', so "*" alone
+ * matches any one segment. A last segment "**" matches any number of segments, none included.
+ * A '*' anywhere else makes the pattern invalid.
+ */
+final class DestinationPattern {
+
+    static final String ANY_DEPTH = "**";
+
+    private DestinationPattern() {
+    }
+
+    static boolean isPattern(String destination) {
+        return destination.indexOf('*') >= 0;
+    }
+
+    static String[] segments(String destination) {
+        return destination.split("/", -1);
+    }
+
+    /**
+     * @return the segments of the pattern
+     * @throws IllegalArgumentException if the pattern has a '*' where wildcards are not allowed
+     */
+    static String[] parse(String pattern) {
+        String[] segments = segments(pattern);
+        for (int i = 0; i < segments.length; i++) {
+            String segment = segments[i];
+            int star = segment.indexOf('*');
+            if (star < 0 || star == segment.length() - 1) {
+                continue;
+            }
+            if (!segment.equals(ANY_DEPTH) || i != segments.length - 1) {
+                throw new IllegalArgumentException("Invalid wildcard in destination " + pattern
+                        + ", '*' may only end a segment and '**' only end the destination");
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * @return true if the segment matches any one segment starting with its {@link #prefix}
+     */
+    static boolean isPrefixed(String segment) {
+        return segment.endsWith("*") && !segment.equals(ANY_DEPTH);
+    }
+
+    static String prefix(String prefixedSegment) {
+        return prefixedSegment.substring(0, prefixedSegment.length() - 1);
+    }
+
+    /**
+     * Matches a single pattern, for when only a few patterns need checking.
+     * Many patterns at once are matched through a {@link DestinationTrie}.
+     */
+    static boolean matches(String[] pattern, String destination) {
+        String[] segments = segments(destination);
+        for (int i = 0; i < pattern.length; i++) {
+            String segment = pattern[i];
+            if (segment.equals(ANY_DEPTH)) {
+                return true;
+            }
+            if (i >= segments.length) {
+                return false;
+            }
+            if (isPrefixed(segment) ? !segments[i].startsWith(prefix(segment)) : !segment.equals(segments[i])) {
+                return false;
+            }
+        }
+        return pattern.length == segments.length;
+    }
+}
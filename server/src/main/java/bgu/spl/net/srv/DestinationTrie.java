@@ -0,0 +1,240 @@
+package bgu.spl.net.srv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The wildcard subscriptions, indexed by a trie over the segments of their patterns,
+ * see {@link DestinationPattern}. Each pattern is one {@link ChannelRegistry.Channel}.
+ * Matching a destination follows its segments down the trie, so it costs time in the depth
+ * of the destination and the patterns that match, not in the number of patterns.
+ * Lookups run without locks; adding and removing patterns is serialized on the trie.
+ */
+final class DestinationTrie<T> {
+
+    private final Node<T> root = new Node<>();
+    private final AtomicInteger channelIds;
+    private volatile int patternCount = 0; // written under the trie's lock
+
+    /**
+     * @param channelIds numbers the channels of new patterns, shared with the exact channels
+     */
+    DestinationTrie(AtomicInteger channelIds) {
+        this.channelIds = channelIds;
+    }
+
+    /**
+     * Subscribes the connection to the pattern, creating its channel if needed.
+     * @return the channel of the pattern
+     */
+    synchronized ChannelRegistry.Channel<T> subscribe(String pattern, String[] segments, int connectionId,
+                                                     ConnectionHandler<T> handler, String subscriptionId) {
+        boolean anyDepth = segments[segments.length - 1].equals(DestinationPattern.ANY_DEPTH);
+        int depth = anyDepth ? segments.length - 1 : segments.length;
+
+        Node<T> node = root;
+        for (int i = 0; i < depth; i++) {
+            node = node.child(segments[i]);
+        }
+
+        ChannelRegistry.Channel<T> channel = anyDepth ? node.anyDepth : node.exact;
+        if (channel == null) {
+            channel = new ChannelRegistry.Channel<>(pattern, channelIds.getAndIncrement(), segments);
+            if (anyDepth) {
+                node.anyDepth = channel;
+            } else {
+                node.exact = channel;
+            }
+            patternCount++;
+        }
+        // Eviction only happens under this lock, so the channel found is still live
+        channel.add(connectionId, handler, subscriptionId);
+        return channel;
+    }
+
+    /**
+     * Removes the connection from the pattern's channel. A pattern left without subscribers
+     * is evicted and the trie nodes that only led to it are pruned.
+     */
+    synchronized void unsubscribe(ChannelRegistry.Channel<T> channel, int connectionId) {
+        if (!channel.remove(connectionId)) {
+            return;
+        }
+
+        String[] segments = channel.pattern();
+        boolean anyDepth = segments[segments.length - 1].equals(DestinationPattern.ANY_DEPTH);
+        int depth = anyDepth ? segments.length - 1 : segments.length;
+
+        List<Node<T>> path = new ArrayList<>(depth + 1);
+        path.add(root);
+        for (int i = 0; i < depth; i++) {
+            path.add(path.get(i).existingChild(segments[i]));
+        }
+
+        Node<T> node = path.get(depth);
+        if (anyDepth) {
+            node.anyDepth = null;
+        } else {
+            node.exact = null;
+        }
+        patternCount--;
+
+        for (int i = depth; i > 0 && path.get(i).isEmpty(); i--) {
+            path.get(i - 1).removeChild(segments[i - 1]);
+        }
+    }
+
+    /**
+     * Adds the channel of every pattern matching the destination to out.
+     */
+    void match(String destination, List<ChannelRegistry.Channel<T>> out) {
+        if (patternCount == 0) {
+            return;
+        }
+        match(root, DestinationPattern.segments(destination), 0, out);
+    }
+
+    private void match(Node<T> node, String[] segments, int i, List<ChannelRegistry.Channel<T>> out) {
+        ChannelRegistry.Channel<T> anyDepth = node.anyDepth;
+        if (anyDepth != null) {
+            out.add(anyDepth);
+        }
+        if (i == segments.length) {
+            ChannelRegistry.Channel<T> exact = node.exact;
+            if (exact != null) {
+                out.add(exact);
+            }
+            return;
+        }
+
+        String segment = segments[i];
+        Node<T> literal = node.literals.get(segment);
+        if (literal != null) {
+            match(literal, segments, i + 1, out);
+        }
+        // Walk the segment's characters down the prefixes, meeting every prefixed pattern
+        // of the segment on the way, however many prefixed patterns there are
+        Prefix<T> prefix = node.prefixes;
+        for (int c = 0; prefix != null; c++) {
+            Node<T> prefixed = prefix.node;
+            if (prefixed != null) {
+                match(prefixed, segments, i + 1, out);
+            }
+            prefix = c < segment.length() ? prefix.child(segment.charAt(c)) : null;
+        }
+    }
+
+    private static final class Node<T> {
+
+        // Children by literal segment, and by the prefix of segments ending with '*',
+        // in a trie of the prefixes' characters whose root is the empty prefix
+        final ConcurrentHashMap<String, Node<T>> literals = new ConcurrentHashMap<>();
+        final Prefix<T> prefixes = new Prefix<>('\u0000');
+
+        // The patterns ending at this node, and the patterns ending with '**' at this node
+        volatile ChannelRegistry.Channel<T> exact;
+        volatile ChannelRegistry.Channel<T> anyDepth;
+
+        Node<T> child(String segment) {
+            if (DestinationPattern.isPrefixed(segment)) {
+                Prefix<T> prefix = prefixes;
+                for (int c = 0; c < segment.length() - 1; c++) {
+                    prefix = prefix.addChild(segment.charAt(c));
+                }
+                if (prefix.node == null) {
+                    prefix.node = new Node<>();
+                }
+                return prefix.node;
+            }
+            return literals.computeIfAbsent(segment, s -> new Node<>());
+        }
+
+        Node<T> existingChild(String segment) {
+            if (!DestinationPattern.isPrefixed(segment)) {
+                return literals.get(segment);
+            }
+            Prefix<T> prefix = prefixes;
+            for (int c = 0; c < segment.length() - 1 && prefix != null; c++) {
+                prefix = prefix.child(segment.charAt(c));
+            }
+            return prefix != null ? prefix.node : null;
+        }
+
+        void removeChild(String segment) {
+            if (!DestinationPattern.isPrefixed(segment)) {
+                literals.remove(segment);
+                return;
+            }
+            int length = segment.length() - 1;
+            List<Prefix<T>> path = new ArrayList<>(length + 1);
+            path.add(prefixes);
+            for (int c = 0; c < length; c++) {
+                path.add(path.get(c).child(segment.charAt(c)));
+            }
+            path.get(length).node = null;
+            // Prune the characters that only led to the removed prefix
+            for (int c = length; c > 0 && path.get(c).isEmpty(); c--) {
+                path.get(c - 1).removeChild(path.get(c));
+            }
+        }
+
+        boolean isEmpty() {
+            return exact == null && anyDepth == null && literals.isEmpty() && prefixes.isEmpty();
+        }
+    }
+
+    /**
+     * A character of the prefixes of a node's prefixed children. Its children hang in a list of
+     * siblings, which readers walk without locks while the trie's lock serializes changes to it.
+     */
+    private static final class Prefix<T> {
+
+        final char c;
+        volatile Node<T> node; // the child of the prefix ending with this character, or null
+        volatile Prefix<T> firstChild;
+        volatile Prefix<T> nextSibling;
+
+        Prefix(char c) {
+            this.c = c;
+        }
+
+        Prefix<T> child(char c) {
+            for (Prefix<T> child = firstChild; child != null; child = child.nextSibling) {
+                if (child.c == c) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        Prefix<T> addChild(char c) {
+            Prefix<T> child = child(c);
+            if (child == null) {
+                child = new Prefix<>(c);
+                child.nextSibling = firstChild;
+                firstChild = child; // published once complete
+            }
+            return child;
+        }
+
+        void removeChild(Prefix<T> removed) {
+            if (firstChild == removed) {
+                firstChild = removed.nextSibling;
+                return;
+            }
+            for (Prefix<T> child = firstChild; child != null; child = child.nextSibling) {
+                if (child.nextSibling == removed) {
+                    // A reader standing on the removed child still finds the rest of the list
+                    child.nextSibling = removed.nextSibling;
+                    return;
+                }
+            }
+        }
+
+        boolean isEmpty() {
+            return node == null && firstChild == null;
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts recorded values in log-linear buckets, like an HDR histogram: every power of two is
+ * split into {@link #SUB_BUCKETS} equal buckets, so a value is known to within 1/16 of itself
+ * from 0 up to Long.MAX_VALUE in a fixed 960 counters.
+ * Recording takes no lock. The counters are striped over a few arrays by thread, so threads
+ * recording the same values at once mostly increment different memory.
+ */
+public final class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    // The next power of two of the cores, at most 8 stripes of 960 counters per histogram
+    private static final int STRIPES = Math.min(Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1), 8);
+
+    private final AtomicLongArray[] stripes = new AtomicLongArray[STRIPES];
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public Histogram() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new AtomicLongArray(BUCKETS);
+        }
+    }
+
+    /**
+     * Counts the value, a negative one as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        int h = System.identityHashCode(Thread.currentThread());
+        stripes[(h ^ (h >>> 16)) & (STRIPES - 1)].incrementAndGet(bucket(value));
+        sum.add(value);
+        if (value > max.get()) {
+            max.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * @return the counts so far; taken while values are recorded, it may miss the latest of them
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (AtomicLongArray stripe : stripes) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long c = stripe.get(i);
+                counts[i] += c;
+                count += c;
+            }
+        }
+        return new Snapshot(counts, count, sum.sum(), max.get());
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // The bits behind the highest one pick the sub-bucket, those behind them are dropped
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @return the highest value counted in the bucket
+     */
+    static long highestValue(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * The counts of a histogram at one point in time.
+     * Its getters make it an open type, so JMX clients read it without this class.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public long getP50() {
+            return percentile(0.5);
+        }
+
+        public long getP90() {
+            return percentile(0.9);
+        }
+
+        public long getP99() {
+            return percentile(0.99);
+        }
+
+        public long getP999() {
+            return percentile(0.999);
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         * @return the value that many of the recorded values are at or below, to within 1/16
+         */
+        public long percentile(double quantile) {
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + " mean=" + String.format("%.1f", getMean()) + " p50=" + getP50() + " p90=" + getP90()
+                    + " p99=" + getP99() + " p999=" + getP999() + " max=" + max;
+        }
+    }
+}
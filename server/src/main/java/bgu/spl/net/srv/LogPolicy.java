@@ -0,0 +1,66 @@
+package bgu.spl.net.srv;
+
+/**
+ * How a {@link MessageLog} lays out, syncs and expires the messages of a destination.
+ * A destination's log is split into segments that double in size up to segmentBytes. Whole segments are removed once
+ * the destination holds more than retainBytes, or once their newest message is older than
+ * retainMillis. The active segment is never removed.
+ */
+public class LogPolicy {
+
+    public enum Fsync {
+        /** force appended messages to disk as soon as possible, one force covering all appended meanwhile */
+        BATCH,
+        /** force appended messages to disk every fsyncIntervalMillis */
+        INTERVAL,
+        /** leave writing back to the operating system */
+        NONE
+    }
+
+    private final int segmentBytes;
+    private final long retainBytes;
+    private final long retainMillis;
+    private final Fsync fsync;
+    private final long fsyncIntervalMillis;
+
+    /**
+     * @param segmentBytes the size segment files grow to; a larger message gets a segment of its own
+     * @param retainBytes the bytes a destination keeps, 0 for no limit
+     * @param retainMillis how long a segment is kept after its last message, 0 for no time limit
+     * @param fsync when appended messages are forced to disk
+     * @param fsyncIntervalMillis the period of {@link Fsync#INTERVAL}, and of the retention checks
+     */
+    public LogPolicy(int segmentBytes, long retainBytes, long retainMillis, Fsync fsync, long fsyncIntervalMillis) {
+        if (segmentBytes <= 0 || fsyncIntervalMillis <= 0) {
+            throw new IllegalArgumentException("segment size and fsync interval must be positive");
+        }
+        if (retainBytes < 0 || retainMillis < 0) {
+            throw new IllegalArgumentException("retention limits must not be negative");
+        }
+        this.segmentBytes = segmentBytes;
+        this.retainBytes = retainBytes;
+        this.retainMillis = retainMillis;
+        this.fsync = fsync;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+    }
+
+    public int segmentBytes() {
+        return segmentBytes;
+    }
+
+    public long retainBytes() {
+        return retainBytes;
+    }
+
+    public long retainMillis() {
+        return retainMillis;
+    }
+
+    public Fsync fsync() {
+        return fsync;
+    }
+
+    public long fsyncIntervalMillis() {
+        return fsyncIntervalMillis;
+    }
+}
@@ -0,0 +1,350 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.EncodedBroadcast;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * One memory-mapped file of a {@link DestinationLog}, holding the messages from its base offset on.
+ * A record is its length, a checksum of the rest, the length of the message's prefix, and the
+ * prefix and body of the {@link EncodedBroadcast}, so a message is replayed without re-encoding it.
+ * The length is written last, and a zero length ends the segment.
+ * A sparse index file maps every few KB of records from a relative offset to a file position,
+ * so reading from an offset scans at most {@link #INDEX_INTERVAL} bytes before the first message.
+ * A segment may be created ahead of time as a spare, under a name of its own, and started at
+ * its base offset once the owning log needs it; it is renamed after that offset later on.
+ * Appends and reads are serialized by the owning log; flushing may run alongside them.
+ */
+final class LogSegment {
+
+    static final String LOG_SUFFIX = ".log";
+    static final String INDEX_SUFFIX = ".index";
+    static final String SPARE_NAME = "spare";
+    static final int INDEX_INTERVAL = 4096;
+
+    private static final int RECORD_HEADER = 12; // length, checksum, prefix length
+    private static final int INDEX_ENTRY = 8;    // relative offset, position
+
+    private Path file;      // changed by rename only
+    private Path indexFile; // changed by rename only
+    private long baseOffset;
+    private final MappedByteBuffer data;
+    private final MappedByteBuffer index;
+
+    private volatile int written = 0;
+    private int records = 0;
+    private int indexEntries = 0;
+    private int lastIndexed = 0;
+    private int flushed = 0; // only touched by the flushing thread
+    private volatile long lastAppendMillis;
+
+    private LogSegment(Path file, Path indexFile, long baseOffset, MappedByteBuffer data, MappedByteBuffer index) {
+        this.file = file;
+        this.indexFile = indexFile;
+        this.baseOffset = baseOffset;
+        this.data = data;
+        this.index = index;
+    }
+
+    /**
+     * Creates an empty segment of the given capacity in bytes.
+     */
+    static LogSegment create(Path dir, long baseOffset, int capacity) throws IOException {
+        return create(dir, name(baseOffset), baseOffset, capacity);
+    }
+
+    /**
+     * Creates an empty segment of the given capacity without a base offset, to be {@link #start}ed
+     * once it is needed. A log has one spare at most, any files an earlier one left are replaced.
+     */
+    static LogSegment spare(Path dir, int capacity) throws IOException {
+        Files.deleteIfExists(dir.resolve(SPARE_NAME + LOG_SUFFIX));
+        Files.deleteIfExists(dir.resolve(SPARE_NAME + INDEX_SUFFIX));
+        return create(dir, SPARE_NAME, -1, capacity);
+    }
+
+    private static LogSegment create(Path dir, String name, long baseOffset, int capacity) throws IOException {
+        Path file = dir.resolve(name + LOG_SUFFIX);
+        Path indexFile = dir.resolve(name + INDEX_SUFFIX);
+        LogSegment segment = new LogSegment(file, indexFile, baseOffset,
+                map(file, capacity), map(indexFile, indexCapacity(capacity)));
+        segment.lastAppendMillis = System.currentTimeMillis();
+        return segment;
+    }
+
+    /**
+     * Opens a segment left by an earlier run. The records after the last index entry are checked
+     * against their checksums, and the segment ends before the first one that is torn.
+     */
+    static LogSegment open(Path file) throws IOException {
+        String name = file.getFileName().toString();
+        return open(file, Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length())));
+    }
+
+    /**
+     * Opens a segment left by an earlier run under a name other than its base offset's, as a
+     * spare started but not yet renamed is.
+     */
+    static LogSegment open(Path file, long baseOffset) throws IOException {
+        String name = file.getFileName().toString();
+        Path indexFile = file.resolveSibling(name.substring(0, name.length() - LOG_SUFFIX.length()) + INDEX_SUFFIX);
+        int capacity = (int) Files.size(file);
+        LogSegment segment = new LogSegment(file, indexFile, baseOffset,
+                map(file, capacity), map(indexFile, indexCapacity(capacity)));
+        segment.recover();
+        segment.lastAppendMillis = Files.getLastModifiedTime(file).toMillis();
+        return segment;
+    }
+
+    long baseOffset() {
+        return baseOffset;
+    }
+
+    /**
+     * Gives a spare the offset of its first message; its files keep their name until {@link #rename}.
+     */
+    void start(long baseOffset, long now) {
+        this.baseOffset = baseOffset;
+        this.lastAppendMillis = now;
+    }
+
+    /**
+     * @return true if the files are named after the base offset
+     */
+    boolean isNamed() {
+        return file.getFileName().toString().equals(name(baseOffset) + LOG_SUFFIX);
+    }
+
+    /**
+     * Names the files of a started spare after its base offset. The mappings stay valid.
+     */
+    void rename() throws IOException {
+        String name = name(baseOffset);
+        Path named = file.resolveSibling(name + LOG_SUFFIX);
+        Path namedIndex = indexFile.resolveSibling(name + INDEX_SUFFIX);
+        // Cut off between the two, the log is found under its name and its index rebuilt by a scan
+        Files.move(file, named);
+        file = named;
+        Files.move(indexFile, namedIndex);
+        indexFile = namedIndex;
+    }
+
+    /**
+     * @return the offset the next message appended to this segment gets
+     */
+    long nextOffset() {
+        return baseOffset + records;
+    }
+
+    /**
+     * @return the bytes taken by the records
+     */
+    int size() {
+        return written;
+    }
+
+    /**
+     * @return the bytes the segment file holds
+     */
+    int capacity() {
+        return data.capacity();
+    }
+
+    long lastAppendMillis() {
+        return lastAppendMillis;
+    }
+
+    /**
+     * @return the bytes a record of the message takes
+     */
+    static int recordSize(EncodedBroadcast frame) {
+        return RECORD_HEADER + frame.size();
+    }
+
+    /**
+     * @return false if the segment has no room left for the message
+     */
+    boolean append(EncodedBroadcast frame, long now) {
+        int position = written;
+        int size = recordSize(frame);
+        if (size > data.capacity() - position) {
+            return false;
+        }
+        if (records == 0 || position - lastIndexed >= INDEX_INTERVAL) {
+            index.putInt(indexEntries * INDEX_ENTRY, records);
+            index.putInt(indexEntries * INDEX_ENTRY + 4, position);
+            indexEntries++;
+            lastIndexed = position;
+        }
+
+        ByteBuffer prefix = frame.prefix();
+        ByteBuffer record = data.duplicate();
+        record.position(position + 8);
+        record.putInt(prefix.remaining()).put(prefix).put(frame.body());
+        data.putInt(position + 4, checksum(position + 8, size - 8));
+        data.putInt(position, size - 8);
+
+        records++;
+        written = position + size;
+        lastAppendMillis = now;
+        return true;
+    }
+
+    /**
+     * Hands the messages from the given offset on to out, oldest first, stopping before toOffset
+     * or once limit messages were handed over.
+     * @return the number of messages handed over
+     */
+    int read(long fromOffset, long toOffset, int limit, Consumer<EncodedBroadcast> out) {
+        long relative = Math.max(0, fromOffset - baseOffset);
+        long end = Math.min(records, toOffset - baseOffset);
+        if (relative >= end || limit <= 0) {
+            return 0;
+        }
+
+        // The last index entry at or before the offset, then a scan from there
+        int low = 0;
+        int high = indexEntries - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (index.getInt(mid * INDEX_ENTRY) <= relative) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int record = index.getInt(low * INDEX_ENTRY);
+        int position = index.getInt(low * INDEX_ENTRY + 4);
+        int read = 0;
+        for (; record < end && read < limit; record++) {
+            int length = data.getInt(position);
+            if (record >= relative) {
+                out.accept(decode(position, length));
+                read++;
+            }
+            position += 8 + length;
+        }
+        return read;
+    }
+
+    /**
+     * Forces the records appended since the last flush to disk.
+     */
+    void flush() {
+        int end = written;
+        if (end > flushed) {
+            data.force(flushed, end - flushed);
+            index.force();
+            flushed = end;
+        }
+    }
+
+    void delete() throws IOException {
+        // The mappings stay valid until collected, a reader still holding one reads what it had
+        Files.deleteIfExists(file);
+        Files.deleteIfExists(indexFile);
+    }
+
+    private EncodedBroadcast decode(int position, int length) {
+        int prefixLength = data.getInt(position + 8);
+        byte[] prefix = new byte[prefixLength];
+        byte[] body = new byte[length - 4 - prefixLength];
+        data.get(position + RECORD_HEADER, prefix);
+        data.get(position + RECORD_HEADER + prefixLength, body);
+        return new EncodedBroadcast(prefix, body);
+    }
+
+    private void recover() {
+        // The index entries, each at a position after the one before
+        while (indexEntries * INDEX_ENTRY + INDEX_ENTRY <= index.capacity()) {
+            int position = index.getInt(indexEntries * INDEX_ENTRY + 4);
+            if (indexEntries > 0 && position <= lastIndexed) {
+                break;
+            }
+            lastIndexed = position;
+            indexEntries++;
+        }
+
+        // Scan from the last entry whose record is whole, dropping entries past a torn tail
+        while (indexEntries > 0) {
+            int entry = indexEntries - 1;
+            int record = index.getInt(entry * INDEX_ENTRY);
+            int position = index.getInt(entry * INDEX_ENTRY + 4);
+            int end = scan(position);
+            if (end > position || entry == 0) {
+                lastIndexed = position;
+                written = end;
+                records = record + count(position, end);
+                break;
+            }
+            index.putLong(entry * INDEX_ENTRY, 0);
+            indexEntries--;
+        }
+        if (records == 0) {
+            indexEntries = 0;
+            lastIndexed = 0;
+        }
+        // Clear whatever a torn record left behind, so the next append starts clean
+        if (written + 4 <= data.capacity()) {
+            data.putInt(written, 0);
+        }
+        flushed = written;
+    }
+
+    /**
+     * @return the position after the last whole record from the given one on
+     */
+    private int scan(int position) {
+        while (position + RECORD_HEADER <= data.capacity()) {
+            int length = data.getInt(position);
+            if (length < 4 || length > data.capacity() - position - 8) {
+                break;
+            }
+            int prefixLength = data.getInt(position + 8);
+            if (prefixLength < 0 || prefixLength > length - 4 || data.getInt(position + 4) != checksum(position + 8, length)) {
+                break;
+            }
+            position += 8 + length;
+        }
+        return position;
+    }
+
+    private int count(int position, int end) {
+        int count = 0;
+        while (position < end) {
+            position += 8 + data.getInt(position);
+            count++;
+        }
+        return count;
+    }
+
+    private int checksum(int position, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(data.slice(position, length));
+        return (int) crc.getValue();
+    }
+
+    private static String name(long baseOffset) {
+        return String.format("%020d", baseOffset);
+    }
+
+    private static int indexCapacity(int capacity) {
+        return (capacity / INDEX_INTERVAL + 2) * INDEX_ENTRY;
+    }
+
+    private static MappedByteBuffer map(Path file, int capacity) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            if (raf.length() < capacity) {
+                raf.setLength(capacity);
+            }
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+    }
+}
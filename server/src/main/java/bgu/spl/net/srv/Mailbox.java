@@ -0,0 +1,16 @@
+package bgu.spl.net.srv;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The mailbox of an actor run by {@link ActorThreadPool}.
+ * Any thread may post tasks to it, while the scheduled flag makes sure at most one
+ * worker at a time drains it, so the tasks of one actor run in order, one at a time.
+ */
+public final class Mailbox {
+
+    final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+    final AtomicBoolean scheduled = new AtomicBoolean(false);
+}
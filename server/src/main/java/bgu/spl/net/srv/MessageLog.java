@@ -0,0 +1,169 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Keeps every message sent to a destination on disk, so subscribers can resume from an offset,
+ * also across restarts. Each destination has a {@link DestinationLog} in a directory of its own.
+ * Appending copies the message into a memory-mapped segment and returns; the disk is only
+ * waited for by a flusher thread of the log, which forces whatever was appended since its last
+ * pass as a group and removes the segments the {@link LogPolicy} no longer retains.
+ * The flusher also creates the files of a new destination, whose first messages are kept in
+ * memory meanwhile, and the segment a destination's appends go on to once its active one is full.
+ * It closes the log of a destination idle for longer than messages are retained.
+ */
+public class MessageLog implements AutoCloseable {
+
+    // Directory names are the URL encoded destination behind this mark, which encoding never yields
+    private static final String DIRECTORY_MARK = "~";
+
+    private final Path dir;
+    private final LogPolicy policy;
+    private final ConcurrentHashMap<String, DestinationLog> destinations = new ConcurrentHashMap<>();
+    // The offsets the destinations whose logs were closed go on from
+    private final ConcurrentHashMap<String, Long> closedOffsets = new ConcurrentHashMap<>();
+    private final Thread flusher;
+    private volatile boolean appended = false;
+    private volatile boolean created = false;
+    private volatile boolean segmentWanted = false;
+    private volatile boolean closed = false;
+
+    /**
+     * Opens the log kept in the given directory, recovering the destinations of an earlier run,
+     * and starts its flusher.
+     */
+    public MessageLog(Path dir, LogPolicy policy) throws IOException {
+        this.dir = dir;
+        this.policy = policy;
+        Files.createDirectories(dir);
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path destination : (Iterable<Path>) files.filter(Files::isDirectory)::iterator) {
+                String name = destination.getFileName().toString();
+                if (name.startsWith(DIRECTORY_MARK)) {
+                    destinations.put(URLDecoder.decode(name.substring(DIRECTORY_MARK.length()), StandardCharsets.UTF_8),
+                            DestinationLog.open(destination, policy));
+                }
+            }
+        }
+        this.flusher = new Thread(this::flushLoop, "message-log-flusher");
+        this.flusher.setDaemon(true);
+        this.flusher.start();
+    }
+
+    /**
+     * @return the log of the destination; a new one has its files created by the flusher. A log
+     * found {@link DestinationLog#isClosed closed} is about to be replaced, and is asked for again.
+     */
+    DestinationLog destination(String name) {
+        DestinationLog log = destinations.get(name);
+        if (log != null) {
+            return log;
+        }
+        log = destinations.computeIfAbsent(name, n -> {
+            Long offset = closedOffsets.remove(n);
+            created = true;
+            return DestinationLog.opening(dir.resolve(DIRECTORY_MARK + URLEncoder.encode(n, StandardCharsets.UTF_8)),
+                    policy, offset != null ? offset : 0);
+        });
+        if (created) {
+            LockSupport.unpark(flusher);
+        }
+        return log;
+    }
+
+    /**
+     * Tells the flusher a message was appended, so a {@link LogPolicy.Fsync#BATCH} policy forces it soon.
+     */
+    void appended() {
+        if (policy.fsync() == LogPolicy.Fsync.BATCH && !appended) {
+            appended = true;
+            LockSupport.unpark(flusher);
+        }
+    }
+
+    /**
+     * Tells the flusher a destination's {@link DestinationLog#append} asked for its next segment.
+     */
+    void segmentWanted() {
+        segmentWanted = true;
+        LockSupport.unpark(flusher);
+    }
+
+    /**
+     * Stops the flusher and forces everything appended so far to disk.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(flusher);
+        try {
+            flusher.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        for (DestinationLog log : destinations.values()) {
+            log.flush();
+        }
+    }
+
+    private void flushLoop() {
+        long nextRetention = 0;
+        while (!closed) {
+            if (!appended && !created && !segmentWanted) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(policy.fsyncIntervalMillis()));
+            }
+            // Everything appended or created from here on waits for the next pass
+            appended = false;
+            created = false;
+            segmentWanted = false;
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, DestinationLog> entry : destinations.entrySet()) {
+                DestinationLog log = entry.getValue();
+                try {
+                    if (!log.isOpen()) {
+                        open(entry.getKey(), log);
+                        continue;
+                    }
+                    log.prepareSegment();
+                    if (policy.fsync() != LogPolicy.Fsync.NONE) {
+                        log.flush();
+                    }
+                    if (now >= nextRetention && log.applyRetention(now)) {
+                        close(entry.getKey(), log);
+                    }
+                } catch (IOException | UncheckedIOException ex) {
+                    ex.printStackTrace(); // one failing destination must not stop the others from being flushed
+                }
+            }
+            if (now >= nextRetention) {
+                nextRetention = now + policy.fsyncIntervalMillis();
+            }
+        }
+    }
+
+    private void open(String name, DestinationLog log) throws IOException {
+        try {
+            log.openFiles();
+        } catch (IOException | UncheckedIOException ex) {
+            // Its messages so far were delivered live only; the next one tries a new log
+            close(name, log);
+            throw ex;
+        }
+    }
+
+    private void close(String name, DestinationLog log) {
+        closedOffsets.put(name, log.close());
+        destinations.remove(name, log);
+    }
+}
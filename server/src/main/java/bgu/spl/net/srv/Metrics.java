@@ -0,0 +1,213 @@
+package bgu.spl.net.srv;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * The server's instrumentation: named {@link Histogram}s, byte counters and the traffic of every
+ * open connection. Everything is recorded without locks, on striped counters, so the hot paths
+ * recording into it do not wait on each other.
+ * The metrics are read over JMX once {@link #register() registered}, and as a report published
+ * to the reserved destination {@link #DESTINATION}.
+ */
+public class Metrics implements MetricsMXBean {
+
+    public static final String OBJECT_NAME = "bgu.spl.net:type=Metrics";
+    // Destinations below this prefix belong to the server, clients may only subscribe to them
+    public static final String RESERVED_PREFIX = "/$SYS/";
+    public static final String DESTINATION = RESERVED_PREFIX + "metrics";
+    // The report lists the connections with the most traffic only
+    private static final int REPORTED_CONNECTIONS = 20;
+
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final Histogram actorQueueWait = histogram("actor.queue.wait_ns");
+    private final Histogram writeQueueDepth = histogram("write.queue.depth");
+    private final Histogram fanout = histogram("broadcast.fanout");
+    private final Histogram compressionCpu = histogram("compression.cpu_ns");
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder compressionIn = new LongAdder();
+    private final LongAdder compressionOut = new LongAdder();
+    private final LongAdder connectionsExpired = new LongAdder();
+    private final ConcurrentHashMap<Integer, Traffic> connections = new ConcurrentHashMap<>();
+    // Counters kept by other parts of the server, read when reported
+    private final ConcurrentHashMap<String, LongSupplier> suppliedCounters = new ConcurrentHashMap<>();
+
+    /**
+     * @return true if the destination is reserved for the server
+     */
+    public static boolean isReserved(String destination) {
+        return destination.startsWith(RESERVED_PREFIX);
+    }
+
+    /**
+     * @return the histogram of the given name, created if needed
+     */
+    public Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        return histogram != null ? histogram : histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Reports a counter kept elsewhere under the given name, read from value whenever reported.
+     */
+    public void counter(String name, LongSupplier value) {
+        suppliedCounters.put(name, value);
+    }
+
+    /**
+     * @return the time read tasks wait in their actor's mailbox before a worker runs them
+     */
+    public Histogram actorQueueWait() {
+        return actorQueueWait;
+    }
+
+    /**
+     * @return the number of frames a connection's write queue holds when its writer drains it
+     */
+    Histogram writeQueueDepth() {
+        return writeQueueDepth;
+    }
+
+    /**
+     * @return the number of subscribers a channel message is delivered to
+     */
+    Histogram fanout() {
+        return fanout;
+    }
+
+    /**
+     * Records frames compressed for a connection: the bytes before and after, and the time the
+     * compressing took, 0 when they were compressed once for others already.
+     */
+    void compressed(long bytesIn, long bytesOut, long nanos) {
+        compressionIn.add(bytesIn);
+        compressionOut.add(bytesOut);
+        if (nanos > 0) {
+            compressionCpu.record(nanos);
+        }
+    }
+
+    /**
+     * Records a connection dropped because its client stopped heart-beating.
+     */
+    void connectionExpired() {
+        connectionsExpired.increment();
+    }
+
+    /**
+     * @return the counters of a connection just opened, to record its traffic in
+     */
+    Traffic connectionOpened(int connectionId) {
+        Traffic traffic = new Traffic();
+        connections.put(connectionId, traffic);
+        return traffic;
+    }
+
+    void connectionClosed(int connectionId) {
+        connections.remove(connectionId);
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, under {@link #OBJECT_NAME}.
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException ex) {
+            System.err.println("Metrics could not be registered with JMX: " + ex.getMessage());
+        }
+    }
+
+    @Override
+    public Map<String, Histogram.Snapshot> getHistograms() {
+        Map<String, Histogram.Snapshot> snapshots = new TreeMap<>();
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            snapshots.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return snapshots;
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> counters = new TreeMap<>();
+        counters.put("bytes.in", bytesIn.sum());
+        counters.put("bytes.out", bytesOut.sum());
+        counters.put("compression.bytes.in", compressionIn.sum());
+        counters.put("compression.bytes.out", compressionOut.sum());
+        counters.put("connections.expired", connectionsExpired.sum());
+        counters.put("connections.open", (long) connections.size());
+        for (Map.Entry<String, LongSupplier> entry : suppliedCounters.entrySet()) {
+            counters.put(entry.getKey(), entry.getValue().getAsLong());
+        }
+        return counters;
+    }
+
+    @Override
+    public Map<Integer, String> getConnectionTraffic() {
+        Map<Integer, String> traffic = new TreeMap<>();
+        for (Map.Entry<Integer, Traffic> entry : connections.entrySet()) {
+            traffic.put(entry.getKey(), entry.getValue().toString());
+        }
+        return traffic;
+    }
+
+    /**
+     * @return one line per histogram, counter and busiest connection
+     */
+    @Override
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, Histogram.Snapshot> entry : getHistograms().entrySet()) {
+            report.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Long> entry : getCounters().entrySet()) {
+            report.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+
+        // Totals are read once before sorting, the connections keep counting meanwhile
+        List<long[]> busiest = new ArrayList<>(connections.size());
+        for (Map.Entry<Integer, Traffic> entry : connections.entrySet()) {
+            busiest.add(new long[] {entry.getKey(), entry.getValue().in.sum(), entry.getValue().out.sum()});
+        }
+        busiest.sort(Comparator.comparingLong((long[] traffic) -> traffic[1] + traffic[2]).reversed());
+        for (long[] traffic : busiest.subList(0, Math.min(REPORTED_CONNECTIONS, busiest.size()))) {
+            report.append("connection.").append(traffic[0]).append(" in=").append(traffic[1])
+                    .append(" out=").append(traffic[2]).append('\n');
+        }
+        return report.toString();
+    }
+
+    /**
+     * The bytes read from and written to one connection, also added to the server's totals.
+     */
+    final class Traffic {
+
+        private final LongAdder in = new LongAdder();
+        private final LongAdder out = new LongAdder();
+
+        void read(long bytes) {
+            in.add(bytes);
+            bytesIn.add(bytes);
+        }
+
+        void written(long bytes) {
+            out.add(bytes);
+            bytesOut.add(bytes);
+        }
+
+        @Override
+        public String toString() {
+            return "in=" + in.sum() + " out=" + out.sum();
+        }
+    }
+}
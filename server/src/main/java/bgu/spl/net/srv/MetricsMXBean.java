@@ -0,0 +1,29 @@
+package bgu.spl.net.srv;
+
+import java.util.Map;
+
+/**
+ * The server's {@link Metrics} as seen over JMX, registered under {@link Metrics#OBJECT_NAME}.
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return every histogram by name; latencies are in nanoseconds
+     */
+    Map<String, Histogram.Snapshot> getHistograms();
+
+    /**
+     * @return every counter by name
+     */
+    Map<String, Long> getCounters();
+
+    /**
+     * @return the bytes read and written by each open connection, by connection id
+     */
+    Map<Integer, String> getConnectionTraffic();
+
+    /**
+     * @return the report published to {@link Metrics#DESTINATION}
+     */
+    String getReport();
+}
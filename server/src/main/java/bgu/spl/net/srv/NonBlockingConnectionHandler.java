@@ -1,5 +1,6 @@
 package bgu.spl.net.srv;
 
+import bgu.spl.net.api.EncodedBroadcast;
 import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.StompMessagingProtocol; // Correct Import
 
@@ -7,101 +8,363 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
-    private static final int BUFFER_ALLOCATION_SIZE = 8192;
+    private static final int SHRINK_AFTER_READS = 16;
+    private static final int MAX_GATHER_BUFFERS = 64;
+    private static final int MAX_GATHER_BYTES = 1 << 18; // 256k per write call
+    private static final int COALESCE_THRESHOLD = 1 << 9; // frames shorter than 512 bytes are merged
+    private static final int COALESCE_SIZE_CLASS = 1;     // into 8k pooled buffers
+    private static final byte[] HEART_BEAT = {'\n'};
 
     private final StompMessagingProtocol<T> protocol; // Changed type
     private final MessageEncoderDecoder<T> encdec;
-    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final Queue<OutboundFrame> writeQueue = new ConcurrentLinkedQueue<>();
     private final SocketChannel chan;
-    private final Reactor<T> reactor;
+    private final ReactorLoop<T> loop;
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final Mailbox mailbox = new Mailbox();
+    private final int connectionId;
+    private final ConnectionsImpl<T> connections;
+    private final Metrics metrics;
+    private final Metrics.Traffic traffic;
+
+    // Bytes queued or staged but not written yet, bounded by the slow consumer policy
+    private final SlowConsumerPolicy<T> slowConsumerPolicy;
+    private final AtomicLong queuedBytes = new AtomicLong();
+    // The part of queuedBytes that is replayed messages, which are not held against the watermarks.
+    // They are queued ahead of the channel's live messages, so the bytes written go to them first.
+    private final AtomicLong replayBytes = new AtomicLong();
+    private final AtomicBoolean overWatermark = new AtomicBoolean(false);
+    private final AtomicBoolean disconnectingSlowConsumer = new AtomicBoolean(false);
+    private volatile boolean closeAfterFlush = false;
+    private volatile Compression compression;
+
+    // Frames taken off the write queue but not yet fully written, and the pooled buffers
+    // among them that hold merged small frames. Only touched by the selector thread.
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> coalesced = new ArrayDeque<>();
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER_BUFFERS];
+
+    // The deflate stream of the connection once negotiated, and the pooled buffer it is filling.
+    // Only touched by the selector thread, which starts it where the write queue says so.
+    private Deflater deflater;
+    private ByteBuffer deflateOut;
+    private long deflatedBytes;
+
+    // Read buffer size class, only touched by the selector thread in continueRead
+    private int readSizeClass = 0;
+    private int smallReads = 0;
+
+    // Heart-beating, once negotiated: the timers sending beats and expiring a silent client on
+    // the loop's wheel, and when the connection last read and wrote. Only touched by the selector thread.
+    private TimingWheel.Timer heartBeatTimer;
+    private TimingWheel.Timer expiryTimer;
+    private long heartBeatNanos;
+    private long expiryNanos;
+    private long lastRead;
+    private long lastWritten;
 
     public NonBlockingConnectionHandler(
             MessageEncoderDecoder<T> reader,
             StompMessagingProtocol<T> protocol,
             SocketChannel chan,
-            Reactor<T> reactor,
+            ReactorLoop<T> loop,
             int connectionId,       // New Arg
             Connections<T> connections) { // New Arg
 
         this.chan = chan;
         this.encdec = reader;
         this.protocol = protocol;
-        this.reactor = reactor;
+        this.loop = loop;
+        this.connectionId = connectionId;
+        this.connections = (ConnectionsImpl<T>) connections;
+        this.slowConsumerPolicy = this.connections.slowConsumerPolicy();
+        this.metrics = this.connections.metrics();
+        this.traffic = metrics.connectionOpened(connectionId);
         
         // 1. Add this handler to the connections map
-        ((ConnectionsImpl<T>) connections).addConnection(connectionId, this);
+        this.connections.addConnection(connectionId, this);
 
         // 2. Start the protocol
         protocol.start(connectionId, connections);
     }
 
     public Runnable continueRead() {
-        ByteBuffer buf = ByteBuffer.allocate(BUFFER_ALLOCATION_SIZE);
+        BufferPool bufferPool = loop.bufferPool();
+        ByteBuffer buf = bufferPool.acquire(readSizeClass);
+        boolean handedOff = false;
 
         try {
-            if (chan.read(buf) == -1) {
+            int read = chan.read(buf);
+            if (read == -1) {
                 close();
             } else {
+                traffic.read(read);
+                lastRead = loop.now();
+                adaptReadSize(read, buf.capacity());
                 buf.flip();
+                handedOff = true;
                 return () -> {
                     try {
-                        while (buf.hasRemaining()) {
-                            T nextMessage = encdec.decodeNextByte(buf.get());
-                            if (nextMessage != null) {
-                                // 3. Process the message (Void return)
-                                protocol.process(nextMessage);
-                                
-                                // Note: We do NOT write response here anymore.
-                                // The protocol calls connections.send -> which calls this.send()
-                            }
-                        }
+                        // 3. Process every decoded message (Void return)
+                        // Note: We do NOT write response here anymore.
+                        // The protocol calls connections.send -> which calls this.send()
+                        encdec.decode(buf, protocol::process);
                     } finally {
-                        buf.clear();
+                        // The buffer goes back to the pool only once the decode task is done with it
+                        bufferPool.release(buf);
                     }
                 };
             }
         } catch (IOException ex) {
             ex.printStackTrace();
             close();
+        } finally {
+            if (!handedOff) {
+                bufferPool.release(buf);
+            }
         }
         return null;
     }
 
+    /**
+     * Grows the read buffer of a connection that fills it, and shrinks it again
+     * once the connection has been sending small reads for a while.
+     */
+    private void adaptReadSize(int read, int capacity) {
+        if (read == capacity && readSizeClass < BufferPool.sizeClasses() - 1) {
+            readSizeClass++;
+            smallReads = 0;
+        } else if (readSizeClass > 0 && read <= BufferPool.capacityOf(readSizeClass - 1) / 2) {
+            if (++smallReads >= SHRINK_AFTER_READS) {
+                readSizeClass--;
+                smallReads = 0;
+            }
+        } else {
+            smallReads = 0;
+        }
+    }
+
+    /**
+     * Drains the write queue with gathering writes.
+     * Queued frames are first moved to the selector-thread-only outbound list, where runs of
+     * small frames are merged into pooled buffers, and then written in batches bounded by
+     * {@link #MAX_GATHER_BUFFERS} and {@link #MAX_GATHER_BYTES}, one syscall per batch.
+     */
     public void continueWrite() {
-        while (!writeQueue.isEmpty()) {
-            try {
-                ByteBuffer top = writeQueue.peek();
-                chan.write(top);
-                if (top.hasRemaining()) {
-                    return;
+        try {
+            while (true) {
+                stageQueuedFrames();
+                if (outbound.isEmpty()) {
+                    break;
+                }
+
+                int count = 0;
+                long bytes = 0;
+                for (ByteBuffer buf : outbound) {
+                    if (count == MAX_GATHER_BUFFERS || (count > 0 && bytes + buf.remaining() > MAX_GATHER_BYTES)) {
+                        break;
+                    }
+                    gather[count++] = buf;
+                    bytes += buf.remaining();
+                }
+
+                long written = chan.write(gather, 0, count);
+                loop.recordWriteSyscall();
+                Arrays.fill(gather, 0, count, null);
+                queuedBytes.addAndGet(-written);
+                replayWritten(written);
+                traffic.written(written);
+                lastWritten = loop.now();
+                leaveWatermarkIfDrained();
+
+                while (!outbound.isEmpty() && !outbound.peekFirst().hasRemaining()) {
+                    retire(outbound.pollFirst());
+                }
+                if (!outbound.isEmpty()) {
+                    return; // the socket buffer is full, wait for the next OP_WRITE
                 }
-                writeQueue.remove();
-            } catch (IOException ex) {
-                ex.printStackTrace();
-                close();
             }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            close();
+            return;
+        }
+
+        if (protocol.shouldTerminate() || closeAfterFlush) close();
+        else loop.updateInterestedOps(chan, SelectionKey.OP_READ);
+    }
+
+    /**
+     * Moves queued frames to the outbound list, copying consecutive small frames into one
+     * pooled buffer so a burst of short frames costs a single gather entry.
+     * Once the connection has a deflate stream, the frames are deflated into pooled buffers
+     * instead, with one sync flush for all the frames moved.
+     */
+    private void stageQueuedFrames() {
+        OutboundFrame queued;
+        int depth = 0;
+        long plainBytes = 0;
+        long start = 0;
+        while ((queued = writeQueue.poll()) != null) {
+            if (!queued.claim()) {
+                continue; // dropped by the slow consumer policy
+            }
+            if (queued.dictionary != null) {
+                startDeflating(queued.dictionary);
+                continue;
+            }
+            depth++;
+            loop.recordFrameWritten();
+            if (deflater != null) {
+                if (plainBytes == 0) {
+                    start = System.nanoTime();
+                }
+                plainBytes += queued.size;
+                deflate(queued.data);
+                if (queued.body != null) {
+                    deflate(queued.body);
+                }
+                continue;
+            }
+            stage(queued.data);
+            if (queued.body != null) {
+                stage(queued.body);
+            }
+        }
+        if (depth > 0) {
+            metrics.writeQueueDepth().record(depth);
+        }
+        if (plainBytes > 0) {
+            syncFlush(plainBytes, start);
         }
+    }
+
+    private void startDeflating(byte[] dictionary) {
+        if (deflater == null) {
+            deflater = new Deflater();
+            deflater.setDictionary(dictionary);
+        }
+    }
+
+    private void deflate(ByteBuffer frame) {
+        deflater.setInput(frame);
+        while (!deflater.needsInput()) {
+            deflateOut(Deflater.NO_FLUSH);
+        }
+    }
+
+    /**
+     * Ends the deflated frames with a sync flush, so the client can inflate all of them, and
+     * accounts for the bytes they were queued with shrinking to their deflated size.
+     */
+    private void syncFlush(long plainBytes, long start) {
+        do {
+            deflateOut(Deflater.SYNC_FLUSH);
+        } while (!deflateOut.hasRemaining()); // a full buffer may hold back more output
+        if (deflateOut.position() > 0) {
+            stageDeflated();
+        } else {
+            loop.bufferPool().release(deflateOut);
+            deflateOut = null;
+        }
+        metrics.compressed(plainBytes, deflatedBytes, System.nanoTime() - start);
+        queuedBytes.addAndGet(deflatedBytes - plainBytes);
+        leaveWatermarkIfDrained();
+        deflatedBytes = 0;
+    }
+
+    private void deflateOut(int flush) {
+        if (deflateOut != null && !deflateOut.hasRemaining()) {
+            stageDeflated();
+        }
+        if (deflateOut == null) {
+            deflateOut = loop.bufferPool().acquire(COALESCE_SIZE_CLASS);
+        }
+        deflatedBytes += deflater.deflate(deflateOut, flush);
+    }
+
+    private void stageDeflated() {
+        deflateOut.flip();
+        outbound.addLast(deflateOut);
+        coalesced.addLast(deflateOut);
+        deflateOut = null;
+    }
+
+    private void stage(ByteBuffer frame) {
+        if (frame.remaining() >= COALESCE_THRESHOLD) {
+            outbound.addLast(frame);
+            return;
+        }
+
+        ByteBuffer last = outbound.peekLast();
+        if (last == null || last != coalesced.peekLast() || last.capacity() - last.limit() < frame.remaining()) {
+            last = loop.bufferPool().acquire(COALESCE_SIZE_CLASS);
+            last.flip(); // an empty buffer ready for reading
+            outbound.addLast(last);
+            coalesced.addLast(last);
+        }
+
+        // Append behind the unwritten bytes of the buffer, keeping its read position
+        int position = last.position();
+        last.position(last.limit()).limit(last.capacity());
+        last.put(frame);
+        last.limit(last.position()).position(position);
+    }
 
-        if (writeQueue.isEmpty()) {
-            if (protocol.shouldTerminate()) close();
-            else reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+    private void retire(ByteBuffer buf) {
+        if (buf == coalesced.peekFirst()) {
+            loop.bufferPool().release(coalesced.pollFirst());
         }
     }
 
     @Override
     public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
         try {
             chan.close();
         } catch (IOException ex) {
             ex.printStackTrace();
+        } finally {
+            if (heartBeatTimer != null) {
+                loop.timers().cancel(heartBeatTimer);
+            }
+            if (expiryTimer != null) {
+                loop.timers().cancel(expiryTimer);
+            }
+            // Unless the client disconnected, the protocol logs it out and drops its subscriptions
+            loop.submit(this, protocol::connectionLost);
+            if (deflater != null) {
+                deflater.end(); // only ever closed on the selector thread, which is done deflating
+            }
+            loop.connectionClosed();
+            metrics.connectionClosed(connectionId);
+            if (overWatermark.compareAndSet(true, false)) {
+                slowConsumerPolicy.leftOverWatermark();
+            }
         }
     }
 
+    /**
+     * @return the mailbox the read tasks of this connection are run through, one at a time
+     */
+    public Mailbox mailbox() {
+        return mailbox;
+    }
+
     public boolean isClosed() {
         return !chan.isOpen();
     }
@@ -110,8 +373,240 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
     public void send(T msg) {
         // Implementation of send for ConnectionsImpl
         if (msg != null) {
-            writeQueue.add(ByteBuffer.wrap(encdec.encode(msg)));
-            reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            enqueue(new OutboundFrame(ByteBuffer.wrap(encdec.encode(msg)), null, false));
+        }
+    }
+
+    @Override
+    public void publish(T msg) {
+        if (msg != null) {
+            publish(new OutboundFrame(ByteBuffer.wrap(encdec.encode(msg)), null, true));
+        }
+    }
+
+    @Override
+    public void publish(EncodedBroadcast msg, String subscriptionId) {
+        if (compression == Compression.FRAME) {
+            EncodedBroadcast compressed = msg.compressed();
+            metrics.compressed(msg.size(), compressed.size(), msg.takeCompressionNanos());
+            msg = compressed;
+        }
+        // Only the header is this connection's own, the body is a view of the bytes shared by all subscribers
+        publish(new OutboundFrame(msg.header(subscriptionId), msg.body(), true));
+    }
+
+    @Override
+    public void replay(EncodedBroadcast msg, String subscriptionId) {
+        if (compression == Compression.FRAME) {
+            EncodedBroadcast compressed = msg.compressed();
+            metrics.compressed(msg.size(), compressed.size(), msg.takeCompressionNanos());
+            msg = compressed;
+        }
+        OutboundFrame frame = new OutboundFrame(msg.header(subscriptionId), msg.body(), false);
+        replayBytes.addAndGet(frame.size);
+        enqueue(frame);
+    }
+
+    @Override
+    public boolean heartBeat(long sendMillis, long timeoutMillis) {
+        loop.execute(() -> startHeartBeats(TimeUnit.MILLISECONDS.toNanos(sendMillis),
+                TimeUnit.MILLISECONDS.toNanos(timeoutMillis)));
+        return true;
+    }
+
+    private void startHeartBeats(long sendNanos, long timeoutNanos) {
+        if (closed.get() || heartBeatTimer != null || expiryTimer != null) {
+            return;
+        }
+        long now = loop.now();
+        if (sendNanos > 0) {
+            heartBeatNanos = sendNanos;
+            heartBeatTimer = new TimingWheel.Timer(this::heartBeatDue);
+            loop.timers().schedule(heartBeatTimer, sendNanos, now);
+        }
+        if (timeoutNanos > 0) {
+            expiryNanos = timeoutNanos;
+            lastRead = now;
+            expiryTimer = new TimingWheel.Timer(this::expiryDue);
+            loop.timers().schedule(expiryTimer, timeoutNanos, now);
+        }
+    }
+
+    /**
+     * Sends a heart-beat if nothing was written for the interval, or waits for the rest of it.
+     * The timer is not moved by every write: it finds out what was written when it runs.
+     */
+    private void heartBeatDue() {
+        long now = loop.now();
+        long idle = now - lastWritten;
+        if (idle < heartBeatNanos) {
+            loop.timers().schedule(heartBeatTimer, heartBeatNanos - idle, now);
+            return;
+        }
+        if (queuedBytes.get() == 0) {
+            enqueue(new OutboundFrame(ByteBuffer.wrap(HEART_BEAT), null, false));
+        }
+        loop.timers().schedule(heartBeatTimer, heartBeatNanos, now);
+    }
+
+    /**
+     * Drops the connection if the client stayed silent for the timeout, or waits for the rest of it.
+     */
+    private void expiryDue() {
+        long now = loop.now();
+        long silent = now - lastRead;
+        if (silent < expiryNanos) {
+            loop.timers().schedule(expiryTimer, expiryNanos - silent, now);
+            return;
+        }
+        metrics.connectionExpired();
+        close();
+    }
+
+    @Override
+    public void compress(Compression compression, byte[] dictionary) {
+        this.compression = compression;
+        if (compression == Compression.STREAM) {
+            // The selector thread starts the stream behind the frames queued so far
+            enqueue(new OutboundFrame(dictionary));
+        }
+    }
+
+    private void publish(OutboundFrame frame) {
+        if (overWatermark.get() || watermarkedBytes() + frame.size > slowConsumerPolicy.highWatermark()) {
+            if (!admitOverWatermark(frame.size)) {
+                return;
+            }
+        }
+        enqueue(frame);
+    }
+
+    /**
+     * @return the bytes waiting to be written to this connection
+     */
+    public long queuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * @return the queued bytes the slow consumer policy is applied to, those of replayed messages left out
+     */
+    private long watermarkedBytes() {
+        return Math.max(0, queuedBytes.get() - replayBytes.get());
+    }
+
+    private void replayWritten(long written) {
+        long replay;
+        while ((replay = replayBytes.get()) > 0 && !replayBytes.compareAndSet(replay, Math.max(0, replay - written))) {
+            // raced with a replay being queued, try again
+        }
+    }
+
+    private void enqueue(OutboundFrame frame) {
+        queuedBytes.addAndGet(frame.size);
+        writeQueue.add(frame);
+        loop.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Applies the slow consumer policy to a channel message that would take this connection over
+     * its high watermark, or that arrives before the connection drained below its low watermark.
+     * @return true if the message should still be queued
+     */
+    private boolean admitOverWatermark(int frameBytes) {
+        if (disconnectingSlowConsumer.get()) {
+            return false;
+        }
+        if (overWatermark.compareAndSet(false, true)) {
+            slowConsumerPolicy.enteredOverWatermark();
+        }
+
+        switch (slowConsumerPolicy.action()) {
+            case PAUSE:
+                return false;
+            case DISCONNECT:
+                disconnectSlowConsumer();
+                return false;
+            default: // DROP_OLDEST
+                dropQueuedMessages(slowConsumerPolicy.lowWatermark() - frameBytes);
+                leaveWatermarkIfDrained();
+                return watermarkedBytes() + frameBytes <= slowConsumerPolicy.highWatermark();
+        }
+    }
+
+    /**
+     * Drops queued channel messages, oldest first, until at most targetBytes are queued.
+     * Messages already staged by the selector thread can no longer be dropped.
+     */
+    private void dropQueuedMessages(long targetBytes) {
+        Iterator<OutboundFrame> it = writeQueue.iterator();
+        while (watermarkedBytes() > targetBytes && it.hasNext()) {
+            OutboundFrame frame = it.next();
+            if (frame.droppable && frame.claim()) {
+                it.remove();
+                queuedBytes.addAndGet(-frame.size);
+            }
+        }
+    }
+
+    private void leaveWatermarkIfDrained() {
+        if (overWatermark.get() && watermarkedBytes() <= slowConsumerPolicy.lowWatermark()
+                && overWatermark.compareAndSet(true, false)) {
+            slowConsumerPolicy.leftOverWatermark();
+        }
+    }
+
+    /**
+     * Stops all channel deliveries to this connection, queues the policy's disconnect message
+     * in place of the pending channel messages and closes once it has been written.
+     */
+    private void disconnectSlowConsumer() {
+        if (!disconnectingSlowConsumer.compareAndSet(false, true)) {
+            return;
+        }
+        connections.disconnect(connectionId);
+        dropQueuedMessages(0);
+
+        // The goodbye must be queued before the selector thread may close on an empty queue
+        T goodbye = slowConsumerPolicy.disconnectMessage();
+        if (goodbye != null) {
+            enqueue(new OutboundFrame(ByteBuffer.wrap(encdec.encode(goodbye)), null, false));
+        }
+        closeAfterFlush = true;
+        loop.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * A frame waiting in the write queue.
+     * Whoever claims it first, the selector thread staging it or a publisher dropping it, owns it.
+     */
+    private static final class OutboundFrame {
+
+        private final AtomicBoolean claimed = new AtomicBoolean();
+        final ByteBuffer data;
+        final ByteBuffer body; // the shared body of a broadcast written behind data, or null
+        final int size;
+        final boolean droppable; // channel messages may be dropped, direct frames never are
+        final byte[] dictionary; // set on the mark starting the deflate stream, which is no frame
+
+        OutboundFrame(ByteBuffer data, ByteBuffer body, boolean droppable) {
+            this.data = data;
+            this.body = body;
+            this.size = data.remaining() + (body != null ? body.remaining() : 0);
+            this.droppable = droppable;
+            this.dictionary = null;
+        }
+
+        OutboundFrame(byte[] dictionary) {
+            this.data = null;
+            this.body = null;
+            this.size = 0;
+            this.droppable = false;
+            this.dictionary = dictionary;
+        }
+
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
         }
     }
 }
\ No newline at end of file
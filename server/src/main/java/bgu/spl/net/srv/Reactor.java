@@ -10,7 +10,10 @@ import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
 import java.util.function.Supplier;
 
 public class Reactor<T> implements Server<T> {
@@ -19,14 +22,17 @@ public class Reactor<T> implements Server<T> {
     private final Supplier<StompMessagingProtocol<T>> protocolFactory; // Changed type
     private final Supplier<MessageEncoderDecoder<T>> readerFactory;
     private final ActorThreadPool pool;
+    private final int numSelectors;
     private Selector selector;
 
     // Added: Connections management
-    private final ConnectionsImpl<T> connections = new ConnectionsImpl<>();
+    private final ConnectionsImpl<T> connections;
     private int idCounter = 0;
 
-    private Thread selectorThread;
-    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    // The selector loops that serve the accepted connections, and the acceptor's round-robin cursor
+    private final List<ReactorLoop<T>> loops = new CopyOnWriteArrayList<>();
+    private final List<Thread> loopThreads = new ArrayList<>();
+    private int nextLoop = 0;
 
     public Reactor(
             int numThreads,
@@ -34,15 +40,33 @@ public class Reactor<T> implements Server<T> {
             Supplier<StompMessagingProtocol<T>> protocolFactory, // Update Constructor
             Supplier<MessageEncoderDecoder<T>> readerFactory) {
 
-        this.pool = new ActorThreadPool(numThreads);
+        this(numThreads, 1, port, protocolFactory, readerFactory, new ConnectionsImpl<>());
+    }
+
+    public Reactor(
+            int numThreads,
+            int numSelectors,
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            ConnectionsImpl<T> connections) {
+
+        if (numSelectors < 1) {
+            throw new IllegalArgumentException("numSelectors must be positive: " + numSelectors);
+        }
+        this.pool = new ActorThreadPool(Executors.newFixedThreadPool(numThreads), connections.metrics().actorQueueWait());
+        this.numSelectors = numSelectors;
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.readerFactory = readerFactory;
+        this.connections = connections;
+        // Reported so the pools can be sized against real traffic
+        connections.metrics().counter("buffer.pool.hits", this::bufferPoolHits);
+        connections.metrics().counter("buffer.pool.misses", this::bufferPoolMisses);
     }
 
     @Override
     public void serve() {
-        selectorThread = Thread.currentThread();
         try (Selector selector = Selector.open();
              ServerSocketChannel serverSock = ServerSocketChannel.open()) {
 
@@ -51,21 +75,17 @@ public class Reactor<T> implements Server<T> {
             serverSock.bind(new InetSocketAddress(port));
             serverSock.configureBlocking(false);
             serverSock.register(selector, SelectionKey.OP_ACCEPT);
+            startLoops();
             System.out.println("Server started");
 
+            // This thread is the acceptor: it only accepts, every other event is handled by the loops
             while (!Thread.currentThread().isInterrupted()) {
 
                 selector.select();
-                runSelectionThreadTasks();
 
                 for (SelectionKey key : selector.selectedKeys()) {
-
-                    if (!key.isValid()) {
-                        continue;
-                    } else if (key.isAcceptable()) {
-                        handleAccept(serverSock, selector);
-                    } else {
-                        handleReadWrite(key);
+                    if (key.isValid() && key.isAcceptable()) {
+                        handleAccept(serverSock);
                     }
                 }
 
@@ -77,68 +97,117 @@ public class Reactor<T> implements Server<T> {
         } catch (IOException ex) {
             // this is an error
             ex.printStackTrace();
+        } finally {
+            stopLoops();
         }
 
         System.out.println("server closed");
         pool.shutdown();
+        connections.shutdown();
+    }
+
+    /**
+     * @return how many read buffer acquisitions, over all loops, were served from a pool
+     */
+    public long bufferPoolHits() {
+        long hits = 0;
+        for (ReactorLoop<T> loop : loops) {
+            hits += loop.bufferPool().hits();
+        }
+        return hits;
+    }
+
+    /**
+     * @return how many read buffer acquisitions, over all loops, had to allocate
+     */
+    public long bufferPoolMisses() {
+        long misses = 0;
+        for (ReactorLoop<T> loop : loops) {
+            misses += loop.bufferPool().misses();
+        }
+        return misses;
+    }
+
+    /**
+     * @return the average number of frames sent per write syscall, over all loops
+     */
+    public double framesPerWriteSyscall() {
+        long frames = 0;
+        long syscalls = 0;
+        for (ReactorLoop<T> loop : loops) {
+            frames += loop.framesWritten();
+            syscalls += loop.writeSyscalls();
+        }
+        return syscalls == 0 ? 0 : (double) frames / syscalls;
     }
 
     /*------------- Private Methods --------------*/
 
-    public void updateInterestedOps(SocketChannel chan, int ops) {
-        final SelectionKey key = chan.keyFor(selector);
-        if (Thread.currentThread() == selectorThread) {
-            key.interestOps(ops);
-        } else {
-            selectorTasks.add(() -> {
-                if (key != null && key.isValid()) {
-                    key.interestOps(ops);
-                }
-            });
-            selector.wakeup();
+    private void startLoops() throws IOException {
+        for (int i = 0; i < numSelectors; i++) {
+            ReactorLoop<T> loop = new ReactorLoop<>(pool);
+            Thread thread = new Thread(loop, "reactor-loop-" + i);
+            loops.add(loop);
+            loopThreads.add(thread);
+            thread.start();
         }
     }
 
-    private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
+    private void stopLoops() {
+        for (ReactorLoop<T> loop : loops) {
+            try {
+                loop.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+        for (Thread thread : loopThreads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Picks the loop with the fewest open connections.
+     * Ties are broken round-robin so that connections are spread evenly at startup.
+     */
+    private ReactorLoop<T> nextLoop() {
+        ReactorLoop<T> best = null;
+        for (int i = 0; i < loops.size(); i++) {
+            ReactorLoop<T> loop = loops.get((nextLoop + i) % loops.size());
+            if (best == null || loop.connectionCount() < best.connectionCount()) {
+                best = loop;
+            }
+        }
+        nextLoop = (nextLoop + 1) % loops.size();
+        return best;
+    }
+
+    private void handleAccept(ServerSocketChannel serverChan) throws IOException {
         SocketChannel clientChan = serverChan.accept();
+        if (clientChan == null) {
+            return;
+        }
         clientChan.configureBlocking(false);
-        
+        ReactorLoop<T> loop = nextLoop();
+
         // Pass the protocol, ID, and connections to the handler
         final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
                 readerFactory.get(),
                 protocolFactory.get(),
                 clientChan,
-                this,
+                loop,
                 idCounter,
                 connections
         );
-        
+
         // Increment ID for the next client
         idCounter++;
 
-        clientChan.register(selector, SelectionKey.OP_READ, handler);
-    }
-
-    private void handleReadWrite(SelectionKey key) {
-        @SuppressWarnings("unchecked")
-        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
-
-        if (key.isReadable()) {
-            Runnable task = handler.continueRead();
-            if (task != null) {
-                pool.submit(handler, task);
-            }
-        }
-
-        if (key.isValid() && key.isWritable()) {
-            handler.continueWrite();
-        }
-    }
-
-    private void runSelectionThreadTasks() {
-        while (!selectorTasks.isEmpty()) {
-            selectorTasks.poll().run();
-        }
+        loop.register(clientChan, handler);
     }
 
     @Override
@@ -0,0 +1,202 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A single selector event loop owned by a {@link Reactor}.
+ * The reactor's acceptor thread hands every accepted channel to one loop, which then
+ * performs all the reads and writes of that channel on its own thread.
+ */
+public class ReactorLoop<T> implements Runnable {
+
+    // The timers of the loop's connections run within a tenth of a second of their time,
+    // in a wheel turning every 51.2 seconds
+    private static final long TIMER_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final int TIMER_SLOTS = 512;
+
+    private final ActorThreadPool pool;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final BufferPool bufferPool = new BufferPool();
+    private final LongAdder framesWritten = new LongAdder();
+    private final LongAdder writeSyscalls = new LongAdder();
+    private volatile Thread selectorThread;
+
+    // The connections' timers and the time the loop last woke up, only touched by the loop thread
+    private final TimingWheel timers = new TimingWheel(TIMER_TICK_NANOS, TIMER_SLOTS, System.nanoTime());
+    private long now = System.nanoTime();
+
+    public ReactorLoop(ActorThreadPool pool) throws IOException {
+        this.pool = pool;
+        this.selector = Selector.open();
+    }
+
+    @Override
+    public void run() {
+        selectorThread = Thread.currentThread();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+
+                // Wake up every tick while there are timers, however quiet the connections are
+                selector.select(timers.isEmpty() ? 0 : timers.tickMillis());
+                now = System.nanoTime();
+                runSelectionThreadTasks();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (key.isValid()) {
+                        handleReadWrite(key);
+                    }
+                }
+
+                selector.selectedKeys().clear(); // clear selected keys - required
+                timers.advance(now);
+            }
+
+        } catch (ClosedSelectorException ex) {
+            // do nothing - loop was closed
+        } catch (IOException ex) {
+            // this is an error
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Hands a freshly accepted channel to this loop.
+     * The registration itself is done on the loop thread, since registering while
+     * the selector is blocked in select() would block the caller.
+     */
+    public void register(SocketChannel chan, NonBlockingConnectionHandler<T> handler) {
+        connectionCount.incrementAndGet();
+        execute(() -> {
+            try {
+                chan.register(selector, SelectionKey.OP_READ, handler);
+            } catch (ClosedChannelException ex) {
+                handler.close();
+            }
+        });
+    }
+
+    public void updateInterestedOps(SocketChannel chan, int ops) {
+        if (Thread.currentThread() == selectorThread) {
+            setInterestedOps(chan, ops);
+        } else {
+            execute(() -> setInterestedOps(chan, ops));
+        }
+    }
+
+    /**
+     * @return the number of open connections served by this loop
+     */
+    public int connectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * @return the pool the connections of this loop take their read buffers from
+     */
+    public BufferPool bufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @return how many outbound frames the connections of this loop handed to their sockets
+     */
+    public long framesWritten() {
+        return framesWritten.sum();
+    }
+
+    /**
+     * @return how many write calls the connections of this loop made
+     */
+    public long writeSyscalls() {
+        return writeSyscalls.sum();
+    }
+
+    void recordFrameWritten() {
+        framesWritten.increment();
+    }
+
+    void recordWriteSyscall() {
+        writeSyscalls.increment();
+    }
+
+    void connectionClosed() {
+        connectionCount.decrementAndGet();
+    }
+
+    /**
+     * @return the timers of this loop's connections, only for the loop thread
+     */
+    TimingWheel timers() {
+        return timers;
+    }
+
+    /**
+     * @return the System.nanoTime of the loop's last wake-up, for the loop thread to time its
+     * connections with rather than reading the clock per event
+     */
+    long now() {
+        return now;
+    }
+
+    /**
+     * Runs a task of a connection on the actor pool, after the connection's tasks submitted before.
+     */
+    void submit(NonBlockingConnectionHandler<T> handler, Runnable task) {
+        pool.submit(handler.mailbox(), task);
+    }
+
+    /**
+     * Runs the task on the loop thread.
+     */
+    void execute(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    public void close() throws IOException {
+        selector.close();
+    }
+
+    /*------------- Private Methods --------------*/
+
+    private void setInterestedOps(SocketChannel chan, int ops) {
+        SelectionKey key = chan.keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(ops);
+        }
+    }
+
+    private void handleReadWrite(SelectionKey key) {
+        @SuppressWarnings("unchecked")
+        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
+
+        if (key.isReadable()) {
+            Runnable task = handler.continueRead();
+            if (task != null) {
+                submit(handler, task);
+            }
+        }
+
+        if (key.isValid() && key.isWritable()) {
+            handler.continueWrite();
+        }
+    }
+
+    private void runSelectionThreadTasks() {
+        Runnable task;
+        while ((task = selectorTasks.poll()) != null) {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.EncodedBroadcast;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stands in a channel for a subscriber's connection handler while earlier messages are replayed
+ * to the subscriber outside the channel's locks. The messages published to the channel meanwhile
+ * are held back and delivered once the replay is done, so the subscriber gets every message once
+ * and in order; from then on messages pass straight through.
+ */
+final class ReplayingSubscriber<T> implements ConnectionHandler<T> {
+
+    private final ConnectionHandler<T> handler;
+    private final ReentrantLock lock = new ReentrantLock();
+    private List<Runnable> held = new ArrayList<>(); // guarded by lock, null once the replay is done
+    private volatile boolean replaying = true;
+
+    ReplayingSubscriber(ConnectionHandler<T> handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * Ends the replay: delivers the messages held back meanwhile, and every later one right away.
+     */
+    void replayed() {
+        while (true) {
+            List<Runnable> due;
+            lock.lock();
+            try {
+                due = held;
+                if (due.isEmpty()) {
+                    held = null;
+                    replaying = false;
+                    return;
+                }
+                held = new ArrayList<>();
+            } finally {
+                lock.unlock();
+            }
+            // Delivered outside the lock; what is published meanwhile is held back behind them
+            for (Runnable delivery : due) {
+                delivery.run();
+            }
+        }
+    }
+
+    @Override
+    public void send(T msg) {
+        handler.send(msg);
+    }
+
+    @Override
+    public void publish(T msg) {
+        if (!replaying || !hold(() -> handler.publish(msg))) {
+            handler.publish(msg);
+        }
+    }
+
+    @Override
+    public void publish(EncodedBroadcast msg, String subscriptionId) {
+        if (!replaying || !hold(() -> handler.publish(msg, subscriptionId))) {
+            handler.publish(msg, subscriptionId);
+        }
+    }
+
+    @Override
+    public void replay(EncodedBroadcast msg, String subscriptionId) {
+        handler.replay(msg, subscriptionId);
+    }
+
+    @Override
+    public void compress(Compression compression, byte[] dictionary) {
+        handler.compress(compression, dictionary);
+    }
+
+    @Override
+    public boolean heartBeat(long sendMillis, long timeoutMillis) {
+        return handler.heartBeat(sendMillis, timeoutMillis);
+    }
+
+    @Override
+    public void close() throws IOException {
+        handler.close();
+    }
+
+    /**
+     * @return false if the replay is done and the message must be delivered by the caller
+     */
+    private boolean hold(Runnable delivery) {
+        lock.lock();
+        try {
+            if (held == null) {
+                return false;
+            }
+            held.add(delivery);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
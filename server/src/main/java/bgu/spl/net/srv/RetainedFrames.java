@@ -0,0 +1,85 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.EncodedBroadcast;
+
+/**
+ * The latest messages of a destination, a ring buffer bounded by a {@link RetentionPolicy}.
+ * Not thread safe: the {@link ChannelRegistry} locks it while keeping a message, replaying the
+ * messages or discarding it, see there.
+ */
+final class RetainedFrames {
+
+    private final RetentionPolicy policy;
+    private final EncodedBroadcast[] frames;
+    private final long[] times;
+    private int head = 0; // the oldest frame
+    private int count = 0;
+    private long bytes = 0;
+    private boolean discarded = false;
+
+    RetainedFrames(RetentionPolicy policy) {
+        this.policy = policy;
+        this.frames = new EncodedBroadcast[policy.maxFrames()];
+        this.times = new long[policy.maxFrames()];
+    }
+
+    void add(EncodedBroadcast frame, long now) {
+        if (count == frames.length) {
+            dropOldest();
+        }
+        int tail = (head + count) % frames.length;
+        frames[tail] = frame;
+        times[tail] = now;
+        count++;
+        bytes += frame.size();
+
+        while (bytes > policy.maxBytes() && count > 0) {
+            dropOldest();
+        }
+        dropExpired(now);
+    }
+
+    /**
+     * @return a copy of the latest messages, at most limit of them, oldest first
+     */
+    EncodedBroadcast[] latest(int limit, long now) {
+        dropExpired(now);
+        int skip = Math.max(0, count - limit);
+        EncodedBroadcast[] latest = new EncodedBroadcast[count - skip];
+        for (int i = skip; i < count; i++) {
+            latest[i - skip] = frames[(head + i) % frames.length];
+        }
+        return latest;
+    }
+
+    boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Marks these messages as no longer the destination's, once they were taken out of the registry.
+     */
+    void discard() {
+        discarded = true;
+    }
+
+    boolean discarded() {
+        return discarded;
+    }
+
+    void dropExpired(long now) {
+        if (policy.maxAgeMillis() == 0) {
+            return;
+        }
+        while (count > 0 && now - times[head] > policy.maxAgeMillis()) {
+            dropOldest();
+        }
+    }
+
+    private void dropOldest() {
+        bytes -= frames[head].size();
+        frames[head] = null;
+        head = (head + 1) % frames.length;
+        count--;
+    }
+}
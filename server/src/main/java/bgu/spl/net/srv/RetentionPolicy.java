@@ -0,0 +1,53 @@
+package bgu.spl.net.srv;
+
+/**
+ * How many of its latest messages a destination keeps for clients that subscribe late.
+ * A destination keeps at most maxFrames messages, none older than maxAgeMillis, and drops its
+ * oldest ones once they take more than maxBytes. The messages are kept encoded, so replaying them
+ * costs no serialization. They outlive the destination's subscribers, so a client subscribing
+ * after the last one left still gets them, until they expire; without an age limit a destination
+ * keeps its latest messages for as long as the server runs.
+ */
+public class RetentionPolicy {
+
+    private final int maxFrames;
+    private final long maxAgeMillis;
+    private final long maxBytes;
+
+    /**
+     * @param maxFrames the number of messages kept per destination, 0 to keep none
+     * @param maxAgeMillis how long a message is kept, 0 for no time limit
+     * @param maxBytes the encoded bytes kept per destination
+     */
+    public RetentionPolicy(int maxFrames, long maxAgeMillis, long maxBytes) {
+        if (maxFrames < 0 || maxAgeMillis < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("retention limits must not be negative");
+        }
+        this.maxFrames = maxFrames;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @return a policy under which destinations keep nothing
+     */
+    public static RetentionPolicy none() {
+        return new RetentionPolicy(0, 0, 0);
+    }
+
+    public boolean retains() {
+        return maxFrames > 0 && maxBytes > 0;
+    }
+
+    public int maxFrames() {
+        return maxFrames;
+    }
+
+    public long maxAgeMillis() {
+        return maxAgeMillis;
+    }
+
+    public long maxBytes() {
+        return maxBytes;
+    }
+}
@@ -4,6 +4,7 @@ import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.StompMessagingProtocol; // Import
 
 import java.io.Closeable;
+import java.util.concurrent.ThreadFactory;
 import java.util.function.Supplier;
 
 public interface Server<T> extends Closeable {
@@ -16,7 +17,19 @@ public interface Server<T> extends Closeable {
             Supplier<StompMessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
 
-        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory) {
+        return threadPerClient(port, protocolFactory, encoderDecoderFactory, new ConnectionsImpl<>());
+    }
+
+    /**
+     * Like {@link #threadPerClient(int, Supplier, Supplier)}, with the clients registered in the given connections.
+     */
+    static <T> Server<T> threadPerClient(
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory,
+            ConnectionsImpl<T> connections) {
+
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory, connections) {
             @Override
             protected void execute(BlockingConnectionHandler<T> handler) {
                 new Thread(handler).start();
@@ -24,6 +37,25 @@ public interface Server<T> extends Closeable {
         };
     }
 
+    /**
+     * Like {@link #threadPerClient}, but every client runs on a virtual thread (JDK 21+).
+     * @throws UnsupportedOperationException if the running JVM has no virtual threads
+     */
+    static <T> Server<T> virtualThreadPerClient(
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory,
+            ConnectionsImpl<T> connections) {
+
+        ThreadFactory threads = VirtualThreads.factory("client-");
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory, connections) {
+            @Override
+            protected void execute(BlockingConnectionHandler<T> handler) {
+                threads.newThread(handler).start();
+            }
+        };
+    }
+
     // Update the reactor as well
     static <T> Server<T> reactor(
             int nThreads,
@@ -35,4 +67,19 @@ public interface Server<T> extends Closeable {
         // to handle StompMessagingProtocol and Connections.
         return new Reactor<T>(nThreads, port, protocolFactory, encoderDecoderFactory);
     }
+
+    /**
+     * A reactor whose socket I/O is spread over several selector loops.
+     * One acceptor thread hands every new connection to the least loaded of the nSelectors loops.
+     */
+    static <T> Server<T> reactor(
+            int nThreads,
+            int nSelectors,
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory,
+            ConnectionsImpl<T> connections) {
+
+        return new Reactor<T>(nThreads, nSelectors, port, protocolFactory, encoderDecoderFactory, connections);
+    }
 }
\ No newline at end of file
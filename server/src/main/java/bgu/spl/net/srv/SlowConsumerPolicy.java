@@ -0,0 +1,81 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounds the bytes a single connection may have waiting in its outbound queue.
+ * Once a connection goes over the high watermark the policy's {@link Action} applies to the
+ * channel messages published to it, until its queue drains back below the low watermark.
+ * Frames sent directly to the connection (receipts, errors) are never dropped.
+ */
+public class SlowConsumerPolicy<T> {
+
+    public enum Action {
+        /** drop the oldest queued channel messages to make room for new ones */
+        DROP_OLDEST,
+        /** stop delivering channel messages until the queue drains */
+        PAUSE,
+        /** send the disconnect message and close the connection */
+        DISCONNECT
+    }
+
+    private final long highWatermark;
+    private final long lowWatermark;
+    private final Action action;
+    private final T disconnectMessage;
+    private final AtomicInteger overWatermark = new AtomicInteger();
+
+    /**
+     * @param highWatermark queued bytes above which the action applies
+     * @param lowWatermark queued bytes at or below which a connection is considered drained
+     * @param action what to do with a connection over the high watermark
+     * @param disconnectMessage the last message sent before a {@link Action#DISCONNECT}
+     */
+    public SlowConsumerPolicy(long highWatermark, long lowWatermark, Action action, T disconnectMessage) {
+        if (lowWatermark > highWatermark) {
+            throw new IllegalArgumentException("low watermark " + lowWatermark + " above high watermark " + highWatermark);
+        }
+        this.highWatermark = highWatermark;
+        this.lowWatermark = lowWatermark;
+        this.action = action;
+        this.disconnectMessage = disconnectMessage;
+    }
+
+    /**
+     * @return a policy that never limits a connection's outbound queue
+     */
+    public static <T> SlowConsumerPolicy<T> unbounded() {
+        return new SlowConsumerPolicy<>(Long.MAX_VALUE, Long.MAX_VALUE, Action.DROP_OLDEST, null);
+    }
+
+    public long highWatermark() {
+        return highWatermark;
+    }
+
+    public long lowWatermark() {
+        return lowWatermark;
+    }
+
+    public Action action() {
+        return action;
+    }
+
+    public T disconnectMessage() {
+        return disconnectMessage;
+    }
+
+    /**
+     * @return the number of connections currently over the high watermark and not yet drained
+     */
+    public int connectionsOverWatermark() {
+        return overWatermark.get();
+    }
+
+    void enteredOverWatermark() {
+        overWatermark.incrementAndGet();
+    }
+
+    void leftOverWatermark() {
+        overWatermark.decrementAndGet();
+    }
+}
@@ -0,0 +1,143 @@
+package bgu.spl.net.srv;
+
+/**
+ * A hashed timing wheel: timers hang in slots by the tick they expire at, and each tick only the
+ * timers of one slot are looked at, so scheduling, cancelling and ticking cost the same however
+ * many timers there are. A timer further away than one turn of the wheel waits in its slot for
+ * the turns to pass.
+ * Not thread safe: a {@link ReactorLoop} owns one and drives it from its selector thread.
+ */
+final class TimingWheel {
+
+    // The slot of a timer not on the wheel, and of one taken off it to run
+    private static final int IDLE = -1;
+    private static final int DUE = -2;
+
+    private final long tickNanos;
+    private final Timer[] slots; // the head of each slot's list
+    private final int mask;
+    private final long origin;
+    private long tick = 0; // the last tick run
+    private int size = 0;
+
+    /**
+     * @param tickNanos the precision of the timers
+     * @param slots the number of slots, a power of two
+     */
+    TimingWheel(long tickNanos, int slots, long nowNanos) {
+        if (Integer.bitCount(slots) != 1) {
+            throw new IllegalArgumentException("slots must be a power of two: " + slots);
+        }
+        this.tickNanos = tickNanos;
+        this.slots = new Timer[slots];
+        this.mask = slots - 1;
+        this.origin = nowNanos;
+    }
+
+    /**
+     * @return the precision of the timers, how long a loop with timers may block without running them
+     */
+    long tickMillis() {
+        return Math.max(1, tickNanos / 1_000_000);
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Schedules the timer to run once the delay passed, no earlier, and up to a tick later.
+     * A timer already scheduled is moved.
+     */
+    void schedule(Timer timer, long delayNanos, long nowNanos) {
+        cancel(timer);
+        if (size == 0) {
+            tick = Math.max(tick, (nowNanos - origin) / tickNanos); // an idle wheel is not advanced
+        }
+        long expires = (nowNanos - origin + Math.max(0, delayNanos) + tickNanos - 1) / tickNanos;
+        timer.expires = Math.max(expires, tick + 1);
+        int slot = (int) (timer.expires & mask);
+        timer.slot = slot;
+        timer.next = slots[slot];
+        if (timer.next != null) {
+            timer.next.prev = timer;
+        }
+        slots[slot] = timer;
+        size++;
+    }
+
+    void cancel(Timer timer) {
+        if (timer.slot == DUE) {
+            timer.slot = IDLE; // taken off the wheel to run, it no longer will
+            return;
+        }
+        if (timer.slot == IDLE) {
+            return;
+        }
+        if (timer.prev != null) {
+            timer.prev.next = timer.next;
+        } else {
+            slots[timer.slot] = timer.next;
+        }
+        if (timer.next != null) {
+            timer.next.prev = timer.prev;
+        }
+        timer.prev = null;
+        timer.next = null;
+        timer.slot = IDLE;
+        size--;
+    }
+
+    /**
+     * Runs the timers of every tick up to the given time. A timer may schedule or cancel any
+     * timer, itself included, when it runs.
+     */
+    void advance(long nowNanos) {
+        long target = (nowNanos - origin) / tickNanos;
+        while (tick < target && size > 0) {
+            tick++;
+            // The timers due are taken off the wheel before any runs, so the tasks may change it
+            Timer due = null;
+            Timer timer = slots[(int) (tick & mask)];
+            while (timer != null) {
+                Timer next = timer.next;
+                if (timer.expires <= tick) {
+                    cancel(timer);
+                    timer.slot = DUE;
+                    timer.nextDue = due;
+                    due = timer;
+                }
+                timer = next;
+            }
+            while (due != null) {
+                timer = due;
+                due = timer.nextDue;
+                timer.nextDue = null;
+                if (timer.slot == DUE) {
+                    timer.slot = IDLE;
+                    timer.task.run();
+                }
+            }
+        }
+        if (size == 0) {
+            tick = Math.max(tick, target); // nothing to run on the ticks passed
+        }
+    }
+
+    /**
+     * A timer scheduled again and again without allocating: it is the node of its slot's list.
+     */
+    static final class Timer {
+
+        private final Runnable task;
+        private Timer prev;
+        private Timer next;
+        private Timer nextDue;
+        private long expires;
+        private int slot = IDLE;
+
+        Timer(Runnable task) {
+            this.task = task;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package bgu.spl.net.srv;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads when the running JVM has them (JDK 21+).
+ * The lookup is reflective so the server still builds and runs its other modes on older JDKs.
+ * A client's virtual thread never blocks on its socket while holding a monitor, which on JDK 21
+ * would pin it to its carrier: a connection's writes take a ReentrantLock, and retained or logged
+ * messages are replayed once the channel registry's and the message log's monitors are released.
+ * The monitors left only guard updates of memory and of mapped log segments.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @param namePrefix the prefix of the thread names, followed by a running counter
+     * @return a factory of virtual threads
+     * @throws UnsupportedOperationException if the running JVM has no virtual threads
+     */
+    static ThreadFactory factory(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            Method name = builderType.getMethod("name", String.class, long.class);
+            builder = name.invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException ex) {
+            throw new UnsupportedOperationException(
+                    "virtual threads require JDK 21 or newer, running on " + System.getProperty("java.version"), ex);
+        }
+    }
+}
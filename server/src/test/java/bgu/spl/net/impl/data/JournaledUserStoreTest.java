@@ -0,0 +1,100 @@
+package bgu.spl.net.impl.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JournaledUserStoreTest {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void replaysRegistrationsAndRemovals() throws IOException {
+		Path journal = dir.resolve("users.journal");
+		JournaledUserStore store = new JournaledUserStore(journal, 1000);
+		assertNull(store.putIfAbsent(new User(1, "alice", "a")));
+		assertNull(store.putIfAbsent(new User(2, "bob", "b")));
+		assertNull(store.putIfAbsent(new User(3, "carol", "c")));
+		store.remove("bob");
+		store.close();
+
+		JournaledUserStore reopened = new JournaledUserStore(journal, 1000);
+		assertEquals("a", reopened.get("alice").password);
+		assertNull(reopened.get("bob"));
+		assertEquals("c", reopened.get("carol").password);
+		reopened.close();
+	}
+
+	@Test
+	void keepsTheFirstRegistrationOfAName() throws IOException {
+		Path journal = dir.resolve("users.journal");
+		JournaledUserStore store = new JournaledUserStore(journal, 1000);
+		User first = new User(1, "alice", "a");
+		store.putIfAbsent(first);
+
+		assertSame(first, store.putIfAbsent(new User(2, "alice", "other")));
+		store.close();
+		JournaledUserStore reopened = new JournaledUserStore(journal, 1000);
+		assertEquals("a", reopened.get("alice").password);
+		reopened.close();
+	}
+
+	@Test
+	void stopsAtATornRecordAndAppendsAfterTheLastWholeOne() throws IOException {
+		Path journal = dir.resolve("users.journal");
+		JournaledUserStore store = new JournaledUserStore(journal, 1000);
+		store.putIfAbsent(new User(1, "alice", "a"));
+		store.putIfAbsent(new User(2, "bob", "b"));
+		store.close();
+		long whole = Files.size(journal);
+
+		// A record whose length made it to disk, but only part of what follows it
+		Files.write(journal, new byte[] {0, 0, 0, 20, 1, 2, 3}, StandardOpenOption.APPEND);
+		JournaledUserStore reopened = new JournaledUserStore(journal, 1000);
+		assertNotNull(reopened.get("alice"));
+		assertNotNull(reopened.get("bob"));
+		assertEquals(whole, Files.size(journal));
+
+		reopened.putIfAbsent(new User(3, "carol", "c"));
+		reopened.close();
+		JournaledUserStore again = new JournaledUserStore(journal, 1000);
+		assertNotNull(again.get("bob"));
+		assertEquals("c", again.get("carol").password);
+		again.close();
+	}
+
+	@Test
+	void compactsAJournalOfMostlyRemovedUsers() throws IOException {
+		Path journal = dir.resolve("users.journal");
+		JournaledUserStore store = new JournaledUserStore(journal, 1000);
+		for (int i = 0; i < 2000; i++) {
+			store.putIfAbsent(new User(i, "user" + i, "p" + i));
+		}
+		for (int i = 10; i < 2000; i++) {
+			store.remove("user" + i);
+		}
+		store.compact();
+		// Ten small records rather than nearly four thousand
+		assertTrue(Files.size(journal) < 1000, "journal was not compacted");
+
+		store.putIfAbsent(new User(-1, "late", "l"));
+		store.close();
+		JournaledUserStore reopened = new JournaledUserStore(journal, 1000);
+		for (int i = 0; i < 10; i++) {
+			assertEquals("p" + i, reopened.get("user" + i).password);
+		}
+		assertNull(reopened.get("user10"));
+		assertNotNull(reopened.get("late"));
+		reopened.close();
+	}
+}
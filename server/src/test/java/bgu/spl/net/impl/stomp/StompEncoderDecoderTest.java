@@ -0,0 +1,161 @@
+package bgu.spl.net.impl.stomp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class StompEncoderDecoderTest {
+
+    private static final String SEND = "SEND\ndestination:/a\n\nhello\n\u0000";
+    private static final String SUBSCRIBE = "SUBSCRIBE\ndestination:/b\nid:1\n\n\u0000";
+
+    @Test
+    void decodesEveryFrameOfAChunk() {
+        List<StompFrame> frames = decode(new StompEncoderDecoder(), SEND + SUBSCRIBE + SEND);
+
+        assertEquals(3, frames.size());
+        assertEquals(StompCommand.SEND, frames.get(0).command());
+        assertEquals("hello\n", frames.get(0).body());
+        assertEquals(StompCommand.SUBSCRIBE, frames.get(1).command());
+        assertEquals("1", frames.get(1).header("id"));
+        assertEquals(StompCommand.SEND, frames.get(2).command());
+    }
+
+    @Test
+    void decodesAFrameSplitAcrossChunks() {
+        StompEncoderDecoder codec = new StompEncoderDecoder();
+        String stream = SEND + SUBSCRIBE;
+        List<StompFrame> frames = new ArrayList<>();
+        for (int from = 0; from < stream.length(); from += 7) {
+            codec.decode(bytes(stream.substring(from, Math.min(from + 7, stream.length()))), frames::add);
+        }
+
+        assertEquals(2, frames.size());
+        assertEquals("hello\n", frames.get(0).body());
+        assertEquals("/a", frames.get(0).header("destination"));
+        assertEquals(StompCommand.SUBSCRIBE, frames.get(1).command());
+    }
+
+    @Test
+    void decodesByteByByteLikeInChunks() {
+        StompEncoderDecoder codec = new StompEncoderDecoder();
+        List<StompFrame> frames = new ArrayList<>();
+        for (byte b : (SEND + SUBSCRIBE).getBytes(StandardCharsets.UTF_8)) {
+            StompFrame frame = codec.decodeNextByte(b);
+            if (frame != null) {
+                frames.add(frame);
+            }
+        }
+
+        assertEquals(2, frames.size());
+        assertEquals("hello\n", frames.get(0).body());
+        assertEquals("/b", frames.get(1).header("destination"));
+    }
+
+    @Test
+    void skipsHeartBeatsBetweenFrames() {
+        List<StompFrame> frames = decode(new StompEncoderDecoder(), "\n\r\n" + SEND + "\n\n" + SUBSCRIBE);
+
+        assertEquals(2, frames.size());
+        assertFalse(frames.get(0).isMalformed());
+        assertEquals(StompCommand.SUBSCRIBE, frames.get(1).command());
+    }
+
+    @Test
+    void keepsNothingOfAFrameNotYetWhole() {
+        StompEncoderDecoder codec = new StompEncoderDecoder();
+        List<StompFrame> frames = decode(codec, "SEND\ndestination:/a\n\nhal");
+
+        assertEquals(0, frames.size());
+        assertNull(codec.decodeNextByte((byte) 'f'));
+    }
+
+    @Test
+    void contentLengthBodyMayHoldNul() {
+        String binary = "SEND\ndestination:/a\ncontent-length:5\n\na\u0000b\u0000c\u0000";
+        List<StompFrame> frames = decode(new StompEncoderDecoder(), binary + SUBSCRIBE);
+
+        assertEquals(2, frames.size());
+        assertFalse(frames.get(0).isMalformed());
+        assertEquals(5, frames.get(0).bodyLength());
+        assertEquals("a\u0000b\u0000c", frames.get(0).body());
+        assertEquals(StompCommand.SUBSCRIBE, frames.get(1).command());
+    }
+
+    @Test
+    void contentLengthBodySplitAcrossChunks() {
+        StompEncoderDecoder codec = new StompEncoderDecoder();
+        List<StompFrame> frames = new ArrayList<>();
+        codec.decode(bytes("SEND\ndestination:/a\ncontent-length:4\n\n\u0000\u0000"), frames::add);
+        assertEquals(0, frames.size());
+        codec.decode(bytes("\u0000\u0000\u0000"), frames::add);
+
+        assertEquals(1, frames.size());
+        assertEquals(4, frames.get(0).bodyLength());
+    }
+
+    @Test
+    void rejectsABodyLongerThanItsContentLength() {
+        List<StompFrame> frames = decode(new StompEncoderDecoder(), "SEND\ndestination:/a\ncontent-length:2\n\nabc\u0000");
+
+        assertEquals(1, frames.size());
+        assertTrue(frames.get(0).isMalformed());
+    }
+
+    @Test
+    void rejectsAnInvalidContentLength() {
+        List<StompFrame> frames = decode(new StompEncoderDecoder(), "SEND\ndestination:/a\ncontent-length:x\n\nabc\u0000");
+
+        assertEquals(1, frames.size());
+        assertTrue(frames.get(0).isMalformed());
+    }
+
+    @Test
+    void rejectsAContentLengthOverTheMaximumBeforeItsBody() {
+        StompEncoderDecoder codec = new StompEncoderDecoder(64);
+        List<StompFrame> frames = decode(codec, "SEND\ndestination:/a\ncontent-length:1000\n\n");
+
+        assertEquals(1, frames.size());
+        assertTrue(frames.get(0).isMalformed());
+        assertTrue(frames.get(0).body().contains("64"));
+    }
+
+    @Test
+    void rejectsAFrameOverTheMaximumAndIgnoresTheRest() {
+        StompEncoderDecoder codec = new StompEncoderDecoder(64);
+        List<StompFrame> frames = decode(codec, "SEND\ndestination:/a\n\n" + "x".repeat(100));
+
+        assertEquals(1, frames.size());
+        assertTrue(frames.get(0).isMalformed());
+        assertEquals(0, decode(codec, SEND + SUBSCRIBE).size());
+    }
+
+    @Test
+    void acceptsAFrameOfExactlyTheMaximum() {
+        String frame = "SEND\ndestination:/a\n\n";
+        frame += "x".repeat(64 - frame.length() - 1) + "\u0000";
+        List<StompFrame> frames = decode(new StompEncoderDecoder(64), frame);
+
+        assertEquals(1, frames.size());
+        assertFalse(frames.get(0).isMalformed());
+    }
+
+    private static List<StompFrame> decode(StompEncoderDecoder codec, String stream) {
+        List<StompFrame> frames = new ArrayList<>();
+        ByteBuffer buf = bytes(stream);
+        codec.decode(buf, frames::add);
+        assertEquals(0, buf.remaining());
+        return frames;
+    }
+
+    private static ByteBuffer bytes(String stream) {
+        return ByteBuffer.wrap(stream.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,135 @@
+package bgu.spl.net.srv;
+
+import static bgu.spl.net.srv.LogSegmentTest.frame;
+import static bgu.spl.net.srv.LogSegmentTest.text;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DestinationLogTest {
+
+    private static final LogPolicy POLICY = new LogPolicy(1 << 20, 0, 0, LogPolicy.Fsync.NONE, 1000);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsInChunksAcrossGrowingSegments() throws IOException {
+        DestinationLog log = DestinationLog.open(dir, POLICY);
+        int count = 20_000; // several segments, doubling from the first one
+        for (int i = 0; i < count; i++) {
+            log.append(frame(i), 0);
+        }
+
+        List<String> read = new ArrayList<>();
+        long next = 0;
+        while (next < count) {
+            next = log.read(next, count, 256, frame -> read.add(text(frame)));
+        }
+        assertEquals(count, read.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals("m" + i, read.get(i));
+        }
+    }
+
+    @Test
+    void keepsMessagesInMemoryUntilItsFilesAreOpen() throws IOException {
+        DestinationLog log = DestinationLog.opening(dir.resolve("d"), POLICY, 0);
+        log.append(frame(0), 0);
+        log.append(frame(1), 0);
+
+        assertFalse(Files.exists(dir.resolve("d")));
+        assertEquals(2, log.nextOffset());
+        assertEquals(List.of("m1"), read(log, 1, 2));
+
+        log.openFiles();
+        assertTrue(log.isOpen());
+        log.append(frame(2), 0);
+        assertEquals(List.of("m0", "m1", "m2"), read(log, 0, 3));
+        assertEquals(List.of("m0", "m1", "m2"), read(DestinationLog.open(dir.resolve("d"), POLICY), 0, 3));
+    }
+
+    @Test
+    void goesOnFromTheOffsetItWasClosedAt() throws IOException {
+        DestinationLog log = DestinationLog.open(dir, POLICY);
+        for (int i = 0; i < 5; i++) {
+            log.append(frame(i), 0);
+        }
+        long next = log.close();
+        assertTrue(log.isClosed());
+
+        DestinationLog reopened = DestinationLog.opening(dir, POLICY, next);
+        reopened.append(frame(5), 0);
+        reopened.openFiles();
+        assertEquals(6, reopened.nextOffset());
+        assertEquals(List.of("m4", "m5"), read(reopened, 4, 6));
+    }
+
+    @Test
+    void goesOnToTheSegmentPreparedAheadOfIt() throws IOException {
+        DestinationLog log = DestinationLog.open(dir, POLICY);
+        int count = 10_000; // past the first segment, within the second
+        for (int i = 0; i < count; i++) {
+            if (log.append(frame(i), 0)) {
+                log.prepareSegment(); // as the flusher does when asked
+            }
+        }
+
+        log.prepareSegment();
+        List<String> files = logFiles();
+        assertEquals(3, files.size());
+        assertEquals("00000000000000000000.log", files.get(0));
+        assertEquals("spare.log", files.get(2));
+        assertEquals(expected(count), read(DestinationLog.open(dir, POLICY), 0, count));
+    }
+
+    @Test
+    void recoversASegmentStartedButNotRenamed() throws IOException {
+        DestinationLog log = DestinationLog.open(dir, POLICY);
+        int count = 10_000;
+        boolean prepared = false;
+        for (int i = 0; i < count; i++) {
+            if (log.append(frame(i), 0) && !prepared) {
+                log.prepareSegment();
+                prepared = true;
+            }
+        }
+        log.flush();
+        assertEquals(List.of("00000000000000000000.log", "spare.log"), logFiles());
+
+        DestinationLog reopened = DestinationLog.open(dir, POLICY);
+        assertEquals(2, logFiles().size());
+        assertFalse(logFiles().contains("spare.log"));
+        assertEquals(count, reopened.nextOffset());
+        assertEquals(expected(count), read(reopened, 0, count));
+    }
+
+    private static List<String> expected(int count) {
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            expected.add("m" + i);
+        }
+        return expected;
+    }
+
+    private List<String> logFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(f -> f.getFileName().toString()).filter(f -> f.endsWith(LogSegment.LOG_SUFFIX)).sorted().toList();
+        }
+    }
+
+    private static List<String> read(DestinationLog log, long from, long to) {
+        List<String> out = new ArrayList<>();
+        log.read(from, to, Integer.MAX_VALUE, frame -> out.add(text(frame)));
+        return out;
+    }
+}
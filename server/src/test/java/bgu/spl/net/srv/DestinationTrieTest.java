@@ -0,0 +1,117 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import bgu.spl.net.api.EncodedBroadcast;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class DestinationTrieTest {
+
+    private static final ConnectionHandler<String> HANDLER = new ConnectionHandler<>() {
+        @Override
+        public void send(String msg) {
+        }
+
+        @Override
+        public void publish(EncodedBroadcast msg, String subscriptionId) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    private final DestinationTrie<String> trie = new DestinationTrie<>(new AtomicInteger());
+
+    @Test
+    void matchesLiteralPrefixedAndAnyDepthSegments() {
+        subscribe("/games/germany_spain", "/games/germany_*", "/games/*", "/games/**", "/**", "/other/*");
+
+        assertEquals(Set.of("/games/germany_spain", "/games/germany_*", "/games/*", "/games/**", "/**"),
+                match("/games/germany_spain"));
+        assertEquals(Set.of("/games/*", "/games/**", "/**"), match("/games/usa_mexico"));
+        assertEquals(Set.of("/games/**", "/**"), match("/games/germany_spain/goals"));
+        assertEquals(Set.of("/games/**", "/**"), match("/games"));
+        assertEquals(Set.of("/**"), match("/news"));
+    }
+
+    @Test
+    void matchesEveryPrefixOfASegment() {
+        subscribe("/g*", "/ge*", "/ger*", "/germany*", "/germany_*", "/gex*", "/spain*");
+
+        assertEquals(Set.of("/g*", "/ge*", "/ger*", "/germany*", "/germany_*"), match("/germany_spain"));
+        assertEquals(Set.of("/g*", "/ge*", "/ger*", "/germany*"), match("/germany"));
+        assertEquals(Set.of("/g*", "/ge*"), match("/ge"));
+        assertEquals(Set.of(), match("/france"));
+    }
+
+    @Test
+    void agreesWithMatchingEachPatternAlone() {
+        String[] patterns = {"/a/*", "/a/b*", "/a/bc*", "/a/**", "/*/c", "/a/b/**", "/x*/**", "/a/b"};
+        subscribe(patterns);
+        String[] destinations = {"/a/b", "/a/bc", "/a/bcd/e", "/a", "/b/c", "/xy/z", "/x", "/a/b/c", "", "/"};
+
+        for (String destination : destinations) {
+            Set<String> expected = new TreeSet<>();
+            for (String pattern : patterns) {
+                if (DestinationPattern.matches(DestinationPattern.parse(pattern), destination)) {
+                    expected.add(pattern);
+                }
+            }
+            assertEquals(expected, match(destination), destination);
+        }
+    }
+
+    @Test
+    void sharesTheChannelOfAPatternBetweenSubscribers() {
+        ChannelRegistry.Channel<String> first = trie.subscribe("/a/*", DestinationPattern.parse("/a/*"), 1, HANDLER, "s");
+        ChannelRegistry.Channel<String> second = trie.subscribe("/a/*", DestinationPattern.parse("/a/*"), 2, HANDLER, "s");
+
+        assertSame(first, second);
+        assertEquals(2, first.subscribers().size());
+        assertEquals(Set.of("/a/*"), match("/a/b"));
+    }
+
+    @Test
+    void evictsAPatternWithItsLastSubscriber() {
+        ChannelRegistry.Channel<String> prefixed = trie.subscribe("/a/bc*", DestinationPattern.parse("/a/bc*"), 1, HANDLER, "s");
+        ChannelRegistry.Channel<String> shorter = trie.subscribe("/a/b*", DestinationPattern.parse("/a/b*"), 1, HANDLER, "t");
+        trie.subscribe("/a/b*", DestinationPattern.parse("/a/b*"), 2, HANDLER, "t");
+
+        trie.unsubscribe(prefixed, 1);
+        assertEquals(Set.of("/a/b*"), match("/a/bcd"));
+
+        trie.unsubscribe(shorter, 1);
+        assertEquals(Set.of("/a/b*"), match("/a/bcd"));
+        trie.unsubscribe(shorter, 2);
+        assertTrue(match("/a/bcd").isEmpty());
+
+        // Subscribing again after the pruning builds the path anew
+        trie.subscribe("/a/bc*", DestinationPattern.parse("/a/bc*"), 3, HANDLER, "s");
+        assertEquals(Set.of("/a/bc*"), match("/a/bcd"));
+    }
+
+    private void subscribe(String... patterns) {
+        int connectionId = 0;
+        for (String pattern : patterns) {
+            trie.subscribe(pattern, DestinationPattern.parse(pattern), connectionId++, HANDLER, "sub");
+        }
+    }
+
+    private Set<String> match(String destination) {
+        List<ChannelRegistry.Channel<String>> out = new ArrayList<>();
+        trie.match(destination, out);
+        Set<String> names = new TreeSet<>();
+        for (ChannelRegistry.Channel<String> channel : out) {
+            assertTrue(names.add(channel.name()), "matched twice: " + channel.name());
+        }
+        return names;
+    }
+}
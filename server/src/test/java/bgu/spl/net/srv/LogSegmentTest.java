@@ -0,0 +1,116 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import bgu.spl.net.api.EncodedBroadcast;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class LogSegmentTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsBackWhatWasAppended() throws IOException {
+        LogSegment segment = LogSegment.create(dir, 10, 4096);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(segment.append(frame(i), 0));
+        }
+
+        assertEquals(15, segment.nextOffset());
+        assertEquals(List.of("m2", "m3"), read(segment, 12, 14, 10));
+        assertEquals(List.of("m0", "m1", "m2"), read(segment, 0, 100, 3));
+    }
+
+    @Test
+    void refusesAMessageWithoutRoom() throws IOException {
+        LogSegment segment = LogSegment.create(dir, 0, 64);
+
+        assertTrue(segment.append(frame(0), 0));
+        assertFalse(segment.append(new EncodedBroadcast(new byte[0], new byte[64]), 0));
+        assertEquals(1, segment.nextOffset());
+    }
+
+    @Test
+    void recoversEveryWholeRecordOnReopening() throws IOException {
+        LogSegment segment = LogSegment.create(dir, 0, 1 << 16);
+        // Enough records for several index entries
+        for (int i = 0; i < 2000; i++) {
+            segment.append(frame(i), 0);
+        }
+        segment.flush();
+
+        LogSegment reopened = LogSegment.open(dir.resolve(String.format("%020d", 0) + LogSegment.LOG_SUFFIX));
+        assertEquals(2000, reopened.nextOffset());
+        assertEquals(segment.size(), reopened.size());
+        assertEquals(List.of("m1500", "m1501"), read(reopened, 1500, 1502, 10));
+    }
+
+    @Test
+    void endsBeforeATornRecordAndAppendsOverIt() throws IOException {
+        LogSegment segment = LogSegment.create(dir, 0, 4096);
+        segment.append(frame(0), 0);
+        segment.append(frame(1), 0);
+        int torn = segment.size();
+        segment.append(frame(2), 0);
+        segment.flush();
+
+        // The last record's bytes only partly reached the disk
+        Path file = dir.resolve(String.format("%020d", 0) + LogSegment.LOG_SUFFIX);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(torn + 13);
+            raf.write('x');
+        }
+
+        LogSegment reopened = LogSegment.open(file);
+        assertEquals(2, reopened.nextOffset());
+        assertEquals(torn, reopened.size());
+        assertEquals(List.of("m0", "m1"), read(reopened, 0, 10, 10));
+
+        assertTrue(reopened.append(frame(3), 0));
+        LogSegment again = LogSegment.open(file);
+        assertEquals(List.of("m0", "m1", "m3"), read(again, 0, 10, 10));
+    }
+
+    @Test
+    void ignoresALengthWrittenWithoutItsRecord() throws IOException {
+        LogSegment segment = LogSegment.create(dir, 0, 4096);
+        segment.append(frame(0), 0);
+        int end = segment.size();
+        segment.flush();
+
+        Path file = dir.resolve(String.format("%020d", 0) + LogSegment.LOG_SUFFIX);
+        try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+            raf.seek(end);
+            raf.writeInt(100);
+        }
+
+        LogSegment reopened = LogSegment.open(file);
+        assertEquals(1, reopened.nextOffset());
+        assertTrue(reopened.append(frame(1), 0));
+        assertEquals(List.of("m0", "m1"), read(LogSegment.open(file), 0, 10, 10));
+    }
+
+    static EncodedBroadcast frame(int i) {
+        return new EncodedBroadcast("m".getBytes(StandardCharsets.UTF_8), String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String text(EncodedBroadcast frame) {
+        return StandardCharsets.UTF_8.decode(frame.prefix()) + StandardCharsets.UTF_8.decode(frame.body()).toString();
+    }
+
+    private static List<String> read(LogSegment segment, long from, long to, int limit) {
+        List<String> out = new ArrayList<>();
+        segment.read(from, to, limit, frame -> out.add(text(frame)));
+        return out;
+    }
+}
@@ -0,0 +1,108 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class TimingWheelTest {
+
+    // Times are in ticks of 10 ns from 0, the wheel never reads a clock
+    private static final long TICK = 10;
+
+    private final TimingWheel wheel = new TimingWheel(TICK, 8, 0);
+    private final List<String> ran = new ArrayList<>();
+
+    @Test
+    void runsATimerOnceItsDelayPassedAndNotBefore() {
+        TimingWheel.Timer timer = timer("a");
+        wheel.schedule(timer, 35, 0);
+
+        wheel.advance(39);
+        assertTrue(ran.isEmpty());
+        wheel.advance(40);
+        assertEquals(List.of("a"), ran);
+        assertTrue(wheel.isEmpty());
+
+        wheel.advance(1000);
+        assertEquals(List.of("a"), ran);
+    }
+
+    @Test
+    void waitsOutTheTurnsOfATimerFurtherThanTheWheel() {
+        wheel.schedule(timer("far"), 8 * TICK * 3 + 5, 0);
+        wheel.schedule(timer("near"), 2 * TICK, 0);
+
+        wheel.advance(8 * TICK * 3);
+        assertEquals(List.of("near"), ran);
+        wheel.advance(8 * TICK * 3 + TICK);
+        assertEquals(List.of("near", "far"), ran);
+    }
+
+    @Test
+    void neitherRunsACancelledTimerNorAMovedOneEarly() {
+        TimingWheel.Timer cancelled = timer("cancelled");
+        TimingWheel.Timer moved = timer("moved");
+        wheel.schedule(cancelled, 20, 0);
+        wheel.schedule(moved, 20, 0);
+        wheel.cancel(cancelled);
+        wheel.schedule(moved, 50, 10);
+
+        wheel.advance(50);
+        assertTrue(ran.isEmpty());
+        wheel.advance(60);
+        assertEquals(List.of("moved"), ran);
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    void letsARunningTimerCancelOneDueInTheSameTick() {
+        TimingWheel.Timer[] victim = new TimingWheel.Timer[1];
+        TimingWheel.Timer killer = new TimingWheel.Timer(() -> {
+            ran.add("killer");
+            wheel.cancel(victim[0]);
+        });
+        victim[0] = timer("victim");
+        wheel.schedule(killer, 20, 0); // timers due together run in the order they were scheduled
+        wheel.schedule(victim[0], 20, 0);
+
+        wheel.advance(20);
+        assertEquals(List.of("killer"), ran);
+        assertTrue(wheel.isEmpty());
+    }
+
+    @Test
+    void reschedulesATimerFromItsOwnTask() {
+        TimingWheel.Timer[] self = new TimingWheel.Timer[1];
+        long[] now = {0};
+        self[0] = new TimingWheel.Timer(() -> {
+            ran.add("beat");
+            wheel.schedule(self[0], 30, now[0]);
+        });
+        wheel.schedule(self[0], 30, 0);
+
+        for (now[0] = 0; now[0] <= 300; now[0] += TICK) {
+            wheel.advance(now[0]);
+        }
+        assertEquals(10, ran.size());
+        assertFalse(wheel.isEmpty());
+    }
+
+    @Test
+    void schedulesFromTheTimeGivenAfterStandingIdle() {
+        wheel.advance(1_000_000);
+        wheel.schedule(timer("late"), 20, 1_000_000);
+
+        wheel.advance(1_000_010);
+        assertTrue(ran.isEmpty());
+        wheel.advance(1_000_020);
+        assertEquals(List.of("late"), ran);
+    }
+
+    private TimingWheel.Timer timer(String name) {
+        return new TimingWheel.Timer(() -> ran.add(name));
+    }
+}